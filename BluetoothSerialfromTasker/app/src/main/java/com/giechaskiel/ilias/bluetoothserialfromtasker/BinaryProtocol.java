@@ -0,0 +1,269 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Encoder and decoder of the framed binary protocol understood by
+ * arduino_bluetooth_switch.ino alongside its text commands. A frame is
+ *
+ *   SYNC (0xA5) | opcode | payload length | payload | CRC-8 of opcode, length and payload
+ *
+ * with the CRC-8 polynomial 0x07 and initial value 0. Text commands are ASCII, so the sync
+ * byte can never start one, and frames need no CR/LF, so several can be sent in one write.
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+public class BinaryProtocol {
+    public final static byte SYNC = (byte) 0xA5;
+
+    // Opcodes, matching the text commands "on", "off" and a number of minutes
+    public final static int OP_ON = 0x01;
+    public final static int OP_OFF = 0x02;
+    // Payload: the number of minutes after which to switch off, as an unsigned 16-bit big
+    // endian integer. 0 cancels a delayed shutoff
+    public final static int OP_SHUTOFF = 0x03;
+
+    // Largest payload a frame can describe
+    public final static int MAX_PAYLOAD = 255;
+
+    // Largest number of minutes a shutoff command can carry. The sketch measures the delay
+    // in unsigned 32-bit milliseconds since the command, which this many minutes fits in
+    public final static int MAX_MINUTES = 0xFFFF;
+
+    // Bytes a frame adds to its payload: sync, opcode, length and CRC
+    public final static int FRAME_OVERHEAD = 4;
+
+    // Separators between the commands of a message, as in "on; 30"
+    private final static Pattern COMMAND_SEPARATOR = Pattern.compile("[,;\\s]+");
+
+    private final static byte[] CRC_TABLE = new byte[256];
+
+    static {
+        for (int i = 0; i < 256; ++i) {
+            int crc = i;
+            for (int bit = 0; bit < 8; ++bit) {
+                crc = (crc & 0x80) != 0 ? (crc << 1) ^ 0x07 : crc << 1;
+            }
+            CRC_TABLE[i] = (byte) crc;
+        }
+    }
+
+    // Method that adds a byte to a running CRC-8
+    public static int crc8(int crc, byte b) {
+        return CRC_TABLE[(crc ^ b) & 0xFF] & 0xFF;
+    }
+
+    // Method that returns the CRC-8 of a range of bytes
+    public static int crc8(final byte[] bytes, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; ++i) {
+            crc = crc8(crc, bytes[i]);
+        }
+        return crc;
+    }
+
+    // Method that writes a frame into out at the given offset, which must have room for
+    // length + FRAME_OVERHEAD bytes. Returns the number of bytes written
+    public static int encode(int opcode, final byte[] payload, int payload_offset, int length,
+                             final byte[] out, int offset) {
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Payload too long: " + length);
+        }
+
+        int i = offset;
+        out[i++] = SYNC;
+        out[i++] = (byte) opcode;
+        out[i++] = (byte) length;
+        System.arraycopy(payload, payload_offset, out, i, length);
+        i += length;
+        out[i++] = (byte) crc8(out, offset + 1, length + 2);
+        return i - offset;
+    }
+
+    // Method that writes the frame for a single command (see compile) into out at the given
+    // offset. Returns the number of bytes written, or -1 if the command is invalid
+    private static int encodeCommand(final String command, final byte[] out, int offset) {
+        String lower = command.toLowerCase(Locale.US);
+        if (lower.equals("on")) {
+            return encode(OP_ON, out, 0, 0, out, offset);
+        } else if (lower.equals("off")) {
+            return encode(OP_OFF, out, 0, 0, out, offset);
+        }
+
+        int minutes = parseMinutes(command);
+        if (minutes < 0) {
+            return -1;
+        }
+        byte[] payload = {(byte) (minutes >> 8), (byte) minutes};
+        return encode(OP_SHUTOFF, payload, 0, payload.length, out, offset);
+    }
+
+    // Method that parses a number of minutes like parse_long() of the sketch, or -1 if the
+    // command is not one, or too large for a frame
+    private static int parseMinutes(final String command) {
+        if (command.isEmpty() || command.length() > 5) {
+            return -1;
+        }
+
+        int minutes = 0;
+        for (int i = 0; i < command.length(); ++i) {
+            char c = command.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            minutes = 10 * minutes + (c - '0');
+        }
+        return minutes <= MAX_MINUTES ? minutes : -1;
+    }
+
+    // Method that returns the number of bytes of the frame for the command, or -1 if invalid
+    private static int frameLength(final String command) {
+        String lower = command.toLowerCase(Locale.US);
+        if (lower.equals("on") || lower.equals("off")) {
+            return FRAME_OVERHEAD;
+        }
+        return parseMinutes(command) < 0 ? -1 : FRAME_OVERHEAD + 2;
+    }
+
+    // Method that compiles a message of commands separated by commas, semicolons or spaces
+    // into consecutive frames, leaving extra_length bytes free at the end. Commands are the
+    // same as the sketch's text commands: "on", "off" (in any case), or a number of minutes
+    // after which to switch off (0 cancels). Returns null if the message is invalid
+    public static byte[] compile(final String msg, int extra_length) {
+        if (msg == null) {
+            return null;
+        }
+
+        String[] commands = COMMAND_SEPARATOR.split(msg.trim());
+        int length = 0;
+        for (String command : commands) {
+            if (command.isEmpty()) {
+                continue;
+            }
+            int frame_length = frameLength(command);
+            if (frame_length < 0) {
+                return null;
+            }
+            length += frame_length;
+        }
+
+        if (length == 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length + extra_length];
+        int offset = 0;
+        for (String command : commands) {
+            if (!command.isEmpty()) {
+                offset += encodeCommand(command, bytes, offset);
+            }
+        }
+        return bytes;
+    }
+
+    // Whether the message consists of one or more valid commands
+    public static boolean isValid(final String msg) {
+        return compile(msg, 0) != null;
+    }
+
+    // Incremental decoder, which resynchronizes on the next sync byte after a corrupt frame.
+    // It keeps no more state than the firmware parser, so each byte takes constant time
+    public static class Decoder {
+        private final static int STATE_SYNC = 0;
+        private final static int STATE_OPCODE = 1;
+        private final static int STATE_LENGTH = 2;
+        private final static int STATE_PAYLOAD = 3;
+        private final static int STATE_CRC = 4;
+
+        private final byte[] payload;
+        private int state = STATE_SYNC;
+        private int opcode;
+        private int length;
+        private int index;
+        private int crc;
+
+        // Number of frames dropped because of a bad CRC or an oversized payload
+        private long errors = 0;
+
+        public Decoder() {
+            this(MAX_PAYLOAD);
+        }
+
+        // Frames with payloads above max_payload are dropped, like on a device with a small
+        // buffer
+        public Decoder(int max_payload) {
+            payload = new byte[Math.min(MAX_PAYLOAD, Math.max(0, max_payload))];
+        }
+
+        // Whether the decoder is inside a frame, so that the byte fed next belongs to it
+        public boolean inFrame() {
+            return state != STATE_SYNC;
+        }
+
+        // Method that feeds one byte to the decoder. Returns true if it completed a valid
+        // frame, whose contents are then available until the next call
+        public boolean feed(byte b) {
+            switch (state) {
+                case STATE_SYNC:
+                    if (b == SYNC) {
+                        state = STATE_OPCODE;
+                    }
+                    return false;
+
+                case STATE_OPCODE:
+                    opcode = b & 0xFF;
+                    crc = crc8(0, b);
+                    state = STATE_LENGTH;
+                    return false;
+
+                case STATE_LENGTH:
+                    length = b & 0xFF;
+                    crc = crc8(crc, b);
+                    if (length > payload.length) {
+                        ++errors;
+                        state = STATE_SYNC;
+                    } else {
+                        index = 0;
+                        state = length == 0 ? STATE_CRC : STATE_PAYLOAD;
+                    }
+                    return false;
+
+                case STATE_PAYLOAD:
+                    payload[index++] = b;
+                    crc = crc8(crc, b);
+                    if (index == length) {
+                        state = STATE_CRC;
+                    }
+                    return false;
+
+                default:
+                    state = STATE_SYNC;
+                    if ((b & 0xFF) != crc) {
+                        ++errors;
+                        return false;
+                    }
+                    return true;
+            }
+        }
+
+        public int getOpcode() {
+            return opcode;
+        }
+
+        // Payload of the last frame, valid for getLength() bytes until the next feed()
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Class responsible for reacting to Bluetooth events: keeping the DeviceIndex
+ * current as devices are paired and unpaired, and as Bluetooth is switched on and off,
+ * telling the ConnectionService when a device or Bluetooth is reachable again so that it
+ * replays spooled messages, and opening connections ahead of time when a known device comes
+ * into range or the phone is unlocked. The spool is only read by the service, off the main
+ * thread
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+public class BluetoothEventReceiver extends BroadcastReceiver {
+    // Tag for logging
+    private final static String TAG = "BluetoothEventReceiver";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final String action = intent.getAction();
+        final Context app_context = context.getApplicationContext();
+
+        if (BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(action)) {
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            int state = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.ERROR);
+            Log.i(TAG, "Bond state changed to " + state);
+            DeviceIndex.getInstance().onBondStateChanged(device, state);
+            if (device != null && state == BluetoothDevice.BOND_BONDED) {
+                ConnectionService.warmIfKnown(app_context, device.getAddress());
+            }
+        } else if (BluetoothAdapter.ACTION_STATE_CHANGED.equals(action)) {
+            int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR);
+            if (state != BluetoothAdapter.STATE_ON) {
+                DeviceIndex.getInstance().invalidate();
+            } else {
+                Log.i(TAG, "Bluetooth on");
+                ConnectionService.reachable(app_context, null,
+                        PluginSettings.getPrewarmOnBluetooth(context));
+            }
+        } else if (BluetoothDevice.ACTION_ACL_CONNECTED.equals(action)) {
+            // The device is in range again, for instance because another app connected to it
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            if (device == null) {
+                return;
+            }
+            SendQueue queue = ConnectionService.peekQueue();
+            if (queue != null) {
+                queue.getSender().getBreaker().reset(device.getAddress());
+            }
+            ConnectionService.reachable(app_context, device.getAddress(), true);
+        } else if (Intent.ACTION_USER_PRESENT.equals(action)) {
+            if (PluginSettings.getPrewarmOnUnlock(context)) {
+                ConnectionService.warmIfKnown(app_context, null);
+            }
+        }
+    }
+}
@@ -13,7 +13,12 @@ import android.content.res.Resources;
 import android.os.Bundle;
 import android.util.Log;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 
@@ -29,19 +34,87 @@ public class BundleManager {
     public final static String BUNDLE_STRING_MSG = PACKAGE_NAME + ".STRING_MSG";
     public final static String BUNDLE_BOOL_CRLF  = PACKAGE_NAME + ".BOOL_CRLF";
     public final static String BUNDLE_BOOL_HEX   = PACKAGE_NAME + ".BOOL_HEX";
-
-    // only accept valid MAC addresses of form 00:11:22:AA:BB:CC, where colons can be dashes
-    private static boolean isMacValid(String mac) {
+    public final static String BUNDLE_INT_MODE   = PACKAGE_NAME + ".INT_MODE";
+    public final static String BUNDLE_LONG_FINGERPRINT = PACKAGE_NAME + ".LONG_FINGERPRINT";
+    public final static String BUNDLE_BOOL_REPLY = PACKAGE_NAME + ".BOOL_REPLY";
+    public final static String BUNDLE_STRING_REPLY_DELIMITERS = PACKAGE_NAME + ".STRING_REPLY_DELIMITERS";
+    public final static String BUNDLE_INT_REPLY_MAX_BYTES = PACKAGE_NAME + ".INT_REPLY_MAX_BYTES";
+    public final static String BUNDLE_INT_REPLY_TIMEOUT_MS = PACKAGE_NAME + ".INT_REPLY_TIMEOUT_MS";
+    public final static String BUNDLE_BOOL_TEMPLATE = PACKAGE_NAME + ".BOOL_TEMPLATE";
+    public final static String BUNDLE_LONG_COUNTER_KEY = PACKAGE_NAME + ".LONG_COUNTER_KEY";
+    public final static String BUNDLE_INT_CHARSET = PACKAGE_NAME + ".INT_CHARSET";
+    public final static String BUNDLE_BYTES_ESCAPED = PACKAGE_NAME + ".BYTES_ESCAPED";
+    public final static String BUNDLE_STRING_STATE_SLOT = PACKAGE_NAME + ".STRING_STATE_SLOT";
+
+    // How the message is turned into bytes: as text, as hex bytes, as commands of the
+    // binary protocol (see BinaryProtocol), as text with C-style escapes such as \r and
+    // \xNN, or as a script of such messages sent one after the other (see MessageScript).
+    // Values are positions in R.array.message_modes
+    public final static int MODE_TEXT = 0;
+    public final static int MODE_HEX = 1;
+    public final static int MODE_BINARY = 2;
+    public final static int MODE_ESCAPE = 3;
+    public final static int MODE_SCRIPT = 4;
+
+    // Bytes appended to messages when CRLF is enabled
+    private final static byte[] CRLF_BYTES = {'\r', '\n'};
+
+    // Wire bytes of bundles that carry a fingerprint, so that repeated fires skip validation
+    private final static PayloadCache payloadCache = new PayloadCache();
+
+    // MAC addresses of form 00:11:22:AA:BB:CC, where colons can be dashes
+    private final static Pattern MAC_PATTERN = Pattern.compile("([0-9a-fA-F]{2}[:-]){5}[0-9a-fA-F]{2}");
+
+    // Separators between the MAC addresses of a list, as in "00:11:22:AA:BB:CC, %other"
+    private final static Pattern MAC_SEPARATOR = Pattern.compile("[,;\\s]+");
+
+    // only accept valid MAC addresses, or lists of them separated by commas, semicolons or
+    // spaces. Each address can also be a variable
+    static boolean isMacValid(String mac) {
         if (mac == null) {
             return false;
         }
 
-        // We allow variable MACs
-        if (mac.startsWith("%")) {
+        // the common case of a single address needs no splitting
+        if (MAC_PATTERN.matcher(mac).matches()) {
             return true;
         }
 
-        return Pattern.matches("([0-9a-fA-F]{2}[:-]){5}[0-9a-fA-F]{2}", mac);
+        List<String> macs = getMacList(mac);
+        if (macs.isEmpty()) {
+            return false;
+        }
+
+        for (String single : macs) {
+            // We allow variable MACs
+            if (!single.startsWith("%") && !MAC_PATTERN.matcher(single).matches()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Method that splits the MAC field into its addresses, in order and without duplicates.
+    // Addresses are returned as written, apart from duplicates in a different form
+    public static List<String> getMacList(final String mac) {
+        List<String> macs = new ArrayList<>();
+        if (mac == null) {
+            return macs;
+        }
+
+        Set<String> seen = new HashSet<>();
+        for (String single : MAC_SEPARATOR.split(mac.trim())) {
+            if (!single.isEmpty() && seen.add(normalizeMac(single))) {
+                macs.add(single);
+            }
+        }
+        return macs;
+    }
+
+    // Method that returns the canonical form of a MAC address (upper case, colon-separated),
+    // so that 00-11-22-aa-bb-cc and 00:11:22:AA:BB:CC refer to the same device
+    public static String normalizeMac(final String mac) {
+        return mac.toUpperCase(Locale.US).replace('-', ':');
     }
 
     // Whether the bundle is valid. Strings must be non-null, and either variables
@@ -52,6 +125,11 @@ public class BundleManager {
             return false;
         }
 
+        // Bundles whose bytes were already compiled were valid then, and have not changed
+        if (getCachedMsgBytes(bundle) != null || getCachedTemplate(bundle) != null) {
+            return true;
+        }
+
         String[] keys = {BUNDLE_BOOL_CRLF, BUNDLE_BOOL_HEX, BUNDLE_STRING_MAC, BUNDLE_STRING_MSG};
         for (String key: keys) {
             if (!bundle.containsKey(key)) {
@@ -78,48 +156,115 @@ public class BundleManager {
         }
 
 
-        boolean hex = getHex(bundle);
+        int mode = getMode(bundle);
         boolean crlf = getCrlf(bundle);
 
-        if (hex) {
-            // If we interpret message as hex, we expect it to be non-null
-            byte[] normalized = getByteArrayFromHexString(msg);
-            boolean valid = normalized != null;
+        if (mode == MODE_HEX) {
+            // If we interpret message as hex, we expect it to be well-formed
+            boolean valid = HexDecoder.isValid(msg);
             if (!valid) {
                 Log.w(TAG, "Message is not well-formed HEX");
             }
             return valid;
+        } else if (mode == MODE_BINARY) {
+            boolean valid = BinaryProtocol.isValid(msg);
+            if (!valid) {
+                Log.w(TAG, "Message is not a list of binary commands");
+            }
+            return valid;
+        } else if (mode == MODE_ESCAPE) {
+            // bundles carrying their compiled bytes were checked when they were generated
+            boolean valid = (bundle.containsKey(BUNDLE_BYTES_ESCAPED)
+                    || compileEscapes(msg, 0) != null) && (crlf || !msg.isEmpty());
+            if (!valid) {
+                Log.w(TAG, "Message has invalid escapes, or is empty without CRLF");
+            }
+            return valid;
+        } else if (mode == MODE_SCRIPT) {
+            boolean valid = MessageScript.compile(msg, crlf) != null;
+            if (!valid) {
+                Log.w(TAG, "Message is not a valid script");
+            }
+            return valid;
+        } else if (mode != MODE_TEXT) {
+            Log.w(TAG, "Unknown message mode " + mode);
+            return false;
+        }
+
+        int charset = getCharset(bundle);
+        if (!TextEncoder.isCharsetValid(charset)) {
+            Log.w(TAG, "Unknown charset " + charset);
+            return false;
+        } else if (getTemplate(bundle)) {
+            boolean valid = MessageTemplate.isValid(msg, charset) && (crlf || !msg.isEmpty());
+            if (!valid) {
+                Log.w(TAG, "Message is not a valid template in " + TextEncoder.getName(charset));
+            }
+            return valid;
+        } else if (!crlf && msg.isEmpty()) {
+            Log.w(TAG, "Empty message and no CRLF");
+            return false;
         } else {
-            boolean valid = crlf || !msg.isEmpty();
+            boolean valid = TextEncoder.canEncode(msg, charset);
             if (!valid) {
-                Log.w(TAG, "Empty message and no CRLF");
+                Log.w(TAG, "Message cannot be written in " + TextEncoder.getName(charset));
             }
             return valid;
         }
     }
 
     // method to get error message for the given values, or null if no error exists
-    public static String getErrorMessage(Context context, final String mac, final String msg, boolean crlf, boolean hex) {
+    public static String getErrorMessage(Context context, final String mac, final String msg,
+                                         boolean crlf, int mode, boolean template, int charset) {
         Resources res = context.getResources();
         if (!isMacValid(mac)) {
             return res.getString(R.string.invalid_mac);
         }
 
-        if (hex) {
-            if (getByteArrayFromHexString(msg) == null) {
+        if (mode == MODE_HEX) {
+            if (!HexDecoder.isValid(msg)) {
                 return res.getString(R.string.invalid_hex);
             }
+        } else if (mode == MODE_BINARY) {
+            if (msg == null || (!msg.startsWith("%") && !BinaryProtocol.isValid(msg))) {
+                return res.getString(R.string.invalid_binary);
+            }
+        } else if (mode == MODE_ESCAPE) {
+            if (msg == null || (msg.isEmpty() && !crlf)) {
+                return res.getString(R.string.invalid_msg);
+            }
+            if (!msg.startsWith("%") && compileEscapes(msg, 0) == null) {
+                return res.getString(R.string.invalid_escape);
+            }
+        } else if (mode == MODE_SCRIPT) {
+            if (msg == null || (!msg.startsWith("%") && MessageScript.compile(msg, crlf) == null)) {
+                return res.getString(R.string.invalid_script);
+            }
         } else {
             if (msg == null || (msg.isEmpty() && !crlf)) {
                 return res.getString(R.string.invalid_msg);
             }
+            if (msg.startsWith("%")) {
+                return null;
+            }
+            if (template && !MessageTemplate.isValid(msg, charset)) {
+                return res.getString(TextEncoder.isSingleByte(charset)
+                        ? R.string.invalid_template : R.string.invalid_template_charset);
+            }
+            if (!template && !TextEncoder.canEncode(msg, charset)) {
+                return res.getString(R.string.invalid_charset);
+            }
         }
 
         return null;
     }
 
-    // Method to create bundle from the individual values
-    public static Bundle generateBundle(final String mac, final String msg, boolean crlf, boolean hex) {
+    // Method to create bundle from the individual values. A text message is written in the
+    // given charset (see TextEncoder), and can be a template (see MessageTemplate) that the
+    // plugin fills in on every fire. The template is compiled here, so that the first fire
+    // only has to render it
+    public static Bundle generateBundle(final String mac, final String msg, boolean crlf,
+                                        int mode, boolean template, int charset) {
         if (mac == null || msg == null) {
             return null;
         }
@@ -128,13 +273,46 @@ public class BundleManager {
         bundle.putString(BUNDLE_STRING_MAC, mac);
         bundle.putString(BUNDLE_STRING_MSG, msg);
         bundle.putBoolean(BUNDLE_BOOL_CRLF, crlf);
-        bundle.putBoolean(BUNDLE_BOOL_HEX, hex);
+        // kept for versions that only know text and hex
+        bundle.putBoolean(BUNDLE_BOOL_HEX, mode == MODE_HEX);
+        bundle.putInt(BUNDLE_INT_MODE, mode);
+        template = template && mode == MODE_TEXT;
+        if (template) {
+            bundle.putBoolean(BUNDLE_BOOL_TEMPLATE, true);
+        }
+        // UTF-8 is the default, which keeps bundles the same as before there were charsets
+        if (mode != MODE_TEXT) {
+            charset = TextEncoder.CHARSET_UTF8;
+        } else if (charset != TextEncoder.CHARSET_UTF8) {
+            bundle.putInt(BUNDLE_INT_CHARSET, charset);
+        }
 
         if (!isBundleValid(bundle)) {
             return null;
-        } else {
-            return bundle;
         }
+
+        // Escapes are compiled once here, so that firing only has to copy the bytes
+        if (mode == MODE_ESCAPE && !msg.contains("%")) {
+            bundle.putByteArray(BUNDLE_BYTES_ESCAPED, compileEscapes(msg, 0));
+        }
+
+        // {counter} counts the fires of the action as saved, before the host fills in
+        // variables, so it is keyed by the fingerprint of the action without them
+        if (template) {
+            bundle.putLong(BUNDLE_LONG_COUNTER_KEY,
+                    PayloadCache.fingerprint(mac, msg, crlf, mode, true, charset));
+        }
+
+        // Only messages without variables are the same on every fire, and worth caching
+        if (!mac.contains("%") && !msg.contains("%")) {
+            long fingerprint = PayloadCache.fingerprint(mac, msg, crlf, mode, template, charset);
+            bundle.putLong(BUNDLE_LONG_FINGERPRINT, fingerprint);
+            if (template) {
+                payloadCache.putTemplate(fingerprint, mac, msg, crlf, mode, charset,
+                        compileTemplate(msg, crlf, charset));
+            }
+        }
+        return bundle;
     }
 
     // Method for getting short String description of bundle
@@ -145,8 +323,9 @@ public class BundleManager {
 
         final String mac = getMac(bundle);
         final String msg = getMsg(bundle);
-        final boolean crlf = getCrlf(bundle);
-        final boolean hex = getHex(bundle);
+        // binary frames need no line ending
+        final int mode = getMode(bundle);
+        final boolean crlf = getCrlf(bundle) && mode != MODE_BINARY;
 
         final String clrf_string = "\\r\\n";
 
@@ -157,10 +336,27 @@ public class BundleManager {
         StringBuilder builder = new StringBuilder();
         builder.append(mac);
         builder.append(" <- ");
-        if (hex) {
+        final String slot = getStateSlot(bundle);
+        if (slot != null) {
+            builder.append('[').append(slot).append("] ");
+        }
+        if (mode == MODE_HEX) {
             builder.append("(hex) ");
+        } else if (getTemplate(bundle)) {
+            builder.append("(template) ");
+        } else if (mode == MODE_BINARY) {
+            builder.append("(binary) ");
+        } else if (mode == MODE_ESCAPE) {
+            builder.append("(escapes) ");
+        } else if (mode == MODE_SCRIPT) {
+            builder.append("(script) ");
         }
-        builder.append(msg);
+        final int charset = getCharset(bundle);
+        if (charset != TextEncoder.CHARSET_UTF8) {
+            builder.append('(').append(TextEncoder.getName(charset)).append(") ");
+        }
+        // scripts are shown on a single line, with their steps separated
+        builder.append(mode == MODE_SCRIPT ? msg.replace("\r", "").replace("\n", "; ") : msg);
 
         int length = builder.length() + crlf_len;
 
@@ -193,69 +389,360 @@ public class BundleManager {
 
     // Method to get whether message should be interpreted as binary hex
     public static boolean getHex(final Bundle bundle) {
-        return bundle.getBoolean(BUNDLE_BOOL_HEX, false);
+        return getMode(bundle) == MODE_HEX;
     }
 
-    // method to get the message bytes for the given bundle, or null if the bundle is invalid
-    public static byte[] getMsgBytes(final Bundle bundle) {
-        if (!isBundleValid(bundle)) {
+    // Method to get whether the message is a template filled in by the plugin, which only
+    // text messages can be
+    public static boolean getTemplate(final Bundle bundle) {
+        return bundle.getBoolean(BUNDLE_BOOL_TEMPLATE, false) && getMode(bundle) == MODE_TEXT;
+    }
+
+    // Method to get the charset text messages are written in. Bundles saved before there
+    // were charsets are UTF-8, which is what Android used for them
+    public static int getCharset(final Bundle bundle) {
+        if (getMode(bundle) != MODE_TEXT) {
+            return TextEncoder.CHARSET_UTF8;
+        }
+        return bundle.getInt(BUNDLE_INT_CHARSET, TextEncoder.CHARSET_UTF8);
+    }
+
+    // Method to get how the message is turned into bytes. Bundles saved before there were
+    // modes only have the hex flag
+    public static int getMode(final Bundle bundle) {
+        if (bundle.containsKey(BUNDLE_INT_MODE)) {
+            return bundle.getInt(BUNDLE_INT_MODE, MODE_TEXT);
+        }
+        return bundle.getBoolean(BUNDLE_BOOL_HEX, false) ? MODE_HEX : MODE_TEXT;
+    }
+
+    // Method to make the action wait for the device's reply after sending. The reply ends at
+    // any of the delimiter bytes, given as hex (empty for CR or LF), after max_bytes, or after
+    // timeout_ms. Returns false, leaving the bundle unchanged, if the values are invalid
+    public static boolean putReply(final Bundle bundle, final String delimiters, int max_bytes,
+                                   int timeout_ms) {
+        if (!isReplyValid(delimiters, max_bytes, timeout_ms)) {
+            return false;
+        }
+
+        bundle.putBoolean(BUNDLE_BOOL_REPLY, true);
+        bundle.putString(BUNDLE_STRING_REPLY_DELIMITERS, delimiters.trim());
+        bundle.putInt(BUNDLE_INT_REPLY_MAX_BYTES, max_bytes);
+        bundle.putInt(BUNDLE_INT_REPLY_TIMEOUT_MS, timeout_ms);
+        return true;
+    }
+
+    // Whether the reply options can be used: the delimiters must be empty or hex, and the
+    // limits positive
+    public static boolean isReplyValid(final String delimiters, int max_bytes, int timeout_ms) {
+        if (delimiters == null || max_bytes <= 0 || timeout_ms <= 0) {
+            return false;
+        }
+        return delimiters.trim().isEmpty() || HexDecoder.isValid(delimiters);
+    }
+
+    // Method to get whether the action waits for a reply
+    public static boolean getReply(final Bundle bundle) {
+        return bundle.getBoolean(BUNDLE_BOOL_REPLY, false);
+    }
+
+    // Method to get the reply delimiters as entered, empty for the default of CR or LF
+    public static String getReplyDelimiters(final Bundle bundle) {
+        return bundle.getString(BUNDLE_STRING_REPLY_DELIMITERS, "");
+    }
+
+    public static int getReplyMaxBytes(final Bundle bundle) {
+        return bundle.getInt(BUNDLE_INT_REPLY_MAX_BYTES, FrameReader.DEFAULT_MAX_BYTES);
+    }
+
+    public static int getReplyTimeoutMs(final Bundle bundle) {
+        return bundle.getInt(BUNDLE_INT_REPLY_TIMEOUT_MS, (int) FrameReader.DEFAULT_TIMEOUT_MS);
+    }
+
+    // Method that returns what ends the reply of the bundle, or null if it does not wait for one
+    public static FrameReader.Request getReplyRequest(final Bundle bundle) {
+        if (!getReply(bundle)) {
             return null;
         }
-        String msg = getMsg(bundle);
 
-        byte[] msg_bytes;
-        if (getHex(bundle)) {
-            msg_bytes = getByteArrayFromHexString(msg);
-        } else {
-            msg_bytes = msg.getBytes();
+        byte[] delimiters = HexDecoder.decode(getReplyDelimiters(bundle));
+        if (delimiters == null) {
+            delimiters = FrameReader.DEFAULT_DELIMITERS;
+        }
+
+        int max_bytes = getReplyMaxBytes(bundle);
+        int timeout_ms = getReplyTimeoutMs(bundle);
+        return new FrameReader.Request(delimiters,
+                max_bytes > 0 ? max_bytes : FrameReader.DEFAULT_MAX_BYTES,
+                timeout_ms > 0 ? timeout_ms : FrameReader.DEFAULT_TIMEOUT_MS);
+    }
+
+    // Method to mark the action as setting the state of the given slot of its devices, such
+    // as "power", so that only the latest queued message for the slot is sent. An empty
+    // slot leaves the bundle unchanged
+    public static void putStateSlot(final Bundle bundle, final String slot) {
+        if (slot != null && !slot.trim().isEmpty()) {
+            bundle.putString(BUNDLE_STRING_STATE_SLOT, slot.trim());
+        }
+    }
+
+    // Method to get the state slot of the action, or null if it does not set one
+    public static String getStateSlot(final Bundle bundle) {
+        String slot = bundle.getString(BUNDLE_STRING_STATE_SLOT, null);
+        return slot == null || slot.isEmpty() ? null : slot;
+    }
+
+    // Method to get the fingerprint of a bundle without variables, or 0 if it has none
+    public static long getFingerprint(final Bundle bundle) {
+        return bundle.getLong(BUNDLE_LONG_FINGERPRINT, 0L);
+    }
+
+    // Method that returns the previously compiled bytes of the bundle, or null if there are none
+    private static byte[] getCachedMsgBytes(final Bundle bundle) {
+        long fingerprint = getFingerprint(bundle);
+        if (fingerprint == 0) {
+            return null;
+        }
+
+        final String mac = getMac(bundle);
+        final String msg = getMsg(bundle);
+        if (mac == null || msg == null) {
+            return null;
         }
 
-        if (msg_bytes == null) {
+        return payloadCache.get(fingerprint, mac, msg, getCrlf(bundle), getMode(bundle),
+                getCharset(bundle));
+    }
+
+    // Method that returns the script of the bundle, or null if it is not a valid script
+    public static MessageScript getScript(final Bundle bundle) {
+        if (getMode(bundle) != MODE_SCRIPT || !isBundleValid(bundle)) {
             return null;
         }
+        return MessageScript.compile(getMsg(bundle), getCrlf(bundle));
+    }
 
-        if (getCrlf(bundle)) {
-            int old_length = msg_bytes.length;
+    // Method that returns the previously compiled template of the bundle, or null if there
+    // is none
+    private static MessageTemplate getCachedTemplate(final Bundle bundle) {
+        long fingerprint = getFingerprint(bundle);
+        if (fingerprint == 0) {
+            return null;
+        }
 
-            // add CRLF bytes
-            byte[] crlf_bytes = "\r\n".getBytes();
-            msg_bytes = Arrays.copyOf(msg_bytes, old_length + crlf_bytes.length);
-            for (int i = 0; i < crlf_bytes.length; ++i) {
-                msg_bytes[old_length + i] = crlf_bytes[i];
-            }
+        final String mac = getMac(bundle);
+        final String msg = getMsg(bundle);
+        if (mac == null || msg == null) {
+            return null;
         }
 
-        return msg_bytes;
+        return payloadCache.getTemplate(fingerprint, mac, msg, getCrlf(bundle), getMode(bundle),
+                getCharset(bundle));
     }
 
-    // Hex string to byte array. null if invalid
+    private static MessageTemplate compileTemplate(final String msg, boolean crlf, int charset) {
+        return MessageTemplate.compile(msg, charset, crlf ? CRLF_BYTES : null);
+    }
 
-    private static byte[] getByteArrayFromHexString(String s) {
-        if (s == null) {
+    // method to get the message bytes for the given bundle, or null if the bundle is invalid
+    // or a script, whose messages are sent one by one (see getScript).
+    // The returned array may be shared between fires, and must not be modified.
+    public static byte[] getMsgBytes(final Bundle bundle) {
+        byte[] cached = getCachedMsgBytes(bundle);
+        if (cached != null) {
+            return cached;
+        }
+
+        if (getMode(bundle) == MODE_SCRIPT) {
             return null;
         }
-        // remove spaces and convert to uppercase
-        s = s.replaceAll("\\s+","").toUpperCase();
 
-        final int length = s.length();
+        if (getTemplate(bundle)) {
+            return getTemplateBytes(bundle);
+        }
 
-        // need even length
-        if (length % 2 != 0) {
+        if (!isBundleValid(bundle)) {
             return null;
         }
+        final String mac = getMac(bundle);
+        final String msg = getMsg(bundle);
+        final int mode = getMode(bundle);
+        // binary frames need no line ending
+        final boolean crlf = getCrlf(bundle) && mode != MODE_BINARY;
+
+        // room for the CRLF bytes, which are added at the end
+        int crlf_length = crlf ? CRLF_BYTES.length : 0;
+
+        byte[] msg_bytes;
+        if (mode == MODE_BINARY) {
+            msg_bytes = BinaryProtocol.compile(msg, 0);
+            if (msg_bytes == null) {
+                return null;
+            }
+        } else if (mode == MODE_HEX) {
+            // decode straight into the final array
+            int length = HexDecoder.decodedLength(msg);
+            if (length < 0) {
+                return null;
+            }
+            msg_bytes = new byte[length + crlf_length];
+            HexDecoder.decode(msg, msg_bytes, 0);
+        } else if (mode == MODE_ESCAPE) {
+            msg_bytes = getEscapedBytes(bundle, msg, crlf_length);
+            if (msg_bytes == null) {
+                return null;
+            }
+        } else {
+            final int charset = getCharset(bundle);
+            if (TextEncoder.isSingleByte(charset)) {
+                // encode straight into an array with room for CRLF
+                msg_bytes = TextEncoder.encode(msg, charset, crlf_length);
+            } else {
+                // CRLF takes more than one byte per character too
+                msg_bytes = TextEncoder.encode(crlf ? msg + "\r\n" : msg, charset, 0);
+                crlf_length = 0;
+            }
+            if (msg_bytes == null) {
+                Log.w(TAG, "Message cannot be written in " + TextEncoder.getName(charset));
+                return null;
+            }
+        }
+
+        if (crlf_length > 0) {
+            System.arraycopy(CRLF_BYTES, 0, msg_bytes, msg_bytes.length - crlf_length, crlf_length);
+        }
+
+        // Only cache under a fingerprint that really belongs to these contents
+        long fingerprint = getFingerprint(bundle);
+        if (fingerprint != 0
+                && fingerprint == PayloadCache.fingerprint(mac, msg, getCrlf(bundle), mode, false,
+                        getCharset(bundle))) {
+            payloadCache.put(fingerprint, mac, msg, getCrlf(bundle), mode, getCharset(bundle),
+                    msg_bytes);
+        }
 
-        // we want at least one character, and make sure it's hex value
-        if (!s.matches("^[0-9A-F]+$")) {
+        return msg_bytes;
+    }
+
+    // Method that returns the bytes of an escape message with room for extra bytes at the
+    // end, copied from the bytes compiled when the bundle was generated if it has them
+    private static byte[] getEscapedBytes(final Bundle bundle, final String msg, int extra) {
+        final byte[] compiled = bundle.getByteArray(BUNDLE_BYTES_ESCAPED);
+        if (compiled == null) {
+            return compileEscapes(msg, extra);
+        }
+        // a copy, as the caller writes CRLF into it
+        return Arrays.copyOf(compiled, compiled.length + extra);
+    }
+
+    // Method that compiles a message with C-style escapes (\r, \n, \t, \0, \\ and \xNN) in
+    // a single pass, into a new array with room for extra bytes at the end. Other characters
+    // are written as UTF-8. Returns null if an escape is unknown or incomplete
+    static byte[] compileEscapes(final String msg, int extra) {
+        if (msg == null) {
             return null;
         }
 
-        byte[] bytes = new byte[length/2];
+        // no character takes more than three bytes, as pairs of surrogates take four
+        final int length = msg.length();
+        byte[] out = new byte[3 * length + extra];
+        int pos = 0;
+        for (int i = 0; i < length; ++i) {
+            char c = msg.charAt(i);
+            if (c == '\\') {
+                if (++i == length) {
+                    return null;
+                }
+                switch (msg.charAt(i)) {
+                    case 'r':
+                        out[pos++] = '\r';
+                        break;
+                    case 'n':
+                        out[pos++] = '\n';
+                        break;
+                    case 't':
+                        out[pos++] = '\t';
+                        break;
+                    case '0':
+                        out[pos++] = 0;
+                        break;
+                    case '\\':
+                        out[pos++] = '\\';
+                        break;
+                    case 'x':
+                        if (i + 2 >= length) {
+                            return null;
+                        }
+                        int high = HexDecoder.digit(msg.charAt(i + 1));
+                        int low = HexDecoder.digit(msg.charAt(i + 2));
+                        if (high < 0 || low < 0) {
+                            return null;
+                        }
+                        out[pos++] = (byte) ((high << 4) | low);
+                        i += 2;
+                        break;
+                    default:
+                        return null;
+                }
+            } else if (c < 0x80) {
+                out[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                out[pos++] = (byte) (0xC0 | (c >> 6));
+                out[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(msg.charAt(i + 1))) {
+                int code_point = Character.toCodePoint(c, msg.charAt(++i));
+                out[pos++] = (byte) (0xF0 | (code_point >> 18));
+                out[pos++] = (byte) (0x80 | ((code_point >> 12) & 0x3F));
+                out[pos++] = (byte) (0x80 | ((code_point >> 6) & 0x3F));
+                out[pos++] = (byte) (0x80 | (code_point & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // like String.getBytes for unpaired surrogates
+                out[pos++] = '?';
+            } else {
+                out[pos++] = (byte) (0xE0 | (c >> 12));
+                out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return pos + extra == out.length ? out : Arrays.copyOf(out, pos + extra);
+    }
 
-        for (int i = 0; i < bytes.length; ++i) {
-            int cur_index = 2*i;
-            bytes[i] = (byte) Short.parseShort(s.substring(cur_index, cur_index + 2), 16);
+    // Method that renders the template of the bundle, compiling it first unless it has been
+    // compiled before. Returns null if the bundle is invalid
+    private static byte[] getTemplateBytes(final Bundle bundle) {
+        long counter_key = bundle.getLong(BUNDLE_LONG_COUNTER_KEY, 0L);
+        MessageTemplate template = getCachedTemplate(bundle);
+        if (template == null) {
+            if (!isBundleValid(bundle)) {
+                return null;
+            }
+
+            final String mac = getMac(bundle);
+            final String msg = getMsg(bundle);
+            final boolean crlf = getCrlf(bundle);
+            final int charset = getCharset(bundle);
+            template = compileTemplate(msg, crlf, charset);
+            if (template == null) {
+                return null;
+            }
+
+            long fingerprint = getFingerprint(bundle);
+            if (fingerprint != 0 && fingerprint
+                    == PayloadCache.fingerprint(mac, msg, crlf, MODE_TEXT, true, charset)) {
+                payloadCache.putTemplate(fingerprint, mac, msg, crlf, MODE_TEXT, charset,
+                        template);
+            }
+            if (counter_key == 0) {
+                counter_key = PayloadCache.fingerprint(mac, msg, crlf, MODE_TEXT, true, charset);
+            }
         }
-        return bytes;
+        return template.render(MessageTemplate.nextCount(counter_key));
+    }
+
+    // Hex string to byte array. null if invalid
+    static byte[] getByteArrayFromHexString(String s) {
+        return HexDecoder.decode(s);
     }
 
 }
@@ -0,0 +1,110 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Class responsible for writing a message in chunks no larger than the link's
+ * packet size, paced so that slow receivers are not overrun. The Arduino sketch only buffers
+ * AR_LEN (150) bytes, and its SoftwareSerial drops bytes that arrive faster than it reads.
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+public class ChunkedWriter {
+    // Defaults, which split messages at the link's packet size and write them without pauses
+    public final static int DEFAULT_CHUNK_BYTES = 0;
+    public final static long DEFAULT_GAP_MS = 0;
+    public final static int DEFAULT_BYTES_PER_SECOND = 0;
+
+    // Largest chunk, or 0 to use the link's packet size
+    private volatile int chunk_bytes = DEFAULT_CHUNK_BYTES;
+    // Pause after each chunk but the last
+    private volatile long gap_ms = DEFAULT_GAP_MS;
+    // Rate the chunks may not exceed on average, or 0 for no limit
+    private volatile int bytes_per_second = DEFAULT_BYTES_PER_SECOND;
+
+    // Method to set the largest chunk. 0 uses the link's packet size, or writes the message
+    // at once if that is unknown
+    public void setChunkBytes(int chunk_bytes) {
+        this.chunk_bytes = Math.max(0, chunk_bytes);
+    }
+
+    // Method to set how long to pause between chunks
+    public void setGapMs(long gap_ms) {
+        this.gap_ms = Math.max(0, gap_ms);
+    }
+
+    // Method to set the average rate to pace the chunks at, for instance the baud rate of the
+    // receiver divided by 10. The first chunk is always written at once
+    public void setBytesPerSecond(int bytes_per_second) {
+        this.bytes_per_second = Math.max(0, bytes_per_second);
+    }
+
+    // Method that returns the chunk size to use on a link with the given packet size (0 if
+    // unknown) for a message of the given length
+    int getChunkSize(int max_packet_size, int length) {
+        int size = chunk_bytes > 0 ? chunk_bytes : max_packet_size;
+        return size > 0 ? Math.min(size, Math.max(1, length)) : Math.max(1, length);
+    }
+
+    // Method that writes and flushes the bytes chunk by chunk, adding the time spent writing
+    // (including pauses) and flushing, and the number of chunks, to the result
+    public void write(OutputStream out, final byte[] bytes, int max_packet_size,
+                      SendResult result) throws IOException {
+        final int chunk = getChunkSize(max_packet_size, bytes.length);
+        final long gap_ms = this.gap_ms;
+        final int bytes_per_second = this.bytes_per_second;
+
+        if (chunk >= bytes.length) {
+            long start = System.currentTimeMillis();
+            out.write(bytes);
+            long written = System.currentTimeMillis();
+            out.flush();
+            result.write_ms += written - start;
+            result.flush_ms += System.currentTimeMillis() - written;
+            result.chunks += 1;
+            return;
+        }
+
+        final long start = System.currentTimeMillis();
+        long flush_ms = 0;
+        for (int offset = 0; offset < bytes.length; offset += chunk) {
+            if (offset > 0) {
+                pause(gap_ms);
+                if (bytes_per_second > 0) {
+                    // Credits accumulate at the given rate, with one chunk's worth up front:
+                    // wait until everything sent so far has been paid for
+                    long due = start + 1000L * offset / bytes_per_second;
+                    pause(due - System.currentTimeMillis());
+                }
+            }
+
+            out.write(bytes, offset, Math.min(chunk, bytes.length - offset));
+            // Flush each chunk, so that it goes out as its own packet before the pause
+            long written = System.currentTimeMillis();
+            out.flush();
+            flush_ms += System.currentTimeMillis() - written;
+            result.chunks += 1;
+        }
+
+        // Pauses count as writing time, so that write_ms + flush_ms is the whole write
+        result.write_ms += System.currentTimeMillis() - start - flush_ms;
+        result.flush_ms += flush_ms;
+    }
+
+    private static void pause(long ms) throws InterruptedIOException {
+        if (ms <= 0) {
+            return;
+        }
+
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while pacing write");
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Per-device circuit breaker for connecting. After a number of consecutive
+ * failed connects the breaker opens, and connects to the device fail at once instead of
+ * trying every strategy again. Once a backoff has passed, a single connect is let through
+ * as a probe: if it succeeds the breaker closes, otherwise it opens again for twice as long.
+ * Backoffs are jittered, so that several devices do not all probe at the same time.
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class CircuitBreaker {
+    // Tag for logging
+    private final static String TAG = "CircuitBreaker";
+
+    // Defaults: open after 3 consecutive failures, and probe after 5 seconds, doubling up to
+    // 5 minutes
+    public final static int DEFAULT_FAILURES = 3;
+    public final static long DEFAULT_BASE_BACKOFF_MS = 5 * 1000;
+    public final static long DEFAULT_MAX_BACKOFF_MS = 5 * 60 * 1000;
+
+    // States, as reported to the host
+    public final static String STATE_CLOSED = "closed";
+    public final static String STATE_OPEN = "open";
+    public final static String STATE_HALF_OPEN = "half_open";
+
+    // State of the breaker of one device
+    private static class Device {
+        String state = STATE_CLOSED;
+        // Consecutive failures while closed
+        int failures = 0;
+        // Times opened since last closed, which sets the backoff
+        int opens = 0;
+        // When the next probe may be made, while open
+        long retry_at = 0;
+    }
+
+    private final Map<String, Device> devices = new HashMap<>();
+    private final Random random = new Random();
+
+    private volatile int failure_threshold = DEFAULT_FAILURES;
+    private volatile long base_backoff_ms = DEFAULT_BASE_BACKOFF_MS;
+    private volatile long max_backoff_ms = DEFAULT_MAX_BACKOFF_MS;
+
+    private static String key(final String mac) {
+        return BundleManager.normalizeMac(mac);
+    }
+
+    // Method to set how many consecutive failed connects open the breaker. 0 disables it
+    public void setFailureThreshold(int failure_threshold) {
+        this.failure_threshold = Math.max(0, failure_threshold);
+    }
+
+    // Method to set the first backoff, and the longest one it doubles up to
+    public void setBackoffMs(long base_backoff_ms, long max_backoff_ms) {
+        this.base_backoff_ms = Math.max(1, base_backoff_ms);
+        this.max_backoff_ms = Math.max(this.base_backoff_ms, max_backoff_ms);
+    }
+
+    // Method that returns whether a connect to the device may be made now. While the breaker
+    // is open, only one probe is let through once the backoff has passed
+    public synchronized boolean allowConnect(final String mac) {
+        Device device = devices.get(key(mac));
+        if (device == null || device.state.equals(STATE_CLOSED) || failure_threshold == 0) {
+            return true;
+        }
+
+        if (device.state.equals(STATE_OPEN) && System.currentTimeMillis() >= device.retry_at) {
+            Log.i(TAG, "Probing " + mac);
+            device.state = STATE_HALF_OPEN;
+            return true;
+        }
+
+        Metrics.getInstance().getCounter(Metrics.BREAKER_REJECTED).incrementAndGet();
+        return false;
+    }
+
+    // Method that records a successful connect, which closes the breaker
+    public synchronized void onSuccess(final String mac) {
+        Device device = devices.remove(key(mac));
+        if (device != null && !device.state.equals(STATE_CLOSED)) {
+            Log.i(TAG, "Closing breaker of " + mac);
+            Metrics.getInstance().getCounter(Metrics.BREAKER_CLOSED).incrementAndGet();
+        }
+    }
+
+    // Method that records a failed connect, which opens the breaker after enough of them, or
+    // reopens it for longer after a failed probe
+    public synchronized void onFailure(final String mac) {
+        if (failure_threshold == 0) {
+            return;
+        }
+
+        Device device = devices.get(key(mac));
+        if (device == null) {
+            device = new Device();
+            devices.put(key(mac), device);
+        }
+
+        if (device.state.equals(STATE_CLOSED)) {
+            ++device.failures;
+            if (device.failures < failure_threshold) {
+                return;
+            }
+        }
+
+        ++device.opens;
+        long backoff_ms = getBackoffMs(device.opens);
+        device.state = STATE_OPEN;
+        device.retry_at = System.currentTimeMillis() + backoff_ms;
+        Log.w(TAG, "Opening breaker of " + mac + " for " + backoff_ms + " ms");
+        Metrics.getInstance().getCounter(Metrics.BREAKER_OPENED).incrementAndGet();
+    }
+
+    // Method that returns the jittered backoff after the breaker has opened the given number
+    // of times: half the doubled backoff, plus a random part of the other half
+    private long getBackoffMs(int opens) {
+        long backoff_ms = base_backoff_ms;
+        for (int i = 1; i < opens && backoff_ms < max_backoff_ms; ++i) {
+            backoff_ms *= 2;
+        }
+        backoff_ms = Math.min(backoff_ms, max_backoff_ms);
+
+        long half = backoff_ms / 2;
+        return half + (long) (random.nextDouble() * (backoff_ms - half));
+    }
+
+    // Method that closes the breaker of the device, for instance once it is known to be in
+    // range again
+    public synchronized void reset(final String mac) {
+        if (devices.remove(key(mac)) != null) {
+            Log.i(TAG, "Resetting breaker of " + mac);
+        }
+    }
+
+    // Method that returns the state of the breaker of the device
+    public synchronized String getState(final String mac) {
+        Device device = devices.get(key(mac));
+        return device != null ? device.state : STATE_CLOSED;
+    }
+
+    // Method that returns how long until the next probe of the device may be made, or 0 if
+    // the breaker is not open
+    public synchronized long getRetryInMs(final String mac) {
+        Device device = devices.get(key(mac));
+        if (device == null || !device.state.equals(STATE_OPEN)) {
+            return 0;
+        }
+        return Math.max(0, device.retry_at - System.currentTimeMillis());
+    }
+}
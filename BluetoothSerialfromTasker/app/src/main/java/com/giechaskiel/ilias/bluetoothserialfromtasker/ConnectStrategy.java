@@ -0,0 +1,62 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: The different ways of opening an RFCOMM socket to a paired device
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.util.UUID;
+
+public enum ConnectStrategy {
+    SECURE {
+        @Override
+        public BluetoothSocket createSocket(BluetoothDevice device) throws IOException {
+            return device.createRfcommSocketToServiceRecord(MY_UUID);
+        }
+    },
+
+    INSECURE {
+        @Override
+        public BluetoothSocket createSocket(BluetoothDevice device) throws IOException {
+            return device.createInsecureRfcommSocketToServiceRecord(MY_UUID);
+        }
+    },
+
+    LEGACY {
+        @Override
+        public BluetoothSocket createSocket(BluetoothDevice device) throws IOException {
+            // Android has changed its behavior
+            // https://stackoverflow.com/questions/18657427
+            // so using workaround from
+            // https://stackoverflow.com/questions/25698585
+            try {
+                return (BluetoothSocket) device.getClass().getMethod("createRfcommSocket",
+                        new Class[]{int.class}).invoke(device, 1);
+            } catch (Exception e) {
+                throw new IOException("Legacy socket unavailable", e);
+            }
+        }
+    };
+
+    // UUID necessary for creating socket (Serial Port Profile)
+    private final static UUID MY_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    // Method that creates an unconnected socket to the device using this strategy
+    public abstract BluetoothSocket createSocket(BluetoothDevice device) throws IOException;
+
+    // The order in which strategies are tried when nothing has been learned about a device
+    public static String[] defaultOrder() {
+        ConnectStrategy[] values = values();
+        String[] names = new String[values.length];
+        for (int i = 0; i < values.length; ++i) {
+            names[i] = values[i].name();
+        }
+        return names;
+    }
+}
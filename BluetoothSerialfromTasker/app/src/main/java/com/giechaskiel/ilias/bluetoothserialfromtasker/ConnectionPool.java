@@ -0,0 +1,183 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Class responsible for keeping connections open between messages
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+public class ConnectionPool {
+    // Tag for logging
+    private final static String TAG = "ConnectionPool";
+
+    // Default time an idle connection is kept open
+    public final static long DEFAULT_KEEP_ALIVE_MS = 30 * 1000;
+
+    // An idle connection, together with when it was last used and how long it may stay idle
+    private static class Entry {
+        final Transport.Connection connection;
+        final long last_used;
+        final long keep_alive_ms;
+
+        Entry(Transport.Connection connection, long last_used, long keep_alive_ms) {
+            this.connection = connection;
+            this.last_used = last_used;
+            this.keep_alive_ms = keep_alive_ms;
+        }
+
+        boolean isExpired(long now) {
+            return now - last_used >= keep_alive_ms;
+        }
+    }
+
+    // Idle connections keyed by MAC. A connection is removed while in use, so that
+    // concurrent sends to the same device never share one
+    private final Map<String, Entry> idle = new HashMap<>();
+
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static String key(final String mac) {
+        return BundleManager.normalizeMac(mac);
+    }
+
+    // Method that returns a healthy idle connection for the given MAC, or null if there is none.
+    // The caller owns the connection until it calls release() or closes it.
+    public Transport.Connection acquire(final String mac) {
+        Entry entry;
+        synchronized (this) {
+            entry = idle.remove(key(mac));
+        }
+
+        if (entry == null) {
+            return null;
+        }
+
+        if (entry.isExpired(System.currentTimeMillis()) || !isHealthy(entry.connection)) {
+            Log.i(TAG, "Discarding stale pooled connection");
+            closeConnection(entry.connection);
+            return null;
+        }
+
+        Log.i(TAG, "Reusing pooled connection");
+        return entry.connection;
+    }
+
+    // Method that returns a connection to the pool, where it stays open for keep_alive_ms
+    // before being closed. A non-positive keep_alive_ms closes it immediately.
+    public void release(final String mac, Transport.Connection connection, long keep_alive_ms) {
+        if (connection == null) {
+            return;
+        }
+
+        if (keep_alive_ms <= 0) {
+            closeConnection(connection);
+            return;
+        }
+
+        Entry previous;
+        synchronized (this) {
+            previous = idle.put(key(mac), new Entry(connection, System.currentTimeMillis(), keep_alive_ms));
+        }
+
+        // Only keep the most recently used connection per device
+        if (previous != null && previous.connection != connection) {
+            closeConnection(previous.connection);
+        }
+
+        evictor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, keep_alive_ms, TimeUnit.MILLISECONDS);
+    }
+
+    // Method that closes all connections that have been idle for longer than their keep-alive
+    private void evictIdle() {
+        final long now = System.currentTimeMillis();
+        List<Transport.Connection> expired = new ArrayList<>();
+
+        synchronized (this) {
+            Iterator<Entry> it = idle.values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.isExpired(now)) {
+                    expired.add(entry.connection);
+                    it.remove();
+                }
+            }
+        }
+
+        for (Transport.Connection connection : expired) {
+            Log.i(TAG, "Evicting idle connection");
+            closeConnection(connection);
+        }
+    }
+
+    // Method that closes all idle connections, for instance when Bluetooth is switched off
+    public void evictAll() {
+        List<Transport.Connection> all = new ArrayList<>();
+        synchronized (this) {
+            for (Entry entry : idle.values()) {
+                all.add(entry.connection);
+            }
+            idle.clear();
+        }
+
+        for (Transport.Connection connection : all) {
+            closeConnection(connection);
+        }
+    }
+
+    // Method that returns the number of idle connections kept open
+    public synchronized int size() {
+        return idle.size();
+    }
+
+    // Method that checks whether a connection can still be used. The remote end closing the
+    // connection only shows up as an error when touching the stream, so probe it cheaply.
+    private static boolean isHealthy(Transport.Connection connection) {
+        if (!connection.isConnected()) {
+            return false;
+        }
+
+        try {
+            connection.getInputStream().available();
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Pooled connection failed health check", e);
+            return false;
+        }
+    }
+
+    // Method to close connection, and catch any errors
+    private static void closeConnection(Transport.Connection connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Exception trying to close connection", e);
+        }
+    }
+}
@@ -0,0 +1,413 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Foreground service that owns the send queue, and with it the pooled
+ * connections and sending threads. The receiver hands it the compiled message of each fire,
+ * so that connections outlive the receiver and later sends to the same device reuse them.
+ * It also replays the messages spooled for a device once the device is reachable again,
+ * checking the spool on its own threads, and opens connections ahead of time to devices
+ * that are likely to be sent to.
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+public class ConnectionService extends Service {
+    // Tag for logging
+    private final static String TAG = "ConnectionService";
+
+    // Action and extras of the intent that hands a fire to the service
+    final static String ACTION_SEND = BundleManager.PACKAGE_NAME + ".SEND";
+    private final static String EXTRA_FIRE_INTENT = BundleManager.PACKAGE_NAME + ".FIRE_INTENT";
+    private final static String EXTRA_BUNDLE = BundleManager.PACKAGE_NAME + ".BUNDLE";
+    private final static String EXTRA_BYTES = BundleManager.PACKAGE_NAME + ".BYTES";
+    private final static String EXTRA_START = BundleManager.PACKAGE_NAME + ".START";
+    private final static String EXTRA_DEADLINE = BundleManager.PACKAGE_NAME + ".DEADLINE";
+    private final static String EXTRA_SYNCHRONOUS = BundleManager.PACKAGE_NAME + ".SYNCHRONOUS";
+    private final static String EXTRA_RETURN_VARIABLES = BundleManager.PACKAGE_NAME + ".RETURN_VARIABLES";
+
+    // Action and extra of the intent that sends the spooled messages of a device, or of all
+    // devices without the extra
+    final static String ACTION_REPLAY = BundleManager.PACKAGE_NAME + ".REPLAY";
+    private final static String EXTRA_MAC = BundleManager.PACKAGE_NAME + ".MAC";
+
+    // Action of the intent that warms connections to the device of EXTRA_MAC, or to all known
+    // devices without it
+    final static String ACTION_WARM = BundleManager.PACKAGE_NAME + ".WARM";
+
+    // Action and extra of the intent that tells the service that the device of EXTRA_MAC, or
+    // Bluetooth as a whole without it, is reachable again. Its spooled messages are replayed,
+    // or if there are none, its connections warmed when EXTRA_WARM is set
+    final static String ACTION_REACHABLE = BundleManager.PACKAGE_NAME + ".REACHABLE";
+    private final static String EXTRA_WARM = BundleManager.PACKAGE_NAME + ".WARM_IF_NOT_SPOOLED";
+
+    private final static int NOTIFICATION_ID = 1;
+
+    // Extra time after the keep-alive before checking whether the pool has emptied, so that
+    // the check runs after the eviction it waits for
+    private final static long IDLE_CHECK_SLACK_MS = 1000;
+
+    // Process-wide queue, so that pooled connections are shared by concurrent fires for the
+    // same device, and by the receiver if the service cannot be started
+    private static SendQueue queue;
+
+    // Method that returns the queue that sends to paired devices over RFCOMM
+    static synchronized SendQueue getQueue(Context context) {
+        if (queue == null) {
+            MessageSender sender = new MessageSender(new RfcommTransport(), new ConnectionPool(),
+                    StrategyLearner.getInstance(context));
+            queue = new SendQueue(sender);
+        }
+
+        queue.setKeepAliveMs(PluginSettings.getKeepAliveMs(context));
+        queue.setCoalesceMs(PluginSettings.getCoalesceMs(context));
+        queue.setParallelism(PluginSettings.getParallelDevices(context));
+        queue.getSender().getConnector().setHedgeDelayMs(PluginSettings.getHedgeDelayMs(context));
+
+        CircuitBreaker breaker = queue.getSender().getBreaker();
+        breaker.setFailureThreshold(PluginSettings.getBreakerFailures(context));
+        breaker.setBackoffMs(CircuitBreaker.DEFAULT_BASE_BACKOFF_MS,
+                PluginSettings.getBreakerMaxBackoffMs(context));
+
+        ChunkedWriter writer = queue.getSender().getWriter();
+        writer.setChunkBytes(PluginSettings.getChunkBytes(context));
+        writer.setGapMs(PluginSettings.getChunkGapMs(context));
+        writer.setBytesPerSecond(PluginSettings.getBytesPerSecond(context));
+        return queue;
+    }
+
+    // Method that returns the queue if it has been created, without creating it
+    static synchronized SendQueue peekQueue() {
+        return queue;
+    }
+
+    // Method that returns the spool of messages waiting for their device
+    static OfflineSpool getSpool(Context context) {
+        OfflineSpool spool = OfflineSpool.getInstance(context);
+        spool.setTtlMs(PluginSettings.getSpoolTtlMs(context));
+        spool.setMaxBytes(PluginSettings.getSpoolMaxBytes(context));
+        return spool;
+    }
+
+    // Method that returns the warmer of connections to known devices
+    static ConnectionWarmer getWarmer(Context context) {
+        ConnectionWarmer warmer = ConnectionWarmer.getInstance(context);
+        warmer.setPerHour(PluginSettings.getPrewarmPerHour(context));
+        warmer.setHoldMs(PluginSettings.getPrewarmHoldMs(context));
+        return warmer;
+    }
+
+    // Method that hands a fire to the service. Returns false if the service could not be
+    // started, in which case the caller has to send the message itself
+    static boolean fire(Context context, final Intent fire_intent, final Bundle bundle,
+                        final byte[] bytes, long start, long deadline, boolean synchronous,
+                        boolean return_variables) {
+        Intent intent = new Intent(context, ConnectionService.class);
+        intent.setAction(ACTION_SEND);
+        intent.putExtra(EXTRA_FIRE_INTENT, fire_intent);
+        intent.putExtra(EXTRA_BUNDLE, bundle);
+        intent.putExtra(EXTRA_BYTES, bytes);
+        intent.putExtra(EXTRA_START, start);
+        intent.putExtra(EXTRA_DEADLINE, deadline);
+        intent.putExtra(EXTRA_SYNCHRONOUS, synchronous);
+        intent.putExtra(EXTRA_RETURN_VARIABLES, return_variables);
+        return start(context, intent);
+    }
+
+    // Method that asks the service to send the messages spooled for the device, or for all
+    // devices if mac is null. Returns false if the service could not be started
+    static boolean replay(Context context, final String mac) {
+        Intent intent = new Intent(context, ConnectionService.class);
+        intent.setAction(ACTION_REPLAY);
+        if (mac != null) {
+            intent.putExtra(EXTRA_MAC, mac);
+        }
+        return start(context, intent);
+    }
+
+    // Method that asks the service to open connections ahead of time to the device, or to
+    // all known devices if mac is null. Returns false if the service could not be started
+    static boolean warm(Context context, final String mac) {
+        Intent intent = new Intent(context, ConnectionService.class);
+        intent.setAction(ACTION_WARM);
+        if (mac != null) {
+            intent.putExtra(EXTRA_MAC, mac);
+        }
+        return start(context, intent);
+    }
+
+    // Method that tells the service that the device, or Bluetooth if mac is null, is reachable
+    // again, so that the spool is read on the service's threads rather than the caller's.
+    // Returns false if the service could not be started
+    static boolean reachable(Context context, final String mac, boolean warm) {
+        Intent intent = new Intent(context, ConnectionService.class);
+        intent.setAction(ACTION_REACHABLE);
+        if (mac != null) {
+            intent.putExtra(EXTRA_MAC, mac);
+        }
+        intent.putExtra(EXTRA_WARM, warm);
+        return start(context, intent);
+    }
+
+    // Method that asks the service to warm connections like warm(), unless warming is
+    // disabled or the device (or every device, if mac is null) has never been sent to
+    static void warmIfKnown(Context context, final String mac) {
+        ConnectionWarmer warmer = getWarmer(context);
+        if (!warmer.isEnabled() || (mac != null ? !warmer.isKnown(mac)
+                : warmer.getKnownDevices().isEmpty())) {
+            return;
+        }
+
+        Log.i(TAG, "Warming connections");
+        warm(context, mac);
+    }
+
+    private static boolean start(Context context, final Intent intent) {
+        try {
+            ComponentName name = context.startService(intent);
+            if (name == null) {
+                Log.e(TAG, "Service not found");
+                return false;
+            }
+            return true;
+        } catch (SecurityException | IllegalStateException e) {
+            Log.e(TAG, "Could not start service", e);
+            return false;
+        }
+    }
+
+    // Fires are sent on their own threads, since each waits for its devices. The state below
+    // is only touched on the main thread
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, TAG);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private Handler handler;
+    private int active = 0;
+
+    private final Runnable idle_check = new Runnable() {
+        @Override
+        public void run() {
+            stopIfIdle();
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        handler = new Handler(Looper.getMainLooper());
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        final String action = intent != null ? intent.getAction() : null;
+        final Runnable task;
+        if (ACTION_REACHABLE.equals(action)) {
+            // Only reads the spool, and starts the replay or warm-up it finds is needed, so it
+            // does not go to the foreground
+            runInBackground(readReachable(intent));
+            return START_NOT_STICKY;
+        } else if (ACTION_SEND.equals(action)) {
+            task = readFire(intent);
+        } else if (ACTION_REPLAY.equals(action)) {
+            task = readReplay(intent);
+        } else if (ACTION_WARM.equals(action)) {
+            task = readWarm(intent);
+        } else {
+            Log.w(TAG, "Unexpected start command");
+            task = null;
+        }
+
+        if (task == null) {
+            scheduleIdleCheck();
+            return START_NOT_STICKY;
+        }
+
+        // Stay in the foreground for as long as there is work or open connections, so that
+        // the process is not killed in between
+        startForeground(NOTIFICATION_ID, buildNotification());
+        runInBackground(task);
+        return START_NOT_STICKY;
+    }
+
+    // Method that runs the task on its own thread, keeping the service from stopping until
+    // it is done
+    private void runInBackground(final Runnable task) {
+        handler.removeCallbacks(idle_check);
+        ++active;
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            --active;
+                            scheduleIdleCheck();
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    // Method that returns the task sending the fire of the intent, or null if it is invalid
+    private Runnable readFire(Intent intent) {
+        final Intent fire_intent;
+        final Bundle bundle;
+        try {
+            fire_intent = intent.getParcelableExtra(EXTRA_FIRE_INTENT);
+            bundle = intent.getBundleExtra(EXTRA_BUNDLE);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Could not read fire", e);
+            return null;
+        }
+
+        final byte[] bytes = intent.getByteArrayExtra(EXTRA_BYTES);
+        final long start = intent.getLongExtra(EXTRA_START, System.currentTimeMillis());
+        final long deadline = intent.getLongExtra(EXTRA_DEADLINE, Connector.NO_DEADLINE);
+        final boolean synchronous = intent.getBooleanExtra(EXTRA_SYNCHRONOUS, false);
+        final boolean return_variables = intent.getBooleanExtra(EXTRA_RETURN_VARIABLES, false);
+
+        final Context app_context = getApplicationContext();
+        return new Runnable() {
+            @Override
+            public void run() {
+                SettingReceiver.fire(app_context, fire_intent, bundle, bytes, start, deadline,
+                        synchronous, return_variables);
+            }
+        };
+    }
+
+    // Method that returns the task replaying the spooled messages the intent asks for
+    private Runnable readReplay(Intent intent) {
+        final String mac = intent.getStringExtra(EXTRA_MAC);
+        final Context app_context = getApplicationContext();
+        return new Runnable() {
+            @Override
+            public void run() {
+                SettingReceiver.replay(app_context, mac);
+            }
+        };
+    }
+
+    // Method that returns the task replaying the spooled messages of the device the intent
+    // says is reachable, or else warming its connections if the intent asks for it
+    private Runnable readReachable(Intent intent) {
+        final String mac = intent.getStringExtra(EXTRA_MAC);
+        final boolean warm = intent.getBooleanExtra(EXTRA_WARM, false);
+        final Context app_context = getApplicationContext();
+        return new Runnable() {
+            @Override
+            public void run() {
+                OfflineSpool spool = getSpool(app_context);
+                if (mac != null ? spool.hasEntries(mac) : !spool.getMacs().isEmpty()) {
+                    Log.i(TAG, "Reachable again, replaying spooled messages");
+                    replay(app_context, mac);
+                } else if (warm) {
+                    warmIfKnown(app_context, mac);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void onDestroy() {
+        handler.removeCallbacks(idle_check);
+        executor.shutdown();
+        if (queue != null) {
+            queue.getSender().getPool().evictAll();
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    // Method that returns the task warming the connections the intent asks for
+    private Runnable readWarm(Intent intent) {
+        final String mac = intent.getStringExtra(EXTRA_MAC);
+        final Context app_context = getApplicationContext();
+        return new Runnable() {
+            @Override
+            public void run() {
+                ConnectionWarmer warmer = getWarmer(app_context);
+                warmer.warm(getQueue(app_context), mac != null
+                        ? BundleManager.getMacList(mac)
+                        : warmer.getKnownDevices());
+                Metrics.getInstance(app_context).save(app_context);
+            }
+        };
+    }
+
+    // Method that checks whether the service can stop once the connections of the last fire
+    // have had time to be evicted
+    private void scheduleIdleCheck() {
+        handler.removeCallbacks(idle_check);
+        if (active > 0) {
+            return;
+        }
+
+        long keep_alive_ms = Math.max(0, PluginSettings.getKeepAliveMs(this));
+        handler.postDelayed(idle_check, keep_alive_ms > 0 ? keep_alive_ms + IDLE_CHECK_SLACK_MS : 0);
+    }
+
+    // Method that stops the service if nothing is being sent and no connection is kept open
+    private void stopIfIdle() {
+        if (active > 0) {
+            return;
+        }
+
+        if (queue != null && queue.getSender().getPool().size() > 0) {
+            // a connection was released after the check was scheduled
+            scheduleIdleCheck();
+            return;
+        }
+
+        Log.i(TAG, "Idle, stopping");
+        stopForeground(true);
+        stopSelf();
+    }
+
+    // Method that builds the notification shown while the service is in the foreground, which
+    // opens the statistics when tapped
+    private Notification buildNotification() {
+        Intent stats = new Intent(this, StatsActivity.class);
+        PendingIntent content = PendingIntent.getActivity(this, 0, stats, 0);
+
+        return new Notification.Builder(this)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.plugin_name))
+                .setContentText(getString(R.string.service_text))
+                .setContentIntent(content)
+                .setPriority(Notification.PRIORITY_MIN)
+                .setOngoing(true)
+                .build();
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Class responsible for opening connections to devices before they are needed,
+ * when the phone comes near them or is unlocked, so that the next message finds a pooled
+ * connection. Only devices the plugin has sent to are warmed, and only as many times per
+ * hour as the budget allows, since each warm-up costs a connect that may go unused.
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+public class ConnectionWarmer {
+    // Tag for logging
+    private final static String TAG = "ConnectionWarmer";
+
+    // Name of the preferences file holding the known devices and the budget
+    private final static String PREFS_NAME = BundleManager.PACKAGE_NAME + ".warmer";
+
+    // Defaults: no warm-ups until a budget is set, and warmed connections held for as long
+    // as the default keep-alive
+    public final static int DEFAULT_PER_HOUR = 0;
+    public final static long DEFAULT_HOLD_MS = ConnectionPool.DEFAULT_KEEP_ALIVE_MS;
+
+    // Number of most recently used devices that are warmed
+    public final static int MAX_DEVICES = 4;
+
+    // How long a warm-up may try to connect
+    private final static long CONNECT_TIMEOUT_MS = 10 * 1000;
+
+    private final static long WINDOW_MS = 60 * 60 * 1000;
+
+    // Preference keys: the last use of each device, as in "used.00:11:22:AA:BB:CC", and the
+    // start and number of warm-ups of the current hour
+    private final static String KEY_USED = "used.";
+    private final static String KEY_WINDOW_START = "window_start";
+    private final static String KEY_WINDOW_COUNT = "window_count";
+
+    private static ConnectionWarmer instance;
+
+    private final SharedPreferences prefs;
+    private volatile int per_hour = DEFAULT_PER_HOUR;
+    private volatile long hold_ms = DEFAULT_HOLD_MS;
+
+    // Method that creates a warmer backed by the given preferences. Most callers should use
+    // the process-wide getInstance() instead
+    public ConnectionWarmer(SharedPreferences prefs) {
+        this.prefs = prefs;
+    }
+
+    public static synchronized ConnectionWarmer getInstance(Context context) {
+        if (instance == null) {
+            instance = new ConnectionWarmer(context.getApplicationContext()
+                    .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
+        }
+        return instance;
+    }
+
+    // Method to set how many connections may be warmed per hour. 0 disables warming
+    public void setPerHour(int per_hour) {
+        this.per_hour = Math.max(0, per_hour);
+    }
+
+    // Method to set how long a warmed connection is kept open waiting for a message
+    public void setHoldMs(long hold_ms) {
+        this.hold_ms = Math.max(0, hold_ms);
+    }
+
+    public boolean isEnabled() {
+        return per_hour > 0 && hold_ms > 0;
+    }
+
+    // Method that remembers that a message was sent to the device, which makes it a device
+    // worth warming. Only the MAX_DEVICES most recent devices are kept
+    public synchronized void recordUse(final String mac) {
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.putLong(KEY_USED + BundleManager.normalizeMac(mac), System.currentTimeMillis());
+
+        List<String> known = getKnownDevices(Integer.MAX_VALUE);
+        known.remove(BundleManager.normalizeMac(mac));
+        for (int i = MAX_DEVICES - 1; i < known.size(); ++i) {
+            editor.remove(KEY_USED + known.get(i));
+        }
+        editor.apply();
+    }
+
+    // Method that returns the devices worth warming, most recently used first
+    public List<String> getKnownDevices() {
+        return getKnownDevices(MAX_DEVICES);
+    }
+
+    private synchronized List<String> getKnownDevices(int max) {
+        final Map<String, ?> all = prefs.getAll();
+        List<String> known = new ArrayList<>();
+        for (String key : all.keySet()) {
+            if (key.startsWith(KEY_USED)) {
+                known.add(key.substring(KEY_USED.length()));
+            }
+        }
+
+        Collections.sort(known, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                long used_a = getLastUse(all, a);
+                long used_b = getLastUse(all, b);
+                return used_a < used_b ? 1 : (used_a == used_b ? 0 : -1);
+            }
+        });
+        return known.size() > max ? new ArrayList<>(known.subList(0, max)) : known;
+    }
+
+    private static long getLastUse(final Map<String, ?> all, final String mac) {
+        Object used = all.get(KEY_USED + mac);
+        return used instanceof Long ? (Long) used : 0;
+    }
+
+    // Whether the device is one worth warming
+    public boolean isKnown(final String mac) {
+        return getKnownDevices().contains(BundleManager.normalizeMac(mac));
+    }
+
+    // Method that takes a warm-up from this hour's budget. Returns false if none is left
+    private synchronized boolean takeBudget() {
+        long now = System.currentTimeMillis();
+        long window_start = prefs.getLong(KEY_WINDOW_START, 0);
+        int count = prefs.getInt(KEY_WINDOW_COUNT, 0);
+        if (now - window_start >= WINDOW_MS || now < window_start) {
+            window_start = now;
+            count = 0;
+        }
+
+        if (count >= per_hour) {
+            return false;
+        }
+
+        prefs.edit()
+                .putLong(KEY_WINDOW_START, window_start)
+                .putInt(KEY_WINDOW_COUNT, count + 1)
+                .apply();
+        return true;
+    }
+
+    // Method that gives back a warm-up that did not need to connect
+    private synchronized void refundBudget() {
+        int count = prefs.getInt(KEY_WINDOW_COUNT, 0);
+        if (count > 0) {
+            prefs.edit().putInt(KEY_WINDOW_COUNT, count - 1).apply();
+        }
+    }
+
+    // Method that opens and pools connections to those of the devices worth warming, while
+    // the budget lasts. Devices with a send in progress, or used too recently for their
+    // connection to have been closed, are skipped
+    public void warm(SendQueue queue, final List<String> macs) {
+        for (String mac : macs) {
+            if (!isEnabled()) {
+                return;
+            }
+
+            String key = BundleManager.normalizeMac(mac);
+            long used = prefs.getLong(KEY_USED + key, 0);
+            if (used == 0 || !getKnownDevices().contains(key)) {
+                continue;
+            }
+
+            if (queue.isBusy(mac) || System.currentTimeMillis() - used < hold_ms) {
+                Log.i(TAG, "Not warming device in use " + mac);
+                continue;
+            }
+
+            if (!takeBudget()) {
+                Log.w(TAG, "Warm-up budget used up for this hour");
+                Metrics.getInstance().getCounter(Metrics.PREWARM_OVER_BUDGET).incrementAndGet();
+                return;
+            }
+
+            SendResult result = queue.getSender().warm(mac, hold_ms,
+                    System.currentTimeMillis() + CONNECT_TIMEOUT_MS);
+            if (result.error != null) {
+                Log.w(TAG, "Could not warm connection: " + result.error);
+                Metrics.getInstance().getCounter(Metrics.PREWARM_FAILED).incrementAndGet();
+            } else if (result.reused) {
+                refundBudget();
+            } else {
+                Log.i(TAG, "Warmed connection to " + mac + " in " + result.connect_ms + " ms");
+                Metrics.getInstance().getCounter(Metrics.PREWARM_CONNECTED).incrementAndGet();
+                Metrics.getInstance().recordLatency(Metrics.CONNECT_MS, mac, result.strategy,
+                        result.connect_ms);
+            }
+        }
+    }
+}
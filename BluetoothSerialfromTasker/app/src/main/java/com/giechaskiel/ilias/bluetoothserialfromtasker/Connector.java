@@ -0,0 +1,243 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Class responsible for establishing a connection to a device within a deadline,
+ * optionally racing the next strategy against one that is slow to connect
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+public class Connector {
+    // Tag for logging
+    private final static String TAG = "Connector";
+
+    // Deadline to use when the caller has none
+    public final static long NO_DEADLINE = Long.MAX_VALUE;
+
+    // Default time to wait for a strategy before also starting the next one. 0 disables hedging
+    public final static long DEFAULT_HEDGE_DELAY_MS = 0;
+
+    private final StrategyLearner learner;
+    private final Metrics metrics = Metrics.getInstance();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, TAG);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private volatile long hedge_delay_ms = DEFAULT_HEDGE_DELAY_MS;
+
+    // The learner may be null, in which case strategies are always tried in default order
+    public Connector(StrategyLearner learner) {
+        this.learner = learner;
+    }
+
+    // Method to set how long a strategy may take before the next one is started alongside it
+    public void setHedgeDelayMs(long hedge_delay_ms) {
+        this.hedge_delay_ms = hedge_delay_ms;
+    }
+
+    // Method that connects to the device, or returns null if no strategy succeeded before the
+    // deadline (in System.currentTimeMillis() time). Strategies are tried in the order learned
+    // for the device, one after the other, except that the next one is started early when the
+    // current one has not finished within the hedge delay. The first connection wins, and all
+    // others are closed, which aborts them if they are still connecting.
+    public Transport.Connection connect(final String mac, Transport.Device device, long deadline) {
+        final String[] default_order = device.getStrategies();
+        final List<String> order = new ArrayList<>();
+        if (learner != null) {
+            for (String strategy : learner.getOrder(mac, default_order)) {
+                order.add(strategy);
+            }
+        } else {
+            order.addAll(Arrays.asList(default_order));
+        }
+
+        final long hedge_ms = hedge_delay_ms;
+        final Race race = new Race();
+        int next = 0;
+        long last_start = 0;
+
+        synchronized (race) {
+            while (race.winner == null) {
+                long now = System.currentTimeMillis();
+                if (now >= deadline) {
+                    Log.w(TAG, "Connect timed out after " + race.failures + " failures");
+                    break;
+                }
+
+                boolean hedge_due = hedge_ms > 0 && now - last_start >= hedge_ms;
+                if (next < order.size() && (race.running == 0 || hedge_due)) {
+                    if (race.running > 0) {
+                        Log.i(TAG, "Hedging with " + order.get(next));
+                    }
+                    start(race, device, order.get(next++));
+                    last_start = now;
+                    continue;
+                }
+
+                if (race.running == 0) {
+                    // Every strategy failed
+                    break;
+                }
+
+                long wait_ms = deadline - now;
+                if (hedge_ms > 0 && next < order.size()) {
+                    wait_ms = Math.min(wait_ms, last_start + hedge_ms - now);
+                }
+
+                try {
+                    race.wait(Math.max(wait_ms, 1));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+
+        Attempt winner = race.finish();
+        if (winner == null) {
+            return null;
+        }
+
+        Log.i(TAG, "Successfully connected (" + winner.strategy + ")");
+        if (learner != null) {
+            learner.recordSuccess(mac, default_order, winner.strategy,
+                    race.failures, race.failed_ms);
+            Log.i(TAG, "Strategies for device: " + learner.describe(mac, default_order));
+        }
+        return winner.connection;
+    }
+
+    // Method that runs a connect attempt with the given strategy in the background
+    private void start(final Race race, final Transport.Device device, final String strategy) {
+        final Attempt attempt = new Attempt(strategy);
+        race.running++;
+        race.attempts.add(attempt);
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                Transport.Connection connection = null;
+                try {
+                    connection = device.createConnection(strategy);
+                    if (!race.register(attempt, connection)) {
+                        // The race was decided before the attempt got going
+                        closeConnection(connection);
+                        return;
+                    }
+
+                    connection.connect();
+                    if (!race.won(attempt)) {
+                        closeConnection(connection);
+                    }
+                    return;
+                } catch (IOException e) {
+                    Log.e(TAG, "Error creating socket (" + strategy + ")", e);
+                    metrics.recordConnectFailure(e);
+                } catch (Exception e) {
+                    Log.e(TAG, "Other socket error (" + strategy + "): ", e);
+                    metrics.recordConnectFailure(e);
+                }
+
+                if (connection != null) {
+                    closeConnection(connection);
+                }
+                race.failed(System.currentTimeMillis() - start);
+            }
+        });
+    }
+
+    // One connect attempt with one strategy
+    private static class Attempt {
+        final String strategy;
+        Transport.Connection connection;
+
+        Attempt(final String strategy) {
+            this.strategy = strategy;
+        }
+    }
+
+    // State shared between the connecting thread and its attempts, guarded by its own lock
+    private static class Race {
+        final List<Attempt> attempts = new ArrayList<>();
+        Attempt winner = null;
+        boolean finished = false;
+        int running = 0;
+        int failures = 0;
+        long failed_ms = 0;
+
+        // Method that records the connection of an attempt so that it can be cancelled.
+        // Returns false if the race is already over
+        synchronized boolean register(Attempt attempt, Transport.Connection connection) {
+            attempt.connection = connection;
+            return !finished;
+        }
+
+        // Method that records a connected attempt. Returns false if it was too late to win
+        synchronized boolean won(Attempt attempt) {
+            running--;
+            if (finished || winner != null) {
+                return false;
+            }
+            winner = attempt;
+            notifyAll();
+            return true;
+        }
+
+        synchronized void failed(long elapsed_ms) {
+            running--;
+            if (!finished) {
+                failures++;
+                failed_ms += elapsed_ms;
+            }
+            notifyAll();
+        }
+
+        // Method that ends the race and closes every connection but the winner's, which
+        // aborts attempts still connecting. Returns the winner, if any
+        Attempt finish() {
+            List<Transport.Connection> losers = new ArrayList<>();
+            Attempt result;
+            synchronized (this) {
+                finished = true;
+                result = winner;
+                for (Attempt attempt : attempts) {
+                    if (attempt != winner && attempt.connection != null) {
+                        losers.add(attempt.connection);
+                    }
+                }
+            }
+
+            for (Transport.Connection connection : losers) {
+                closeConnection(connection);
+            }
+            return result;
+        }
+    }
+
+    // Method to close connection, and catch any errors
+    private static void closeConnection(Transport.Connection connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Exception trying to close socket", e);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Process-wide index of paired devices keyed by normalized MAC, kept current
+ * by BluetoothEventReceiver instead of querying the adapter on every fire
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class DeviceIndex {
+    // Tag for logging
+    private final static String TAG = "DeviceIndex";
+
+    private static DeviceIndex instance;
+
+    // Paired devices in the order the adapter reported them
+    private final Map<String, BluetoothDevice> devices = new LinkedHashMap<>();
+
+    // Whether devices reflects the adapter. Only then can bond changes be applied to it
+    private boolean loaded = false;
+
+    private DeviceIndex() {
+    }
+
+    public static synchronized DeviceIndex getInstance() {
+        if (instance == null) {
+            instance = new DeviceIndex();
+        }
+        return instance;
+    }
+
+    // Method that fills the index from the adapter, if it is not already. Returns whether the
+    // index is usable, which requires Bluetooth to be switched on
+    private boolean ensureLoaded() {
+        if (loaded) {
+            return true;
+        }
+
+        BluetoothAdapter mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        if (mBluetoothAdapter == null || !mBluetoothAdapter.isEnabled()) {
+            return false;
+        }
+
+        Set<BluetoothDevice> bonded = mBluetoothAdapter.getBondedDevices();
+        if (bonded == null) {
+            return false;
+        }
+
+        devices.clear();
+        for (BluetoothDevice device : bonded) {
+            devices.put(BundleManager.normalizeMac(device.getAddress()), device);
+        }
+        loaded = true;
+        Log.i(TAG, "Indexed " + devices.size() + " paired devices");
+        return true;
+    }
+
+    // Method that returns the paired device with the given MAC in any case and with colons
+    // or dashes, or null if there is no such device. A device missing from the index is looked
+    // up again on the adapter, in case it was paired without the index hearing about it
+    public synchronized BluetoothDevice get(final String mac) {
+        if (mac == null || !ensureLoaded()) {
+            return null;
+        }
+
+        final String key = BundleManager.normalizeMac(mac);
+        BluetoothDevice device = devices.get(key);
+        if (device == null) {
+            loaded = false;
+            if (ensureLoaded()) {
+                device = devices.get(key);
+            }
+        }
+        return device;
+    }
+
+    // Method that returns a snapshot of all paired devices
+    public synchronized List<BluetoothDevice> getDevices() {
+        if (!ensureLoaded()) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(devices.values());
+    }
+
+    // Method that applies a bond state change broadcast to the index
+    public synchronized void onBondStateChanged(BluetoothDevice device, int state) {
+        if (!loaded || device == null) {
+            // Nothing to update: the next lookup loads the current state anyway
+            return;
+        }
+
+        final String key = BundleManager.normalizeMac(device.getAddress());
+        if (state == BluetoothDevice.BOND_BONDED) {
+            devices.put(key, device);
+        } else if (state == BluetoothDevice.BOND_NONE) {
+            devices.remove(key);
+        }
+    }
+
+    // Method that drops the index, for instance when Bluetooth is switched off, so that the
+    // next lookup reloads it from the adapter
+    public synchronized void invalidate() {
+        devices.clear();
+        loaded = false;
+    }
+}
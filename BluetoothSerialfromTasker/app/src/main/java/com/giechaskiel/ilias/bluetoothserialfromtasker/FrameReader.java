@@ -0,0 +1,135 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Class responsible for reading a reply frame from a device into a reusable
+ * buffer. Frames end like in read_incoming() of the Arduino sketch: at a delimiter byte
+ * (CR or LF by default), when the buffer is full, or after a timeout.
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+public class FrameReader {
+    // Defaults for the reply of an action, matching the Arduino sketch: commands end at CR or
+    // LF, and are at most AR_LEN (150) bytes long
+    public final static byte[] DEFAULT_DELIMITERS = {'\r', '\n'};
+    public final static int DEFAULT_MAX_BYTES = 150;
+    public final static long DEFAULT_TIMEOUT_MS = 1000;
+
+    // How often to check for input. Bluetooth streams have no read timeout, so waiting for
+    // input is done by polling available() rather than by blocking in read()
+    private final static long POLL_MS = 2;
+
+    // What ends a reply
+    public static class Request {
+        final byte[] delimiters;
+        final int max_bytes;
+        final long timeout_ms;
+
+        public Request(final byte[] delimiters, int max_bytes, long timeout_ms) {
+            this.delimiters = delimiters.clone();
+            this.max_bytes = Math.max(1, max_bytes);
+            this.timeout_ms = timeout_ms;
+        }
+    }
+
+    // Contents of the last frame, valid until the next read
+    private byte[] buffer = new byte[DEFAULT_MAX_BYTES];
+    private int length = 0;
+    private boolean complete = false;
+
+    // Whether each byte value is a delimiter, for the current request
+    private final boolean[] is_delimiter = new boolean[256];
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    // Whether the last frame ended at a delimiter or a full buffer, rather than a timeout
+    public boolean isComplete() {
+        return complete;
+    }
+
+    // Method that throws away any input that has already arrived, such as replies to earlier
+    // messages that nobody waited for
+    public void discardAvailable(InputStream in) throws IOException {
+        int available;
+        while ((available = in.available()) > 0) {
+            long skipped = in.skip(available);
+            if (skipped <= 0) {
+                // some streams do not support skip()
+                in.read(buffer, 0, Math.min(available, buffer.length));
+            }
+        }
+    }
+
+    // Method that reads one frame, waiting at most until the given time (in
+    // System.currentTimeMillis() time). Delimiters at the start of the input, left over from
+    // an earlier frame, are skipped. Bytes that arrive in the same chunk after the delimiter
+    // are dropped. Returns the length of the frame, which is also available from getLength()
+    public int read(InputStream in, final Request request, long until) throws IOException {
+        if (buffer.length < request.max_bytes) {
+            buffer = new byte[request.max_bytes];
+        }
+        for (int i = 0; i < is_delimiter.length; ++i) {
+            is_delimiter[i] = false;
+        }
+        for (byte delimiter : request.delimiters) {
+            is_delimiter[delimiter & 0xFF] = true;
+        }
+
+        length = 0;
+        complete = false;
+        while (true) {
+            int available = in.available();
+            if (available <= 0) {
+                long remaining = until - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return length;
+                }
+                pause(Math.min(remaining, POLL_MS));
+                continue;
+            }
+
+            int n = in.read(buffer, length, Math.min(available, request.max_bytes - length));
+            if (n < 0) {
+                throw new IOException("Connection closed while reading reply");
+            }
+
+            // Scan only the new bytes, moving them down past any leading delimiters
+            int end = length + n;
+            for (int i = length; i < end; ++i) {
+                if (is_delimiter[buffer[i] & 0xFF]) {
+                    if (length == 0) {
+                        continue;
+                    }
+                    complete = true;
+                    return length;
+                }
+                buffer[length++] = buffer[i];
+            }
+
+            if (length == request.max_bytes) {
+                complete = true;
+                return length;
+            }
+        }
+    }
+
+    private static void pause(long ms) throws InterruptedIOException {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for reply");
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Table-driven decoder of hex strings such as "0B AD F00D", which validates
+ * and decodes in a single pass without allocating intermediate strings. Also encodes bytes
+ * back into that form, for showing binary replies
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import java.util.Arrays;
+
+public final class HexDecoder {
+    // Marks in the lookup table for characters that are not hex digits
+    private final static byte INVALID = -1;
+    private final static byte SPACE = -2;
+
+    // Value of each ASCII character: 0-15 for hex digits in either case, SPACE for the
+    // characters matched by the regex \s, and INVALID for everything else
+    private final static byte[] VALUES = new byte[128];
+
+    static {
+        Arrays.fill(VALUES, INVALID);
+        for (int i = 0; i < 10; ++i) {
+            VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; ++i) {
+            VALUES['A' + i] = (byte) (10 + i);
+            VALUES['a' + i] = (byte) (10 + i);
+        }
+        for (char c : new char[]{' ', '\t', '\n', 0x0B, '\f', '\r'}) {
+            VALUES[c] = SPACE;
+        }
+    }
+
+    // Upper case digits, for encoding
+    private final static char[] DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private HexDecoder() {
+    }
+
+    private static int valueOf(char c) {
+        return c < VALUES.length ? VALUES[c] : INVALID;
+    }
+
+    // Method that returns the value of a single hex digit, or -1 if it is not one
+    static int digit(char c) {
+        int value = valueOf(c);
+        return value >= 0 ? value : -1;
+    }
+
+    // Method that returns the number of bytes the string decodes to, or -1 if it is not
+    // well-formed: it must have at least one digit, an even number of them, and only spaces
+    public static int decodedLength(final CharSequence s) {
+        if (s == null) {
+            return -1;
+        }
+
+        int digits = 0;
+        for (int i = 0; i < s.length(); ++i) {
+            int value = valueOf(s.charAt(i));
+            if (value >= 0) {
+                ++digits;
+            } else if (value == INVALID) {
+                return -1;
+            }
+        }
+
+        if (digits == 0 || digits % 2 != 0) {
+            return -1;
+        }
+        return digits / 2;
+    }
+
+    public static boolean isValid(final CharSequence s) {
+        return decodedLength(s) >= 0;
+    }
+
+    // Method that decodes the string into out starting at offset. Returns the number of bytes
+    // written, or -1 if the string is not well-formed or does not fit, in which case the
+    // contents of out past offset are unspecified
+    public static int decode(final CharSequence s, final byte[] out, int offset) {
+        if (s == null) {
+            return -1;
+        }
+
+        final int length = s.length();
+        int pos = offset;
+        int high = -1;
+
+        for (int i = 0; i < length; ++i) {
+            int value = valueOf(s.charAt(i));
+            if (value == SPACE) {
+                continue;
+            }
+            if (value == INVALID) {
+                return -1;
+            }
+
+            if (high < 0) {
+                high = value;
+            } else {
+                if (pos >= out.length) {
+                    return -1;
+                }
+                out[pos++] = (byte) ((high << 4) | value);
+                high = -1;
+            }
+        }
+
+        // need an even number of digits, and at least one byte
+        if (high >= 0 || pos == offset) {
+            return -1;
+        }
+        return pos - offset;
+    }
+
+    // Method that decodes the string into a new array, or null if it is not well-formed
+    public static byte[] decode(final CharSequence s) {
+        if (s == null) {
+            return null;
+        }
+
+        // Upper bound on the output; only trimmed when the string contains spaces
+        byte[] bytes = new byte[s.length() / 2];
+        int written = decode(s, bytes, 0);
+        if (written < 0) {
+            return null;
+        }
+        return written == bytes.length ? bytes : Arrays.copyOf(bytes, written);
+    }
+
+    // Method that encodes length bytes of the array starting at offset as hex, with a space
+    // between bytes (as in "0B AD F0 0D"), so that the result can be decoded again
+    public static String encode(final byte[] bytes, int offset, int length) {
+        if (length <= 0) {
+            return "";
+        }
+
+        char[] chars = new char[3 * length - 1];
+        int pos = 0;
+        for (int i = offset; i < offset + length; ++i) {
+            if (pos > 0) {
+                chars[pos++] = ' ';
+            }
+            chars[pos++] = DIGITS[(bytes[i] >> 4) & 0xF];
+            chars[pos++] = DIGITS[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Lock-free histogram of non-negative values with logarithmic buckets, in the
+ * style of HdrHistogram: exact below 8, and within 12.5% above
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class Histogram {
+    // Each power of two is split into 2^SUB_BITS buckets
+    private final static int SUB_BITS = 3;
+    private final static int SUB_COUNT = 1 << SUB_BITS;
+
+    // Values from 2^MAX_EXPONENT (about 70 minutes, in milliseconds) go in the last bucket
+    private final static int MAX_EXPONENT = 22;
+    final static int BUCKETS = (MAX_EXPONENT - SUB_BITS + 1) * SUB_COUNT + SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    // Method that returns the bucket of a value
+    static int bucket(long value) {
+        if (value < SUB_COUNT) {
+            return value < 0 ? 0 : (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    // Method that returns the largest value that falls in the bucket
+    static long highestInBucket(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+
+        int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+        long sub = bucket % SUB_COUNT;
+        long low = (SUB_COUNT + sub) << (exponent - SUB_BITS);
+        return low + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        counts.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) total.get() / n;
+    }
+
+    // Method that returns the value below which the given fraction (0 to 1) of the values
+    // fall, rounded up to the end of its bucket and capped at the largest value seen
+    public long getPercentile(double fraction) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                // The last bucket is open-ended
+                return i == BUCKETS - 1 ? max.get() : Math.min(highestInBucket(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    // Methods to copy the raw state, so that it can be saved and added back after a restart
+    long[] getCounts() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i) {
+            copy[i] = counts.get(i);
+        }
+        return copy;
+    }
+
+    long getTotal() {
+        return total.get();
+    }
+
+    void add(final long[] bucket_counts, long total, long max) {
+        long n = 0;
+        for (int i = 0; i < Math.min(BUCKETS, bucket_counts.length); ++i) {
+            counts.addAndGet(i, bucket_counts[i]);
+            n += bucket_counts[i];
+        }
+        count.addAndGet(n);
+        this.total.addAndGet(total);
+
+        long current;
+        while (max > (current = this.max.get()) && !this.max.compareAndSet(current, max)) {
+            // retry
+        }
+    }
+}
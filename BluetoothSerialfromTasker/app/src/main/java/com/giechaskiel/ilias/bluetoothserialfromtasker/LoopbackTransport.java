@@ -0,0 +1,346 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: In-process transport whose devices are Java objects instead of Bluetooth
+ * modules, so that the send path can be driven and benchmarked on a plain JVM
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class LoopbackTransport implements Transport {
+    // Strategy used by devices that do not configure their own
+    public final static String STRATEGY_LOOPBACK = "LOOPBACK";
+
+    // Bytes buffered in each direction before writers block, similar to a socket buffer
+    public final static int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    // The simulated device end of a connection
+    public interface Peer {
+        // Called on the connecting thread whenever a connection is opened. Peers that
+        // consume data continuously should hand the streams to their own thread,
+        // otherwise writes from the plugin block once the buffer is full.
+        void onConnect(InputStream from_plugin, OutputStream to_plugin);
+    }
+
+    private final Map<String, LoopbackDevice> devices = new HashMap<>();
+    private volatile boolean available = true;
+
+    private static String key(final String mac) {
+        return BundleManager.normalizeMac(mac);
+    }
+
+    // Method that makes a device with the given address reachable, and returns it for configuration
+    public synchronized LoopbackDevice addDevice(final String mac, Peer peer) {
+        LoopbackDevice device = new LoopbackDevice(mac, peer);
+        devices.put(key(mac), device);
+        return device;
+    }
+
+    public synchronized void removeDevice(final String mac) {
+        devices.remove(key(mac));
+    }
+
+    // Method that simulates switching the radio on or off
+    public void setAvailable(boolean available) {
+        this.available = available;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return available;
+    }
+
+    @Override
+    public synchronized Device getDevice(final String mac) {
+        if (!available || mac == null) {
+            return null;
+        }
+        return devices.get(key(mac));
+    }
+
+    public static class LoopbackDevice implements Device {
+        private final String mac;
+        private final Peer peer;
+        private volatile String[] strategies = {STRATEGY_LOOPBACK};
+        private volatile Set<String> failing = new HashSet<>();
+        private volatile long connect_delay_ms = 0;
+        private volatile int buffer_size = DEFAULT_BUFFER_SIZE;
+        private volatile int max_packet_size = 0;
+
+        LoopbackDevice(final String mac, Peer peer) {
+            this.mac = mac;
+            this.peer = peer;
+        }
+
+        // Method to set the strategies reported by the device, in default order
+        public LoopbackDevice setStrategies(String... strategies) {
+            this.strategies = strategies.clone();
+            return this;
+        }
+
+        // Method to make connects with the given strategies fail (after the connect delay)
+        public LoopbackDevice setFailingStrategies(String... failing) {
+            this.failing = new HashSet<>(Arrays.asList(failing));
+            return this;
+        }
+
+        // Method to simulate the time a connect takes, successful or not
+        public LoopbackDevice setConnectDelayMs(long connect_delay_ms) {
+            this.connect_delay_ms = connect_delay_ms;
+            return this;
+        }
+
+        public LoopbackDevice setBufferSize(int buffer_size) {
+            this.buffer_size = buffer_size;
+            return this;
+        }
+
+        // Method to set the packet size reported by connections, like an RFCOMM link's MTU
+        public LoopbackDevice setMaxPacketSize(int max_packet_size) {
+            this.max_packet_size = max_packet_size;
+            return this;
+        }
+
+        @Override
+        public String getAddress() {
+            return mac;
+        }
+
+        @Override
+        public String[] getStrategies() {
+            return strategies.clone();
+        }
+
+        @Override
+        public Connection createConnection(final String strategy) {
+            return new LoopbackConnection(this, strategy);
+        }
+    }
+
+    private static class LoopbackConnection implements Connection {
+        private final LoopbackDevice device;
+        private final String strategy;
+        private Pipe to_device;
+        private Pipe from_device;
+        private boolean closed = false;
+
+        LoopbackConnection(LoopbackDevice device, final String strategy) {
+            this.device = device;
+            this.strategy = strategy;
+        }
+
+        @Override
+        public synchronized void connect() throws IOException {
+            // Simulate the connect taking time, which close() can cut short like a socket
+            long end = System.currentTimeMillis() + device.connect_delay_ms;
+            long remaining;
+            while (!closed && (remaining = end - System.currentTimeMillis()) > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while connecting");
+                }
+            }
+
+            if (closed) {
+                throw new IOException("Connection closed while connecting");
+            }
+
+            if (device.failing.contains(strategy)
+                    || !Arrays.asList(device.strategies).contains(strategy)) {
+                throw new IOException("Connect failed (" + strategy + ")");
+            }
+
+            to_device = new Pipe(device.buffer_size);
+            from_device = new Pipe(device.buffer_size);
+            device.peer.onConnect(to_device.getInputStream(), from_device.getOutputStream());
+        }
+
+        private synchronized Pipe getPipe(boolean outgoing) throws IOException {
+            if (to_device == null) {
+                throw new IOException("Not connected");
+            }
+            return outgoing ? to_device : from_device;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return getPipe(false).getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return getPipe(true).getOutputStream();
+        }
+
+        @Override
+        public synchronized boolean isConnected() {
+            return to_device != null && !to_device.isClosed() && !from_device.isClosed();
+        }
+
+        @Override
+        public String getStrategy() {
+            return strategy;
+        }
+
+        @Override
+        public int getMaxPacketSize() {
+            return device.max_packet_size;
+        }
+
+        @Override
+        public void close() {
+            Pipe to, from;
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+                to = to_device;
+                from = from_device;
+            }
+
+            if (to != null) {
+                to.close();
+                from.close();
+            }
+        }
+    }
+
+    // Bounded single-producer single-consumer byte pipe. Unlike PipedInputStream it does not
+    // care which threads read and write, and closing either end closes both, like a socket.
+    public static class Pipe {
+        private final byte[] buffer;
+        private int head = 0;
+        private int count = 0;
+        private boolean closed = false;
+
+        private final InputStream in = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() throws IOException {
+                return Pipe.this.available();
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        private final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        public Pipe(int size) {
+            buffer = new byte[size];
+        }
+
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        public synchronized boolean isClosed() {
+            return closed;
+        }
+
+        public synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        private synchronized int available() throws IOException {
+            if (closed && count == 0) {
+                throw new IOException("Pipe closed");
+            }
+            return count;
+        }
+
+        private synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            while (count == 0) {
+                if (closed) {
+                    return -1;
+                }
+                waitInterruptibly();
+            }
+
+            int n = Math.min(len, count);
+            int first = Math.min(n, buffer.length - head);
+            System.arraycopy(buffer, head, b, off, first);
+            System.arraycopy(buffer, 0, b, off + first, n - first);
+            head = (head + n) % buffer.length;
+            count -= n;
+            notifyAll();
+            return n;
+        }
+
+        private synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                while (count == buffer.length && !closed) {
+                    waitInterruptibly();
+                }
+                if (closed) {
+                    throw new IOException("Pipe closed");
+                }
+
+                int tail = (head + count) % buffer.length;
+                int n = Math.min(len, Math.min(buffer.length - count, buffer.length - tail));
+                System.arraycopy(b, off, buffer, tail, n);
+                count += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        private void waitInterruptibly() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting on pipe");
+            }
+        }
+    }
+}
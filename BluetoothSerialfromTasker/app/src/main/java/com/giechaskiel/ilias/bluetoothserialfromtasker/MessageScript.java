@@ -0,0 +1,170 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Ordered list of messages sent to a device over a single connection, with
+ * pauses between them and optionally a reply expected to each. Scripts are written one
+ * step per line:
+ *
+ *   on             a message, with the escapes of BundleManager.MODE_ESCAPE
+ *   wait 600       pause for 600 ms after the previous message was written
+ *   30             the next message
+ *   expect OK      wait for a reply to the previous message, containing OK if given
+ *   send wait      a message that would otherwise be read as a command
+ *
+ * A wait at the end holds off further messages to the device, which is what the Arduino
+ * sketch needs between commands.
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class MessageScript {
+    // Limits, so that a script cannot keep a device busy for too long
+    public final static int MAX_STEPS = 32;
+    public final static long MAX_WAIT_MS = 10 * 60 * 1000;
+
+    private final static String WAIT = "wait ";
+    private final static String EXPECT = "expect";
+    private final static String SEND = "send ";
+
+    // Bytes appended to messages when CRLF is enabled
+    private final static byte[] CRLF_BYTES = {'\r', '\n'};
+
+    // One message of the script
+    public static class Step {
+        // Pause between the previous message being written (or connecting, for the first
+        // message) and this one
+        final long delay_ms;
+        final byte[] bytes;
+
+        // Whether a reply is read after the message, and the text it must contain (null
+        // for any reply)
+        boolean expect_reply = false;
+        String expected = null;
+
+        Step(long delay_ms, final byte[] bytes) {
+            this.delay_ms = delay_ms;
+            this.bytes = bytes;
+        }
+
+        public long getDelayMs() {
+            return delay_ms;
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        public boolean expectsReply() {
+            return expect_reply;
+        }
+
+        // Whether the reply is the one expected: any reply at all, or one containing the
+        // expected text
+        public boolean matches(final String reply) {
+            if (reply == null || reply.isEmpty()) {
+                return false;
+            }
+            return expected == null || reply.contains(expected);
+        }
+    }
+
+    private final List<Step> steps;
+    private final long final_delay_ms;
+
+    private MessageScript(final List<Step> steps, long final_delay_ms) {
+        this.steps = Collections.unmodifiableList(steps);
+        this.final_delay_ms = final_delay_ms;
+    }
+
+    public List<Step> getSteps() {
+        return steps;
+    }
+
+    // Pause after the last message, before the next message to the device is written
+    public long getFinalDelayMs() {
+        return final_delay_ms;
+    }
+
+    // Method that compiles the script, appending CRLF to each message if crlf is set.
+    // Returns null if a line is invalid, or there are no messages or too many
+    public static MessageScript compile(final String script, boolean crlf) {
+        if (script == null) {
+            return null;
+        }
+
+        List<Step> steps = new ArrayList<>();
+        long delay_ms = 0;
+        final int crlf_length = crlf ? CRLF_BYTES.length : 0;
+        for (String line : script.split("\r?\n")) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            if (line.startsWith(WAIT)) {
+                long wait_ms = parseWait(line.substring(WAIT.length()).trim());
+                if (wait_ms < 0 || delay_ms + wait_ms > MAX_WAIT_MS) {
+                    return null;
+                }
+                delay_ms += wait_ms;
+                continue;
+            }
+
+            if (line.equals(EXPECT) || line.startsWith(EXPECT + " ")) {
+                // a reply is to the message just written, so no pause can come between
+                Step previous = steps.isEmpty() ? null : steps.get(steps.size() - 1);
+                if (previous == null || previous.expect_reply || delay_ms > 0) {
+                    return null;
+                }
+                String expected = line.substring(EXPECT.length()).trim();
+                previous.expect_reply = true;
+                previous.expected = expected.isEmpty() ? null : expected;
+                continue;
+            }
+
+            if (line.startsWith(SEND)) {
+                line = line.substring(SEND.length());
+            }
+            byte[] bytes = BundleManager.compileEscapes(line, crlf_length);
+            if (bytes == null || bytes.length == 0 || steps.size() == MAX_STEPS) {
+                return null;
+            }
+            if (crlf) {
+                System.arraycopy(CRLF_BYTES, 0, bytes, bytes.length - crlf_length, crlf_length);
+            }
+            steps.add(new Step(delay_ms, bytes));
+            delay_ms = 0;
+        }
+
+        if (steps.isEmpty()) {
+            return null;
+        }
+        return new MessageScript(steps, delay_ms);
+    }
+
+    public static boolean isValid(final String script) {
+        return compile(script, false) != null;
+    }
+
+    // Method that parses a pause in milliseconds, or -1 if invalid
+    private static long parseWait(final String wait) {
+        if (wait.isEmpty() || wait.length() > 9) {
+            return -1;
+        }
+
+        long wait_ms = 0;
+        for (int i = 0; i < wait.length(); ++i) {
+            char c = wait.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            wait_ms = 10 * wait_ms + (c - '0');
+        }
+        return wait_ms;
+    }
+}
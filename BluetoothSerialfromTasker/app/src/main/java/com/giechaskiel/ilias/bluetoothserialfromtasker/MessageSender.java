@@ -0,0 +1,385 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Class responsible for connecting to a device over a transport and sending
+ * the message of a bundle. Independent of Android apart from Bundle and Log.
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+public class MessageSender {
+    // Tag for logging
+    private final static String TAG = "MessageSender";
+
+    private final Transport transport;
+    private final ConnectionPool pool;
+    private final Connector connector;
+    private final ChunkedWriter writer = new ChunkedWriter();
+    private final CircuitBreaker breaker = new CircuitBreaker();
+
+    // Reply buffers, one per sending thread so that they can be reused without locking
+    private final ThreadLocal<FrameReader> readers = new ThreadLocal<FrameReader>() {
+        @Override
+        protected FrameReader initialValue() {
+            return new FrameReader();
+        }
+    };
+
+    // Charset of replies. Arduino sketches print ASCII, which this is a superset of
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    // The learner may be null, in which case strategies are always tried in default order
+    public MessageSender(Transport transport, ConnectionPool pool, StrategyLearner learner) {
+        this.transport = transport;
+        this.pool = pool;
+        this.connector = new Connector(learner);
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
+    public Connector getConnector() {
+        return connector;
+    }
+
+    public ChunkedWriter getWriter() {
+        return writer;
+    }
+
+    public CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    // Method that sends the message of the bundle to its device. Connections are kept in the
+    // pool for keep_alive_ms afterwards. Returns whether the message was sent.
+    public boolean send(final Bundle bundle, long keep_alive_ms) {
+        byte[] bytes = BundleManager.getMsgBytes(bundle);
+        if (bytes == null) {
+            // this can happen, for instance, if string replacement of hex is incorrect
+            Log.e(TAG, "Got null bytes, so did not send message");
+            return false;
+        }
+
+        return send(BundleManager.getMac(bundle), bytes, keep_alive_ms);
+    }
+
+    // Method that sends the bytes to the device with the given MAC without a deadline
+    public boolean send(final String mac, final byte[] bytes, long keep_alive_ms) {
+        return send(mac, bytes, keep_alive_ms, Connector.NO_DEADLINE).sent;
+    }
+
+    // Method that sends the bytes to the device with the given MAC, reusing a pooled
+    // connection when possible. Connecting gives up at the deadline (in
+    // System.currentTimeMillis() time). Returns the outcome, with the time taken by each step.
+    public SendResult send(final String mac, final byte[] bytes, long keep_alive_ms,
+                           long deadline) {
+        return send(mac, bytes, keep_alive_ms, deadline, null);
+    }
+
+    // Method that sends like send(mac, bytes, keep_alive_ms, deadline), and then reads the
+    // device's reply if one is requested, waiting no later than the deadline
+    public SendResult send(final String mac, final byte[] bytes, long keep_alive_ms,
+                           long deadline, final FrameReader.Request reply) {
+        return send(mac, bytes, keep_alive_ms, deadline, reply, null);
+    }
+
+    // Method that sends like send(mac, bytes, keep_alive_ms, deadline, reply) over the
+    // connection opened by warm(), whose outcome is passed in so that the time spent
+    // connecting is reported as part of the send
+    SendResult send(final String mac, final byte[] bytes, long keep_alive_ms, long deadline,
+                    final FrameReader.Request reply, final SendResult warmed) {
+        SendResult result = sendOnce(mac, bytes, keep_alive_ms, deadline, reply);
+        result.mac = mac;
+        if (warmed != null && !warmed.reused && result.reused) {
+            result.lookup_ms += warmed.lookup_ms;
+            result.connect_ms += warmed.connect_ms;
+            result.reused = false;
+        }
+        result.breaker = breaker.getState(mac);
+        result.retry_in_ms = breaker.getRetryInMs(mac);
+        Metrics.getInstance().recordSend(mac, result);
+        return result;
+    }
+
+    // Method that makes sure a connection to the device is open and pooled for
+    // keep_alive_ms, connecting if there is none, so that the next send finds it. Returns
+    // the outcome of connecting, with error set if it failed, and reused set if a pooled
+    // connection was already open
+    public SendResult warm(final String mac, long keep_alive_ms, long deadline) {
+        SendResult result = new SendResult();
+        result.mac = mac;
+        Transport.Connection connection = pool.acquire(mac);
+        result.reused = connection != null;
+        if (connection == null) {
+            connection = connect(mac, deadline, result);
+            result.breaker = breaker.getState(mac);
+            result.retry_in_ms = breaker.getRetryInMs(mac);
+            if (connection == null) {
+                return result;
+            }
+        }
+
+        result.strategy = connection.getStrategy();
+        pool.release(mac, connection, keep_alive_ms);
+        return result;
+    }
+
+    private SendResult sendOnce(final String mac, final byte[] bytes, long keep_alive_ms,
+                                long deadline, final FrameReader.Request reply) {
+        SendResult result = new SendResult();
+        Transport.Connection connection = pool.acquire(mac);
+        result.reused = connection != null;
+        if (!result.reused) {
+            connection = connect(mac, deadline, result);
+            if (connection == null) {
+                return result;
+            }
+        }
+
+        if (reply != null) {
+            // If this fails, the connection is broken, which the write below deals with
+            discardInput(connection);
+        }
+
+        if (!writeBytes(connection, bytes, result)) {
+            closeConnection(connection);
+            if (!result.reused) {
+                return result;
+            }
+
+            // The pooled connection went away while idle, so fall back to a fresh one
+            Log.w(TAG, "Pooled connection failed on write, reconnecting");
+            result.reused = false;
+            connection = connect(mac, deadline, result);
+            if (connection == null) {
+                return result;
+            }
+
+            if (!writeBytes(connection, bytes, result)) {
+                closeConnection(connection);
+                return result;
+            }
+        }
+
+        Log.i(TAG, "Sent message successfully");
+        result.sent = true;
+        result.error = null;
+        result.cause = null;
+        result.bytes = bytes.length;
+        result.strategy = connection.getStrategy();
+        long write_total_ms = result.write_ms + result.flush_ms;
+        if (write_total_ms > 0) {
+            result.bytes_per_second = 1000L * bytes.length / write_total_ms;
+        }
+
+        if (reply != null && !readReply(connection, reply, deadline, result)) {
+            // the bytes were sent, but the connection is no longer usable
+            closeConnection(connection);
+            return result;
+        }
+
+        pool.release(mac, connection, keep_alive_ms);
+        return result;
+    }
+
+    // Method that returns a connection to the device for the steps of a script: a pooled
+    // one if there is one, or a new one. Returns null if connecting failed, with the error
+    // in the result
+    Transport.Connection open(final String mac, long deadline, SendResult result) {
+        Transport.Connection connection = pool.acquire(mac);
+        result.reused = connection != null;
+        if (connection == null) {
+            connection = connect(mac, deadline, result);
+        }
+        if (connection != null) {
+            result.strategy = connection.getStrategy();
+        }
+        return connection;
+    }
+
+    // Method that returns a new connection to the device for a script whose pooled
+    // connection failed on its first write. Returns null if connecting failed, with the error
+    // in the result
+    Transport.Connection reopen(final String mac, long deadline, SendResult result) {
+        result.reused = false;
+        Transport.Connection connection = connect(mac, deadline, result);
+        if (connection != null) {
+            result.strategy = connection.getStrategy();
+        }
+        return connection;
+    }
+
+    // Method that writes one step of a script to the connection, first throwing away stale
+    // input if a reply is expected. Returns false if the write failed, in which case the
+    // connection has been closed
+    boolean write(Transport.Connection connection, final byte[] bytes, boolean expect_reply,
+                  SendResult result) {
+        if (expect_reply) {
+            discardInput(connection);
+        }
+
+        if (!writeBytes(connection, bytes, result)) {
+            closeConnection(connection);
+            return false;
+        }
+        result.bytes += bytes.length;
+        return true;
+    }
+
+    // Method that reads the reply to a step of a script into the result. Returns false if
+    // the connection failed, in which case it has been closed and the result fails
+    boolean read(Transport.Connection connection, final FrameReader.Request reply,
+                 long deadline, SendResult result) {
+        if (!readReply(connection, reply, deadline, result)) {
+            closeConnection(connection);
+            result.fail(result.reply_error, SendResult.CAUSE_REPLY_FAILED);
+            return false;
+        }
+        return true;
+    }
+
+    // Method that ends a script: returns the connection to the pool if it is still open,
+    // and records the outcome
+    void finish(final String mac, Transport.Connection connection, long keep_alive_ms,
+                SendResult result) {
+        if (connection != null) {
+            pool.release(mac, connection, keep_alive_ms);
+        }
+
+        result.mac = mac;
+        long write_total_ms = result.write_ms + result.flush_ms;
+        if (result.sent && write_total_ms > 0) {
+            result.bytes_per_second = 1000L * result.bytes / write_total_ms;
+        }
+        result.breaker = breaker.getState(mac);
+        result.retry_in_ms = breaker.getRetryInMs(mac);
+        Metrics.getInstance().recordSend(mac, result);
+    }
+
+    // Method that closes the connection of a script that failed part way
+    void abort(Transport.Connection connection) {
+        closeConnection(connection);
+    }
+
+    // Method that connects to the device with the given MAC, or null on error or once the
+    // deadline has passed. The connector tries the strategies in the order learned for this
+    // device, and records which one succeeded so that the next connect can try it first.
+    public Transport.Connection connect(final String mac, long deadline) {
+        return connect(mac, deadline, new SendResult());
+    }
+
+    // Method that connects like connect(mac, deadline), adding the time taken to the result.
+    // Fails at once while the device's breaker is open
+    private Transport.Connection connect(final String mac, long deadline, SendResult result) {
+        long start = System.currentTimeMillis();
+        Transport.Device device = transport.getDevice(mac);
+        long found = System.currentTimeMillis();
+        result.lookup_ms += found - start;
+        if (device == null) {
+            if (transport.isAvailable()) {
+                result.fail("Device not paired", SendResult.CAUSE_NOT_PAIRED);
+            } else {
+                result.fail("Bluetooth unavailable", SendResult.CAUSE_UNAVAILABLE);
+            }
+            return null;
+        }
+
+        if (!breaker.allowConnect(mac)) {
+            result.fail("Device unreachable, retrying in "
+                    + (breaker.getRetryInMs(mac) + 999) / 1000 + " s",
+                    SendResult.CAUSE_CIRCUIT_OPEN);
+            return null;
+        }
+
+        Transport.Connection connection = connector.connect(mac, device, deadline);
+        long now = System.currentTimeMillis();
+        result.connect_ms += now - found;
+        if (connection == null) {
+            if (now >= deadline) {
+                result.fail("Timed out connecting", SendResult.CAUSE_TIMEOUT);
+            } else {
+                result.fail("Could not connect", SendResult.CAUSE_CONNECT_FAILED);
+            }
+            breaker.onFailure(mac);
+        } else {
+            breaker.onSuccess(mac);
+        }
+        return connection;
+    }
+
+    // Method that writes the bytes to the connection in chunks that fit the link, adding the
+    // time taken to the result. Returns whether the write succeeded
+    private boolean writeBytes(Transport.Connection connection, final byte[] bytes,
+                               SendResult result) {
+        try {
+            writer.write(connection.getOutputStream(), bytes, connection.getMaxPacketSize(),
+                    result);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing to output stream", e);
+            result.fail("Write failed: " + e.getMessage(), e.getClass().getSimpleName());
+            return false;
+        }
+    }
+
+    // Method that throws away input that arrived before a message awaiting a reply, so that
+    // it is not taken for the reply
+    private void discardInput(Transport.Connection connection) {
+        try {
+            readers.get().discardAvailable(connection.getInputStream());
+        } catch (IOException e) {
+            Log.w(TAG, "Could not discard stale input", e);
+        }
+    }
+
+    // Method that reads the device's reply into the result, waiting until the request's
+    // timeout or the deadline, whichever is earlier. Returns false if reading failed, with
+    // the reason in the result's reply_error
+    private boolean readReply(Transport.Connection connection, final FrameReader.Request request,
+                              long deadline, SendResult result) {
+        FrameReader reader = readers.get();
+        long start = System.currentTimeMillis();
+        long until = Math.min(deadline, start + request.timeout_ms);
+        try {
+            reader.read(connection.getInputStream(), request, until);
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading reply", e);
+            result.reply_error = "Reading reply failed: " + e.getMessage();
+            result.reply_complete = false;
+            return false;
+        } finally {
+            result.reply_ms = System.currentTimeMillis() - start;
+        }
+
+        // The only copies made of the reply are the strings handed to the host
+        result.reply = new String(reader.getBuffer(), 0, reader.getLength(), UTF_8);
+        result.reply_hex = HexDecoder.encode(reader.getBuffer(), 0, reader.getLength());
+        result.reply_complete = reader.isComplete();
+        if (!result.reply_complete) {
+            Log.w(TAG, "Timed out waiting for reply after " + reader.getLength() + " bytes");
+        }
+        return true;
+    }
+
+    // Method to close connection, and catch any errors
+    private static void closeConnection(Transport.Connection connection) {
+        try {
+            connection.close();
+            Log.i(TAG, "Closed socket successfully");
+        } catch (IOException e) {
+            Log.e(TAG, "Exception trying to close socket", e);
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Text message with placeholders that are filled in by the plugin on every
+ * fire, compiled once into literal bytes and placeholder operations. Placeholders are
+ *
+ *   {counter}  number of times the action was fired since the plugin started
+ *   {unix}     seconds since the epoch
+ *   {unix_ms}  milliseconds since the epoch
+ *   {begin}    start of the bytes covered by the next checksum (default: the start)
+ *   {end}      end of the bytes covered by the next checksum (default: the checksum)
+ *   {crc8}     CRC-8 (as in BinaryProtocol) of the covered bytes, as two hex digits
+ *   {xor}      XOR of the covered bytes, as two hex digits, like NMEA checksums
+ *
+ * so that an NMEA sentence is written as ${begin}GPXXX,{counter}{end}*{xor}
+ *
+ * Numbers take a format after a colon: a width to zero-pad to, as in {counter:4}, or x and a
+ * width for upper case hex, as in {unix:x8}. {{ stands for a literal brace.
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MessageTemplate {
+    // Operations of a compiled template
+    private final static int OP_LITERAL = 0;
+    private final static int OP_COUNTER = 1;
+    private final static int OP_UNIX = 2;
+    private final static int OP_UNIX_MS = 3;
+    private final static int OP_BEGIN = 4;
+    private final static int OP_CRC8 = 5;
+    private final static int OP_XOR = 6;
+    private final static int OP_END = 7;
+
+    private final static String[] NAMES = {
+            null, "counter", "unix", "unix_ms", "begin", "crc8", "xor", "end"};
+
+    // Widest a number can be padded to. Longs need at most 19 decimal digits
+    public final static int MAX_WIDTH = 20;
+
+    private final static byte[] HEX_DIGITS = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+
+    private final int[] ops;
+    private final byte[][] literals;
+    private final int[] widths;
+    private final boolean[] hex;
+
+    // Values of {counter}, keyed by action rather than kept in the template, since templates
+    // are compiled again when they contain variables or drop out of the PayloadCache
+    private final static ConcurrentMap<Long, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    private MessageTemplate(final List<Integer> ops, final List<byte[]> literals,
+                            final List<Integer> widths, final List<Boolean> hex) {
+        int size = ops.size();
+        this.ops = new int[size];
+        this.literals = new byte[size][];
+        this.widths = new int[size];
+        this.hex = new boolean[size];
+        for (int i = 0; i < size; ++i) {
+            this.ops[i] = ops.get(i);
+            this.literals[i] = literals.get(i);
+            this.widths[i] = widths.get(i);
+            this.hex[i] = hex.get(i);
+        }
+    }
+
+    public static MessageTemplate compile(final String template, final byte[] suffix) {
+        return compile(template, TextEncoder.CHARSET_UTF8, suffix);
+    }
+
+    // Method that compiles the template, followed by the suffix bytes (such as CRLF). Literal
+    // text is encoded in the given charset, which must write digits as single bytes. Returns
+    // null if a placeholder is unknown, badly formatted or not closed, or if the literal text
+    // cannot be encoded
+    public static MessageTemplate compile(final String template, int charset,
+                                          final byte[] suffix) {
+        if (template == null || !TextEncoder.isCharsetValid(charset)
+                || !TextEncoder.isSingleByte(charset)) {
+            return null;
+        }
+
+        List<Integer> ops = new ArrayList<>();
+        List<byte[]> literals = new ArrayList<>();
+        List<Integer> widths = new ArrayList<>();
+        List<Boolean> hex = new ArrayList<>();
+
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < template.length()) {
+            char c = template.charAt(i);
+            if (c != '{') {
+                literal.append(c);
+                ++i;
+                continue;
+            }
+
+            if (i + 1 < template.length() && template.charAt(i + 1) == '{') {
+                literal.append('{');
+                i += 2;
+                continue;
+            }
+
+            int end = template.indexOf('}', i);
+            if (end < 0) {
+                return null;
+            }
+
+            String placeholder = template.substring(i + 1, end);
+            String name = placeholder;
+            String format = null;
+            int colon = placeholder.indexOf(':');
+            if (colon >= 0) {
+                name = placeholder.substring(0, colon);
+                format = placeholder.substring(colon + 1);
+            }
+
+            int op = indexOf(name);
+            if (op < 0) {
+                return null;
+            }
+
+            boolean is_hex = false;
+            int width = 0;
+            if (format != null) {
+                if (op != OP_COUNTER && op != OP_UNIX && op != OP_UNIX_MS) {
+                    return null;
+                }
+                if (format.startsWith("x")) {
+                    is_hex = true;
+                    format = format.substring(1);
+                }
+                // {counter:x} is hex without padding
+                width = is_hex && format.isEmpty() ? 0 : parseWidth(format);
+                if (width < 0) {
+                    return null;
+                }
+            }
+
+            if (literal.length() > 0) {
+                if (!addText(ops, literals, widths, hex, literal.toString(), charset)) {
+                    return null;
+                }
+                literal.setLength(0);
+            }
+            ops.add(op);
+            literals.add(null);
+            widths.add(width);
+            hex.add(is_hex);
+            i = end + 1;
+        }
+
+        if (literal.length() > 0
+                && !addText(ops, literals, widths, hex, literal.toString(), charset)) {
+            return null;
+        }
+        if (suffix != null && suffix.length > 0) {
+            addLiteral(ops, literals, widths, hex, suffix);
+        }
+        return new MessageTemplate(ops, literals, widths, hex);
+    }
+
+    // Whether the template compiles
+    public static boolean isValid(final String template) {
+        return isValid(template, TextEncoder.CHARSET_UTF8);
+    }
+
+    public static boolean isValid(final String template, int charset) {
+        return compile(template, charset, null) != null;
+    }
+
+    private static int indexOf(final String name) {
+        for (int op = 1; op < NAMES.length; ++op) {
+            if (NAMES[op].equals(name)) {
+                return op;
+            }
+        }
+        return -1;
+    }
+
+    // Method that parses a width of one or two digits, or -1 if invalid
+    private static int parseWidth(final String format) {
+        if (format.isEmpty() || format.length() > 2) {
+            return -1;
+        }
+
+        int width = 0;
+        for (int i = 0; i < format.length(); ++i) {
+            char c = format.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            width = 10 * width + (c - '0');
+        }
+        return width <= MAX_WIDTH ? width : -1;
+    }
+
+    // Method that adds the encoded text as a literal, or returns false if it cannot be encoded
+    private static boolean addText(List<Integer> ops, List<byte[]> literals,
+                                   List<Integer> widths, List<Boolean> hex, final String text,
+                                   int charset) {
+        byte[] bytes = TextEncoder.encode(text, charset, 0);
+        if (bytes == null) {
+            return false;
+        }
+        addLiteral(ops, literals, widths, hex, bytes);
+        return true;
+    }
+
+    private static void addLiteral(List<Integer> ops, List<byte[]> literals,
+                                   List<Integer> widths, List<Boolean> hex, final byte[] bytes) {
+        ops.add(OP_LITERAL);
+        literals.add(bytes);
+        widths.add(0);
+        hex.add(false);
+    }
+
+    // Method that returns the value of {counter} for the next fire of the action with the
+    // given key, such as the fingerprint of its bundle, starting from 0
+    public static long nextCount(long key) {
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter.getAndIncrement();
+    }
+
+    // Method that renders the template for one fire into a new array of exactly the right
+    // length, with count as the value of {counter}. Numbers and checksums are written as
+    // bytes directly, without strings
+    public byte[] render(long count) {
+        final long now = System.currentTimeMillis();
+
+        int length = 0;
+        for (int i = 0; i < ops.length; ++i) {
+            switch (ops[i]) {
+                case OP_LITERAL:
+                    length += literals[i].length;
+                    break;
+                case OP_CRC8:
+                case OP_XOR:
+                    length += 2;
+                    break;
+                case OP_BEGIN:
+                case OP_END:
+                    break;
+                default:
+                    length += numberLength(value(ops[i], count, now), widths[i], hex[i]);
+            }
+        }
+
+        byte[] out = new byte[length];
+        int position = 0;
+        int begin = 0;
+        int end = -1;
+        for (int i = 0; i < ops.length; ++i) {
+            switch (ops[i]) {
+                case OP_LITERAL:
+                    System.arraycopy(literals[i], 0, out, position, literals[i].length);
+                    position += literals[i].length;
+                    break;
+                case OP_BEGIN:
+                    begin = position;
+                    end = -1;
+                    break;
+                case OP_END:
+                    end = position;
+                    break;
+                case OP_CRC8:
+                    int crc_end = end >= begin ? end : position;
+                    position = writeHexByte(out, position,
+                            BinaryProtocol.crc8(out, begin, crc_end - begin));
+                    break;
+                case OP_XOR:
+                    position = writeHexByte(out, position,
+                            xor(out, begin, end >= begin ? end : position));
+                    break;
+                default:
+                    position = writeNumber(out, position, value(ops[i], count, now),
+                            widths[i], hex[i]);
+            }
+        }
+        return out;
+    }
+
+    private static long value(int op, long count, long now) {
+        switch (op) {
+            case OP_COUNTER:
+                return count;
+            case OP_UNIX:
+                return now / 1000;
+            default:
+                return now;
+        }
+    }
+
+    // Number of characters of the non-negative value in the given base and width
+    private static int numberLength(long value, int width, boolean hex) {
+        int digits = 1;
+        for (long rest = next(value, hex); rest != 0; rest = next(rest, hex)) {
+            ++digits;
+        }
+        return Math.max(digits, width);
+    }
+
+    // Method that writes the value right-aligned and zero-padded, and returns the position
+    // after it
+    private static int writeNumber(final byte[] out, int position, long value, int width,
+                                   boolean hex) {
+        int length = numberLength(value, width, hex);
+        int i = position + length;
+        do {
+            out[--i] = HEX_DIGITS[(int) (hex ? value & 0xF : value % 10)];
+            value = next(value, hex);
+        } while (value != 0);
+        while (i > position) {
+            out[--i] = '0';
+        }
+        return position + length;
+    }
+
+    // Method that drops the last digit of the value
+    private static long next(long value, boolean hex) {
+        return hex ? value >>> 4 : value / 10;
+    }
+
+    private static int writeHexByte(final byte[] out, int position, int value) {
+        out[position] = HEX_DIGITS[(value >> 4) & 0xF];
+        out[position + 1] = HEX_DIGITS[value & 0xF];
+        return position + 2;
+    }
+
+    private static int xor(final byte[] bytes, int from, int to) {
+        int xor = 0;
+        for (int i = from; i < to; ++i) {
+            xor ^= bytes[i];
+        }
+        return xor & 0xFF;
+    }
+}
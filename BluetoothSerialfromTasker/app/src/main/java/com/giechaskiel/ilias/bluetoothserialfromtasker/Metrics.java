@@ -0,0 +1,350 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Process-wide registry of send-path latencies and counters, shown by
+ * StatsActivity. Recording is lock-free; the registry is saved to a file after each fire so
+ * that it covers more than one process lifetime.
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Metrics {
+    // Tag for logging
+    private final static String TAG = "Metrics";
+
+    // File in the app's files directory holding the saved registry
+    private final static String FILE_NAME = "metrics.bin";
+    private final static int FILE_VERSION = 1;
+
+    // Histogram names. Each is kept per MAC and per strategy, as in "connect_ms.mac.<MAC>"
+    public final static String CONNECT_MS = "connect_ms";
+    public final static String WRITE_MS = "write_ms";
+
+    // Counter names
+    public final static String SENDS_OK = "sends.ok";
+    public final static String SENDS_FAILED = "sends.failed";
+    // Messages replaced by a newer message for the same state slot before being written
+    public final static String SENDS_SUPERSEDED = "sends.superseded";
+    public final static String BYTES_SENT = "bytes_sent";
+    // Time spent writing and flushing the bytes sent, for the effective throughput
+    public final static String WRITE_TIME_MS = "write_time_ms";
+    // Failed connect attempts and sends by cause, as in "failures.connect.IOException"
+    public final static String CONNECT_FAILURES = "failures.connect";
+    public final static String SEND_FAILURES = "failures.send";
+    // Messages spooled while their device was unreachable, and what became of them
+    public final static String SPOOL_QUEUED = "spool.queued";
+    public final static String SPOOL_REPLAYED = "spool.replayed";
+    public final static String SPOOL_EXPIRED = "spool.expired";
+    public final static String SPOOL_DROPPED = "spool.dropped";
+    // Circuit breakers opened, closed again by a successful connect, and connects refused
+    // while open
+    public final static String BREAKER_OPENED = "breaker.opened";
+    public final static String BREAKER_CLOSED = "breaker.closed";
+    public final static String BREAKER_REJECTED = "breaker.rejected";
+    // Connections opened ahead of time, those that failed, and warm-ups skipped for budget
+    public final static String PREWARM_CONNECTED = "prewarm.connected";
+    public final static String PREWARM_FAILED = "prewarm.failed";
+    public final static String PREWARM_OVER_BUDGET = "prewarm.over_budget";
+
+    private static Metrics instance;
+    private static boolean restored = false;
+
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    public static synchronized Metrics getInstance() {
+        if (instance == null) {
+            instance = new Metrics();
+        }
+        return instance;
+    }
+
+    // Method that returns the process-wide registry, adding what was saved by earlier
+    // processes the first time it is called
+    public static Metrics getInstance(Context context) {
+        Metrics metrics = getInstance();
+        synchronized (Metrics.class) {
+            if (!restored) {
+                restored = true;
+                metrics.load(getFile(context));
+            }
+        }
+        return metrics;
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    public Histogram getHistogram(final String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    public AtomicLong getCounter(final String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    // Method that records a latency under the histogram's per-MAC and per-strategy names
+    public void recordLatency(final String name, final String mac, final String strategy,
+                              long ms) {
+        getHistogram(name + ".mac." + BundleManager.normalizeMac(mac)).record(ms);
+        if (strategy != null) {
+            getHistogram(name + ".strategy." + strategy).record(ms);
+        }
+    }
+
+    // Method that counts a failed connect attempt by the class of the exception it threw
+    public void recordConnectFailure(final Exception e) {
+        getCounter(CONNECT_FAILURES + "." + e.getClass().getSimpleName()).incrementAndGet();
+    }
+
+    // Method that records the outcome of a send
+    public void recordSend(final String mac, final SendResult result) {
+        if (!result.sent) {
+            getCounter(SENDS_FAILED).incrementAndGet();
+            if (result.cause != null) {
+                getCounter(SEND_FAILURES + "." + result.cause).incrementAndGet();
+            }
+            return;
+        }
+
+        getCounter(SENDS_OK).incrementAndGet();
+        getCounter(BYTES_SENT).addAndGet(result.bytes);
+        getCounter(WRITE_TIME_MS).addAndGet(result.write_ms + result.flush_ms);
+        if (!result.reused) {
+            recordLatency(CONNECT_MS, mac, result.strategy, result.connect_ms);
+        }
+        recordLatency(WRITE_MS, mac, result.strategy, result.write_ms + result.flush_ms);
+    }
+
+    public void reset() {
+        histograms.clear();
+        counters.clear();
+    }
+
+    // Method that saves the registry, replacing the file atomically
+    public synchronized void save(Context context) {
+        File file = getFile(context);
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(FILE_VERSION);
+
+            Map<String, Histogram> histogram_snapshot = new TreeMap<>(histograms);
+            out.writeInt(histogram_snapshot.size());
+            for (Map.Entry<String, Histogram> entry : histogram_snapshot.entrySet()) {
+                Histogram histogram = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(histogram.getTotal());
+                out.writeLong(histogram.getMax());
+                long[] counts = histogram.getCounts();
+                out.writeInt(counts.length);
+                for (long count : counts) {
+                    out.writeLong(count);
+                }
+            }
+
+            Map<String, AtomicLong> counter_snapshot = new TreeMap<>(counters);
+            out.writeInt(counter_snapshot.size());
+            for (Map.Entry<String, AtomicLong> entry : counter_snapshot.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().get());
+            }
+            out.close();
+            out = null;
+
+            if (!temp.renameTo(file)) {
+                Log.e(TAG, "Could not replace " + file);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving metrics", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    // Method that adds the contents of a saved registry to this one
+    private void load(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_VERSION) {
+                Log.w(TAG, "Ignoring metrics saved in an unknown format");
+                return;
+            }
+
+            int histogram_count = in.readInt();
+            for (int i = 0; i < histogram_count; ++i) {
+                String name = in.readUTF();
+                long total = in.readLong();
+                long max = in.readLong();
+                long[] counts = new long[in.readInt()];
+                for (int j = 0; j < counts.length; ++j) {
+                    counts[j] = in.readLong();
+                }
+                getHistogram(name).add(counts, total, max);
+            }
+
+            int counter_count = in.readInt();
+            for (int i = 0; i < counter_count; ++i) {
+                String name = in.readUTF();
+                getCounter(name).addAndGet(in.readLong());
+            }
+        } catch (FileNotFoundException e) {
+            // nothing saved yet
+        } catch (IOException e) {
+            Log.e(TAG, "Error loading metrics", e);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Exception trying to close file", e);
+        }
+    }
+
+    // Method that returns a summary for display, one histogram or counter per line
+    public String toText() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            Histogram histogram = entry.getValue();
+            builder.append(entry.getKey()).append('\n')
+                    .append(String.format(Locale.US, "  n=%d p50=%d p90=%d p99=%d max=%d ms\n",
+                            histogram.getCount(),
+                            histogram.getPercentile(0.50),
+                            histogram.getPercentile(0.90),
+                            histogram.getPercentile(0.99),
+                            histogram.getMax()));
+        }
+
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<>(counters).entrySet()) {
+            builder.append(entry.getKey()).append(" = ").append(entry.getValue().get()).append('\n');
+        }
+
+        long write_time_ms = getCounter(WRITE_TIME_MS).get();
+        if (write_time_ms > 0) {
+            builder.append("effective bytes/s = ")
+                    .append(1000L * getCounter(BYTES_SENT).get() / write_time_ms).append('\n');
+        }
+        return builder.toString();
+    }
+
+    // Method that returns the histograms as CSV, followed by the counters. Latencies are in
+    // milliseconds
+    public String toCsv() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("name,count,mean,p50,p90,p99,max\n");
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            Histogram histogram = entry.getValue();
+            builder.append(entry.getKey()).append(',')
+                    .append(histogram.getCount()).append(',')
+                    .append(Math.round(histogram.getMean())).append(',')
+                    .append(histogram.getPercentile(0.50)).append(',')
+                    .append(histogram.getPercentile(0.90)).append(',')
+                    .append(histogram.getPercentile(0.99)).append(',')
+                    .append(histogram.getMax()).append('\n');
+        }
+
+        builder.append('\n').append("name,value\n");
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<>(counters).entrySet()) {
+            builder.append(entry.getKey()).append(',').append(entry.getValue().get()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    // Method that returns the histograms and counters as a JSON object
+    public String toJson() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\"histograms\":{");
+        boolean first = true;
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            Histogram histogram = entry.getValue();
+            if (!first) {
+                builder.append(',');
+            }
+            first = false;
+            appendJsonString(builder, entry.getKey());
+            builder.append(":{\"count\":").append(histogram.getCount())
+                    .append(",\"mean\":").append(Math.round(histogram.getMean()))
+                    .append(",\"p50\":").append(histogram.getPercentile(0.50))
+                    .append(",\"p90\":").append(histogram.getPercentile(0.90))
+                    .append(",\"p99\":").append(histogram.getPercentile(0.99))
+                    .append(",\"max\":").append(histogram.getMax())
+                    .append('}');
+        }
+
+        builder.append("},\"counters\":{");
+        first = true;
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<>(counters).entrySet()) {
+            if (!first) {
+                builder.append(',');
+            }
+            first = false;
+            appendJsonString(builder, entry.getKey());
+            builder.append(':').append(entry.getValue().get());
+        }
+        builder.append("}}");
+        return builder.toString();
+    }
+
+    // Method that appends the string in quotes, escaping as needed
+    private static void appendJsonString(StringBuilder builder, final String s) {
+        builder.append('"');
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        builder.append('"');
+    }
+}
@@ -0,0 +1,509 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Durable spool of messages that could not be sent, kept until their device
+ * can be reached again. Messages are appended to a journal file with NIO, and removed by
+ * appending acknowledgements, so that the spool survives the process being killed. The
+ * journal is compacted when it grows past its maximum size. If the journal cannot be read,
+ * written or replaced, the spool keeps working in memory only.
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+public class OfflineSpool {
+    // Tag for logging
+    private final static String TAG = "OfflineSpool";
+
+    // File in the app's files directory holding the journal
+    private final static String FILE_NAME = "spool.log";
+
+    // Defaults: spooling is off until a time to live is set, and the journal is kept small,
+    // since it is read into memory
+    public final static long DEFAULT_TTL_MS = 0;
+    public final static long DEFAULT_MAX_BYTES = 64 * 1024;
+
+    // Record types. Each record is its length, the CRC-32 of its body, and the body
+    private final static byte TYPE_MESSAGE = 1;
+    private final static byte TYPE_ACK = 2;
+    private final static int HEADER_BYTES = 8;
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    // A spooled message
+    public static class Entry {
+        final long seq;
+        final long created;
+        final String mac;
+        final byte[] bytes;
+        // State slot the message sets (see SendQueue), or null
+        final String slot;
+
+        Entry(long seq, long created, final String mac, final byte[] bytes, final String slot) {
+            this.seq = seq;
+            this.created = created;
+            this.mac = mac;
+            this.bytes = bytes;
+            this.slot = slot;
+        }
+
+        public String getMac() {
+            return mac;
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        public String getSlot() {
+            return slot;
+        }
+
+        // Bytes the entry takes up in the journal, as MACs are ASCII
+        int recordSize() {
+            return HEADER_BYTES + 1 + 8 + 8 + 2 + mac.length() + 4 + bytes.length
+                    + (slot == null ? 0 : 2 + slot.getBytes(UTF_8).length);
+        }
+    }
+
+    private static OfflineSpool instance;
+
+    private final File file;
+    private FileChannel channel = null;
+    private boolean loaded = false;
+    // Whether the journal is no longer written, after failing to use it
+    private boolean memory_only = false;
+
+    private volatile long ttl_ms = DEFAULT_TTL_MS;
+    private volatile long max_bytes = DEFAULT_MAX_BYTES;
+
+    // Messages not yet acknowledged, per normalized MAC, oldest first
+    private final Map<String, ArrayDeque<Entry>> entries = new LinkedHashMap<>();
+    // Messages handed out by claim() and not yet acknowledged or released
+    private final Set<Long> claimed = new HashSet<>();
+    private long next_seq = 1;
+    private long live_bytes = 0;
+
+    public OfflineSpool(File file) {
+        this.file = file;
+    }
+
+    public static synchronized OfflineSpool getInstance(Context context) {
+        if (instance == null) {
+            instance = new OfflineSpool(new File(context.getFilesDir(), FILE_NAME));
+        }
+        return instance;
+    }
+
+    private static String key(final String mac) {
+        return BundleManager.normalizeMac(mac);
+    }
+
+    // Method to set how long messages are kept. 0 disables spooling
+    public void setTtlMs(long ttl_ms) {
+        this.ttl_ms = Math.max(0, ttl_ms);
+    }
+
+    // Method to set the size the journal is kept under, by dropping the oldest messages
+    public void setMaxBytes(long max_bytes) {
+        this.max_bytes = Math.max(1024, max_bytes);
+    }
+
+    public boolean isEnabled() {
+        return ttl_ms > 0;
+    }
+
+    // Whether a failed send is worth retrying once the device is back. Messages that can
+    // never be sent (invalid, or to an unpaired device) are not, and neither are messages
+    // superseded by a newer one for their slot, which is retried instead
+    public static boolean isRetryable(final SendResult result) {
+        return !result.sent && !result.superseded && result.cause != null
+                && !SendResult.CAUSE_INVALID_MESSAGE.equals(result.cause)
+                && !SendResult.CAUSE_NOT_PAIRED.equals(result.cause);
+    }
+
+    // Method that appends a message for the device. If slot is not null, the message replaces
+    // the messages spooled for the same slot of the device, like in SendQueue. Returns false
+    // if spooling is disabled
+    public synchronized boolean append(final String mac, final byte[] bytes, final String slot) {
+        if (!isEnabled()) {
+            return false;
+        }
+        load();
+
+        List<Entry> replaced = new ArrayList<>();
+        ArrayDeque<Entry> queue = entries.get(key(mac));
+        if (slot != null && queue != null) {
+            for (Entry older : queue) {
+                if (slot.equals(older.slot)) {
+                    replaced.add(older);
+                }
+            }
+        }
+
+        Entry entry = new Entry(next_seq++, System.currentTimeMillis(), mac, bytes, slot);
+        if (!memory_only) {
+            try {
+                write(channel, message(entry));
+                channel.force(false);
+            } catch (IOException e) {
+                Log.e(TAG, "Error appending to spool, spooling in memory only", e);
+                setMemoryOnly();
+            }
+        }
+
+        add(entry);
+        Metrics.getInstance().getCounter(Metrics.SPOOL_QUEUED).incrementAndGet();
+        if (!replaced.isEmpty()) {
+            // the new message is in the journal first, so that the state is never lost
+            Log.i(TAG, "Replacing " + replaced.size() + " spooled messages for " + slot);
+            remove(replaced);
+        } else {
+            compactIfNeeded();
+        }
+        return true;
+    }
+
+    // Whether there are spooled messages for the device
+    public synchronized boolean hasEntries(final String mac) {
+        load();
+        ArrayDeque<Entry> queue = entries.get(key(mac));
+        return queue != null && !queue.isEmpty();
+    }
+
+    // Method that returns the MACs (as first spooled) with messages waiting
+    public synchronized List<String> getMacs() {
+        List<String> macs = new ArrayList<>();
+        load();
+        for (ArrayDeque<Entry> queue : entries.values()) {
+            if (!queue.isEmpty()) {
+                macs.add(queue.peekFirst().mac);
+            }
+        }
+        return macs;
+    }
+
+    // Method that hands out the unexpired messages for the device, oldest first, which nobody
+    // else is sending. The caller must acknowledge or release them. Expired messages, and all
+    // messages once spooling has been disabled, are removed
+    public synchronized List<Entry> claim(final String mac) {
+        List<Entry> claim = new ArrayList<>();
+        load();
+
+        ArrayDeque<Entry> queue = entries.get(key(mac));
+        if (queue == null) {
+            return claim;
+        }
+
+        long now = System.currentTimeMillis();
+        List<Entry> expired = new ArrayList<>();
+        for (Entry entry : queue) {
+            if (claimed.contains(entry.seq)) {
+                continue;
+            }
+            if (ttl_ms == 0 || now - entry.created > ttl_ms) {
+                expired.add(entry);
+            } else {
+                claim.add(entry);
+                claimed.add(entry.seq);
+            }
+        }
+
+        if (!expired.isEmpty()) {
+            Log.w(TAG, "Dropping " + expired.size() + " expired messages");
+            Metrics.getInstance().getCounter(Metrics.SPOOL_EXPIRED).addAndGet(expired.size());
+            remove(expired);
+        }
+        return claim;
+    }
+
+    // Method that removes messages that have been sent
+    public synchronized void acknowledge(final Collection<Entry> sent) {
+        if (sent.isEmpty()) {
+            return;
+        }
+        Metrics.getInstance().getCounter(Metrics.SPOOL_REPLAYED).addAndGet(sent.size());
+        remove(sent);
+    }
+
+    // Method that makes claimed messages available again, after failing to send them
+    public synchronized void release(final Collection<Entry> unsent) {
+        for (Entry entry : unsent) {
+            claimed.remove(entry.seq);
+        }
+    }
+
+    // Method that removes the messages from memory and appends their acknowledgements
+    private void remove(final Collection<Entry> removed) {
+        for (Entry entry : removed) {
+            claimed.remove(entry.seq);
+            ArrayDeque<Entry> queue = entries.get(key(entry.mac));
+            if (queue != null && queue.remove(entry)) {
+                live_bytes -= entry.recordSize();
+            }
+        }
+
+        if (memory_only) {
+            return;
+        }
+
+        try {
+            for (Entry entry : removed) {
+                write(channel, ack(entry.seq));
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            // the messages will be sent again after a restart, which is the lesser evil
+            Log.e(TAG, "Error acknowledging spooled messages", e);
+        }
+        compactIfNeeded();
+    }
+
+    private void add(Entry entry) {
+        String key = key(entry.mac);
+        ArrayDeque<Entry> queue = entries.get(key);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            entries.put(key, queue);
+        }
+        queue.addLast(entry);
+        live_bytes += entry.recordSize();
+    }
+
+    // Method that opens the journal and reads the messages not yet acknowledged, the first
+    // time it is called. A record cut short by the process dying is discarded. If the journal
+    // cannot be read, the spool starts empty in memory only
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+
+        try {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // read the whole journal
+            }
+            buffer.flip();
+
+            Map<Long, Entry> by_seq = new LinkedHashMap<>();
+            long valid = 0;
+            while (buffer.remaining() >= HEADER_BYTES) {
+                int start = buffer.position();
+                int length = buffer.getInt();
+                long crc = buffer.getInt() & 0xFFFFFFFFL;
+                if (length <= 0 || length > buffer.remaining()
+                        || crc != crc32(buffer.array(), buffer.position(), length)) {
+                    break;
+                }
+
+                ByteBuffer body = ByteBuffer.wrap(buffer.array(), buffer.position(), length);
+                byte type = body.get();
+                long seq = body.getLong();
+                if (type == TYPE_MESSAGE) {
+                    long created = body.getLong();
+                    byte[] mac = new byte[body.getShort() & 0xFFFF];
+                    body.get(mac);
+                    byte[] bytes = new byte[body.getInt()];
+                    body.get(bytes);
+                    // journals written before slots were spooled end here
+                    String slot = null;
+                    if (body.hasRemaining()) {
+                        byte[] slot_bytes = new byte[body.getShort() & 0xFFFF];
+                        body.get(slot_bytes);
+                        slot = new String(slot_bytes, UTF_8);
+                    }
+                    by_seq.put(seq, new Entry(seq, created, new String(mac, UTF_8), bytes, slot));
+                } else if (type == TYPE_ACK) {
+                    by_seq.remove(seq);
+                }
+                next_seq = Math.max(next_seq, seq + 1);
+                buffer.position(start + HEADER_BYTES + length);
+                valid = buffer.position();
+            }
+
+            if (valid < channel.size()) {
+                Log.w(TAG, "Discarding " + (channel.size() - valid) + " bytes of torn journal");
+                channel.truncate(valid);
+            }
+            channel.position(channel.size());
+
+            for (Entry entry : by_seq.values()) {
+                add(entry);
+            }
+            if (!by_seq.isEmpty()) {
+                Log.i(TAG, "Loaded " + by_seq.size() + " spooled messages");
+            }
+            compactIfNeeded();
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Error loading spool, spooling in memory only", e);
+            setMemoryOnly();
+        }
+    }
+
+    // Method that stops using the journal. Acknowledgements are no longer written, so after
+    // a restart messages sent since may be sent again, which is the lesser evil
+    private void setMemoryOnly() {
+        closeChannel();
+        memory_only = true;
+    }
+
+    // Method that rewrites the journal with only the live messages, once acknowledgements
+    // make up most of it or it has grown past the maximum size. If the live messages alone
+    // are too large, the oldest are dropped
+    private void compactIfNeeded() {
+        if (memory_only) {
+            return;
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            long size = channel.size();
+            if (size <= max_bytes && (size < 4096 || size < 2 * live_bytes)) {
+                return;
+            }
+
+            // Leave room to grow, so that the next append does not compact again
+            while (live_bytes > max_bytes * 3 / 4 && dropOldest()) {
+                Metrics.getInstance().getCounter(Metrics.SPOOL_DROPPED).incrementAndGet();
+            }
+
+            FileChannel out = new RandomAccessFile(temp, "rw").getChannel();
+            try {
+                out.truncate(0);
+                for (ArrayDeque<Entry> queue : entries.values()) {
+                    for (Entry entry : queue) {
+                        write(out, message(entry));
+                    }
+                }
+                out.force(false);
+            } finally {
+                out.close();
+            }
+
+            closeChannel();
+            if (!replaceJournal(temp)) {
+                // The old journal may hold messages dropped above, so it cannot be reopened
+                throw new IOException("Could not replace " + file);
+            }
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            channel.position(channel.size());
+        } catch (IOException e) {
+            if (channel != null) {
+                // the old journal is still open and complete
+                Log.e(TAG, "Error compacting spool", e);
+            } else {
+                Log.e(TAG, "Error compacting spool, spooling in memory only", e);
+                setMemoryOnly();
+            }
+            if (temp.exists() && !temp.delete()) {
+                Log.w(TAG, "Could not delete " + temp);
+            }
+        }
+    }
+
+    // Method that replaces the journal with the compacted one. Returns whether it did
+    boolean replaceJournal(final File temp) {
+        return temp.renameTo(file) || (file.delete() && temp.renameTo(file));
+    }
+
+    // Method that drops the oldest unclaimed message of any device. Returns false if there
+    // is none
+    private boolean dropOldest() {
+        Entry oldest = null;
+        for (ArrayDeque<Entry> queue : entries.values()) {
+            for (Entry entry : queue) {
+                if (!claimed.contains(entry.seq)) {
+                    if (oldest == null || entry.seq < oldest.seq) {
+                        oldest = entry;
+                    }
+                    // the rest of the device's messages are newer
+                    break;
+                }
+            }
+        }
+
+        if (oldest == null) {
+            return false;
+        }
+
+        Log.w(TAG, "Spool full, dropping oldest message");
+        entries.get(key(oldest.mac)).remove(oldest);
+        live_bytes -= oldest.recordSize();
+        return true;
+    }
+
+    private void closeChannel() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Exception trying to close spool", e);
+        }
+        channel = null;
+    }
+
+    private static ByteBuffer message(Entry entry) {
+        byte[] mac = entry.mac.getBytes(UTF_8);
+        byte[] slot = entry.slot == null ? null : entry.slot.getBytes(UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(1 + 8 + 8 + 2 + mac.length + 4 + entry.bytes.length
+                + (slot == null ? 0 : 2 + slot.length));
+        body.put(TYPE_MESSAGE).putLong(entry.seq).putLong(entry.created);
+        body.putShort((short) mac.length).put(mac);
+        body.putInt(entry.bytes.length).put(entry.bytes);
+        if (slot != null) {
+            body.putShort((short) slot.length).put(slot);
+        }
+        return record(body);
+    }
+
+    private static ByteBuffer ack(long seq) {
+        ByteBuffer body = ByteBuffer.allocate(1 + 8);
+        body.put(TYPE_ACK).putLong(seq);
+        return record(body);
+    }
+
+    // Method that frames a record body with its length and CRC
+    private static ByteBuffer record(ByteBuffer body) {
+        byte[] array = body.array();
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + array.length);
+        record.putInt(array.length).putInt((int) crc32(array, 0, array.length)).put(array);
+        record.flip();
+        return record;
+    }
+
+    private static long crc32(final byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return crc.getValue();
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Bounded LRU cache of the wire bytes of static bundles, or of the compiled
+ * templates of template bundles, keyed by the fingerprint stored in the bundle when it is
+ * generated
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class PayloadCache {
+    // Number of distinct actions whose payloads are kept
+    public final static int MAX_ENTRIES = 64;
+
+    // A compiled payload, together with the contents it was compiled from. The contents are
+    // compared on lookup, so a fingerprint collision can only cause a miss, never wrong bytes
+    private static class Payload {
+        final String mac;
+        final String msg;
+        final boolean crlf;
+        final int mode;
+        final int charset;
+        // Exactly one of the two is set
+        final byte[] bytes;
+        final MessageTemplate template;
+
+        Payload(final String mac, final String msg, boolean crlf, int mode, int charset,
+                final byte[] bytes, final MessageTemplate template) {
+            this.mac = mac;
+            this.msg = msg;
+            this.crlf = crlf;
+            this.mode = mode;
+            this.charset = charset;
+            this.bytes = bytes;
+            this.template = template;
+        }
+
+        boolean matches(final String mac, final String msg, boolean crlf, int mode, int charset) {
+            return this.crlf == crlf && this.mode == mode && this.charset == charset
+                    && this.mac.equals(mac) && this.msg.equals(msg);
+        }
+    }
+
+    private final Map<Long, Payload> entries = new LinkedHashMap<Long, Payload>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Payload> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    // Method that returns the cached bytes for the given contents, or null on a miss.
+    // The returned array is shared and must not be modified
+    public synchronized byte[] get(long fingerprint, final String mac, final String msg,
+                                   boolean crlf, int mode, int charset) {
+        Payload entry = entries.get(fingerprint);
+        if (entry == null || !entry.matches(mac, msg, crlf, mode, charset)) {
+            return null;
+        }
+        return entry.bytes;
+    }
+
+    public synchronized void put(long fingerprint, final String mac, final String msg,
+                                 boolean crlf, int mode, int charset, final byte[] bytes) {
+        entries.put(fingerprint, new Payload(mac, msg, crlf, mode, charset, bytes, null));
+    }
+
+    // Method that returns the cached template for the given contents, or null on a miss
+    public synchronized MessageTemplate getTemplate(long fingerprint, final String mac,
+                                                    final String msg, boolean crlf, int mode,
+                                                    int charset) {
+        Payload entry = entries.get(fingerprint);
+        if (entry == null || !entry.matches(mac, msg, crlf, mode, charset)) {
+            return null;
+        }
+        return entry.template;
+    }
+
+    public synchronized void putTemplate(long fingerprint, final String mac, final String msg,
+                                         boolean crlf, int mode, int charset,
+                                         final MessageTemplate template) {
+        entries.put(fingerprint, new Payload(mac, msg, crlf, mode, charset, null, template));
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    // Method that computes a 64-bit FNV-1a hash of the contents. Never returns 0, which
+    // marks bundles without a fingerprint. Text and hex messages hash as they did when hex
+    // was a flag, so that the fingerprints of saved bundles stay valid
+    public static long fingerprint(final String mac, final String msg, boolean crlf, int mode) {
+        return fingerprint(mac, msg, crlf, mode, false, TextEncoder.CHARSET_UTF8);
+    }
+
+    // Method that computes the fingerprint like above, for a bundle that may be a template
+    // and may use another charset. UTF-8 bundles that are not templates hash as above
+    public static long fingerprint(final String mac, final String msg, boolean crlf, int mode,
+                                   boolean template, int charset) {
+        long hash = 0xcbf29ce484222325L;
+        hash = mix(hash, mac);
+        hash = mix(hash, msg);
+        int flags = mode == BundleManager.MODE_TEXT || mode == BundleManager.MODE_HEX
+                ? mode : mode << 2;
+        if (template) {
+            flags |= 0x100;
+        }
+        flags |= charset << 9;
+        hash = (hash ^ ((crlf ? 2 : 0) | flags)) * 0x100000001b3L;
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static long mix(long hash, final String s) {
+        for (int i = 0; i < s.length(); ++i) {
+            hash = (hash ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        // separator, so that ("ab", "c") and ("a", "bc") differ
+        return (hash ^ 0xFFFF) * 0x100000001b3L;
+    }
+}
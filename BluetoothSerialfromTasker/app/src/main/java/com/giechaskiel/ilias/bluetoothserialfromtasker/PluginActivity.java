@@ -20,13 +20,14 @@ import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.ListPopupWindow;
+import android.widget.Spinner;
 import android.widget.Toast;
 
 import com.twofortyfouram.locale.sdk.client.ui.activity.AbstractPluginActivity;
 
 import net.dinglisch.android.tasker.TaskerPlugin;
 
-import java.util.Set;
+import java.util.List;
 
 import static com.giechaskiel.ilias.bluetoothserialfromtasker.BundleManager.BUNDLE_STRING_MAC;
 import static com.giechaskiel.ilias.bluetoothserialfromtasker.BundleManager.BUNDLE_STRING_MSG;
@@ -75,6 +76,20 @@ public final class PluginActivity extends AbstractPluginActivity {
                 }
             }
         });
+
+        final Button settingsButton = (Button) findViewById(R.id.settings_button);
+        settingsButton.setOnClickListener(new View.OnClickListener() {
+            public void onClick(View v) {
+                startActivity(new Intent(PluginActivity.this, SettingsActivity.class));
+            }
+        });
+
+        final Button statsButton = (Button) findViewById(R.id.stats_button);
+        statsButton.setOnClickListener(new View.OnClickListener() {
+            public void onClick(View v) {
+                startActivity(new Intent(PluginActivity.this, StatsActivity.class));
+            }
+        });
     }
 
     // Method that popups a list of paired devices
@@ -83,7 +98,7 @@ public final class PluginActivity extends AbstractPluginActivity {
             return;
         }
 
-        Set<BluetoothDevice> pairedDevices = mBluetoothAdapter.getBondedDevices();
+        List<BluetoothDevice> pairedDevices = DeviceIndex.getInstance().getDevices();
 
         addresses = new String[pairedDevices.size()];
         names = new String[pairedDevices.size()];
@@ -104,7 +119,13 @@ public final class PluginActivity extends AbstractPluginActivity {
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
                 if (position >= 0 && position < addresses.length) {
-                    macText.setText(addresses[position]);
+                    // Add to a list being typed, as in "00:11:22:AA:BB:CC,", else replace
+                    String current = macText.getText().toString().trim();
+                    if (current.endsWith(",")) {
+                        macText.setText(current + " " + addresses[position]);
+                    } else {
+                        macText.setText(addresses[position]);
+                    }
                 }
                 popupWindow.dismiss();
             }
@@ -138,8 +159,28 @@ public final class PluginActivity extends AbstractPluginActivity {
         final boolean crlf = BundleManager.getCrlf(bundle);
         ((CheckBox) findViewById(R.id.crlf_checkbox)).setChecked(crlf);
 
-        final boolean hex = BundleManager.getHex(bundle);
-        ((CheckBox) findViewById(R.id.hex_checkbox)).setChecked(hex);
+        final int mode = BundleManager.getMode(bundle);
+        ((Spinner) findViewById(R.id.mode_spinner)).setSelection(mode);
+
+        final int charset = BundleManager.getCharset(bundle);
+        ((Spinner) findViewById(R.id.charset_spinner)).setSelection(charset);
+
+        final boolean template = BundleManager.getTemplate(bundle);
+        ((CheckBox) findViewById(R.id.template_checkbox)).setChecked(template);
+
+        final String slot = BundleManager.getStateSlot(bundle);
+        ((EditText) findViewById(R.id.state_slot)).setText(slot != null ? slot : "");
+
+        final boolean reply = BundleManager.getReply(bundle);
+        ((CheckBox) findViewById(R.id.reply_checkbox)).setChecked(reply);
+        if (reply) {
+            ((EditText) findViewById(R.id.reply_delimiters)).setText(
+                    BundleManager.getReplyDelimiters(bundle));
+            ((EditText) findViewById(R.id.reply_max_bytes)).setText(
+                    Integer.toString(BundleManager.getReplyMaxBytes(bundle)));
+            ((EditText) findViewById(R.id.reply_timeout)).setText(
+                    Integer.toString(BundleManager.getReplyTimeoutMs(bundle)));
+        }
     }
 
     // Method that returns the bundle to be saved
@@ -148,13 +189,16 @@ public final class PluginActivity extends AbstractPluginActivity {
         String mac = macText.getText().toString();
         String msg = ((EditText) findViewById(R.id.msg)).getText().toString();
         boolean crlf = ((CheckBox) findViewById(R.id.crlf_checkbox)).isChecked();
-        boolean hex = ((CheckBox) findViewById(R.id.hex_checkbox)).isChecked();
+        int mode = ((Spinner) findViewById(R.id.mode_spinner)).getSelectedItemPosition();
+        int charset = ((Spinner) findViewById(R.id.charset_spinner)).getSelectedItemPosition();
+        boolean template = ((CheckBox) findViewById(R.id.template_checkbox)).isChecked();
 
-        Bundle bundle = BundleManager.generateBundle(mac, msg, crlf, hex);
+        Bundle bundle = BundleManager.generateBundle(mac, msg, crlf, mode, template, charset);
 
         if (bundle == null) {
             Context context = getApplicationContext();
-            String error = BundleManager.getErrorMessage(context, mac, msg, crlf, hex);
+            String error = BundleManager.getErrorMessage(context, mac, msg, crlf, mode, template,
+                    charset);
             if (error != null) {
                 Toast.makeText(context, error, Toast.LENGTH_LONG).show();
             } else {
@@ -163,6 +207,21 @@ public final class PluginActivity extends AbstractPluginActivity {
             return null;
         }
 
+        BundleManager.putStateSlot(bundle,
+                ((EditText) findViewById(R.id.state_slot)).getText().toString());
+
+        if (((CheckBox) findViewById(R.id.reply_checkbox)).isChecked()) {
+            String delimiters = ((EditText) findViewById(R.id.reply_delimiters)).getText().toString();
+            int max_bytes = parseInt(R.id.reply_max_bytes, FrameReader.DEFAULT_MAX_BYTES);
+            int timeout_ms = parseInt(R.id.reply_timeout, (int) FrameReader.DEFAULT_TIMEOUT_MS);
+
+            if (!BundleManager.putReply(bundle, delimiters, max_bytes, timeout_ms)) {
+                Toast.makeText(getApplicationContext(), R.string.invalid_reply,
+                        Toast.LENGTH_LONG).show();
+                return null;
+            }
+        }
+
         if (TaskerPlugin.Setting.hostSupportsOnFireVariableReplacement(this)) {
             TaskerPlugin.Setting.setVariableReplaceKeys(bundle, new String[]{
                     BUNDLE_STRING_MAC,
@@ -172,6 +231,21 @@ public final class PluginActivity extends AbstractPluginActivity {
         return bundle;
     }
 
+    // Method that reads the number in the text field, the default if it is empty, or -1 if
+    // it is not a number
+    private int parseInt(int id, int default_value) {
+        String text = ((EditText) findViewById(id)).getText().toString().trim();
+        if (text.isEmpty()) {
+            return default_value;
+        }
+
+        try {
+            return Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     // Method that creates summary of bundle
     @Override
     public String getResultBlurb(Bundle bundle) {
@@ -0,0 +1,144 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Class responsible for reading the app-wide settings edited in SettingsActivity
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+public class PluginSettings {
+    // Tag for logging
+    private final static String TAG = "PluginSettings";
+
+    // Keys for preferences. Must match the keys in res/xml/settings.xml
+    public final static String KEY_KEEP_ALIVE_SECONDS = "keep_alive_seconds";
+    public final static String KEY_COALESCE_MS = "coalesce_ms";
+    public final static String KEY_HEDGE_DELAY_MS = "hedge_delay_ms";
+    public final static String KEY_PARALLEL_DEVICES = "parallel_devices";
+    public final static String KEY_CHUNK_BYTES = "chunk_bytes";
+    public final static String KEY_CHUNK_GAP_MS = "chunk_gap_ms";
+    public final static String KEY_BYTES_PER_SECOND = "bytes_per_second";
+    public final static String KEY_SPOOL_TTL_MINUTES = "spool_ttl_minutes";
+    public final static String KEY_SPOOL_MAX_KB = "spool_max_kb";
+    public final static String KEY_BREAKER_FAILURES = "breaker_failures";
+    public final static String KEY_BREAKER_MAX_BACKOFF_SECONDS = "breaker_max_backoff_seconds";
+    public final static String KEY_PREWARM_PER_HOUR = "prewarm_per_hour";
+    public final static String KEY_PREWARM_HOLD_SECONDS = "prewarm_hold_seconds";
+    public final static String KEY_PREWARM_ON_UNLOCK = "prewarm_on_unlock";
+    public final static String KEY_PREWARM_ON_BLUETOOTH = "prewarm_on_bluetooth";
+
+    // Method to get how long an idle connection is kept open for reuse. 0 disables pooling
+    public static long getKeepAliveMs(Context context) {
+        return 1000L * getInt(context, KEY_KEEP_ALIVE_SECONDS,
+                (int) (ConnectionPool.DEFAULT_KEEP_ALIVE_MS / 1000));
+    }
+
+    // Method to get how long to wait for further messages to the same device, so that
+    // they can be merged into a single write. 0 only merges messages queued behind a send
+    public static long getCoalesceMs(Context context) {
+        return getInt(context, KEY_COALESCE_MS, (int) SendQueue.DEFAULT_COALESCE_MS);
+    }
+
+    // Method to get how long a connect strategy may take before the next one is tried in
+    // parallel. 0 tries strategies strictly one after the other
+    public static long getHedgeDelayMs(Context context) {
+        return getInt(context, KEY_HEDGE_DELAY_MS, (int) Connector.DEFAULT_HEDGE_DELAY_MS);
+    }
+
+    // Method to get how many devices of an action with several MACs are sent to at once
+    public static int getParallelDevices(Context context) {
+        return Math.max(1, getInt(context, KEY_PARALLEL_DEVICES, SendQueue.DEFAULT_PARALLELISM));
+    }
+
+    // Method to get the largest chunk a message is written in. 0 uses the link's packet size
+    public static int getChunkBytes(Context context) {
+        return getInt(context, KEY_CHUNK_BYTES, ChunkedWriter.DEFAULT_CHUNK_BYTES);
+    }
+
+    // Method to get how long to pause between the chunks of a message
+    public static long getChunkGapMs(Context context) {
+        return getInt(context, KEY_CHUNK_GAP_MS, (int) ChunkedWriter.DEFAULT_GAP_MS);
+    }
+
+    // Method to get the average rate chunks are written at. 0 does not limit it
+    public static int getBytesPerSecond(Context context) {
+        return getInt(context, KEY_BYTES_PER_SECOND, ChunkedWriter.DEFAULT_BYTES_PER_SECOND);
+    }
+
+    // Method to get how long messages that could not be sent are kept, to be sent once their
+    // device is reachable again. 0 does not keep them
+    public static long getSpoolTtlMs(Context context) {
+        return 60L * 1000L * getInt(context, KEY_SPOOL_TTL_MINUTES,
+                (int) (OfflineSpool.DEFAULT_TTL_MS / 60000));
+    }
+
+    // Method to get how large the file of kept messages may grow
+    public static long getSpoolMaxBytes(Context context) {
+        return 1024L * getInt(context, KEY_SPOOL_MAX_KB,
+                (int) (OfflineSpool.DEFAULT_MAX_BYTES / 1024));
+    }
+
+    // Method to get how many consecutive failed connects make later sends to the device fail
+    // at once. 0 always tries to connect
+    public static int getBreakerFailures(Context context) {
+        return getInt(context, KEY_BREAKER_FAILURES, CircuitBreaker.DEFAULT_FAILURES);
+    }
+
+    // Method to get the longest time sends to an unreachable device fail at once before
+    // connecting is tried again
+    public static long getBreakerMaxBackoffMs(Context context) {
+        return 1000L * getInt(context, KEY_BREAKER_MAX_BACKOFF_SECONDS,
+                (int) (CircuitBreaker.DEFAULT_MAX_BACKOFF_MS / 1000));
+    }
+
+    // Method to get how many connections may be opened ahead of time per hour. 0 disables it
+    public static int getPrewarmPerHour(Context context) {
+        return getInt(context, KEY_PREWARM_PER_HOUR, ConnectionWarmer.DEFAULT_PER_HOUR);
+    }
+
+    // Method to get how long a connection opened ahead of time waits for a message
+    public static long getPrewarmHoldMs(Context context) {
+        return 1000L * getInt(context, KEY_PREWARM_HOLD_SECONDS,
+                (int) (ConnectionWarmer.DEFAULT_HOLD_MS / 1000));
+    }
+
+    // Method to get whether connections are opened ahead of time when the phone is unlocked
+    public static boolean getPrewarmOnUnlock(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(KEY_PREWARM_ON_UNLOCK, false);
+    }
+
+    // Method to get whether connections are opened ahead of time when Bluetooth is switched on
+    public static boolean getPrewarmOnBluetooth(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(KEY_PREWARM_ON_BLUETOOTH, false);
+    }
+
+    // Method to read a non-negative integer stored as a string (EditTextPreference only
+    // stores strings), falling back to the default if missing or malformed
+    private static int getInt(Context context, final String key, int default_value) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String value = prefs.getString(key, null);
+        if (value == null || value.isEmpty()) {
+            return default_value;
+        }
+
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed >= 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+
+        Log.w(TAG, "Ignoring invalid value for " + key + ": " + value);
+        return default_value;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Transport that reaches paired devices over Bluetooth RFCOMM sockets
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class RfcommTransport implements Transport {
+    // Tag for logging
+    private final static String TAG = "RfcommTransport";
+
+    @Override
+    public boolean isAvailable() {
+        BluetoothAdapter mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        if (mBluetoothAdapter == null) {
+            Log.e(TAG, "Device does not support Bluetooth");
+            return false;
+        }
+        if (!mBluetoothAdapter.isEnabled()) {
+            Log.e(TAG, "Bluetooth is disabled");
+            return false;
+        }
+        return true;
+    }
+
+    // Method that returns the paired device with given mac. null if an error occurs
+    @Override
+    public Device getDevice(final String mac) {
+        if (!isAvailable()) {
+            return null;
+        }
+        // Can also use the getRemoteDevice() function, but it always return an object for a valid
+        // address, even if it has not previously been seen (IllegalArgumentException otherwise).
+        BluetoothDevice device = DeviceIndex.getInstance().get(mac);
+        if (device == null) {
+            Log.e(TAG, "MAC address provided is not in paired list");
+            return null;
+        }
+
+        return new RfcommDevice(device);
+    }
+
+    private static class RfcommDevice implements Device {
+        private final BluetoothDevice device;
+
+        RfcommDevice(BluetoothDevice device) {
+            this.device = device;
+        }
+
+        @Override
+        public String getAddress() {
+            return device.getAddress();
+        }
+
+        @Override
+        public String[] getStrategies() {
+            return ConnectStrategy.defaultOrder();
+        }
+
+        @Override
+        public Connection createConnection(final String strategy) throws IOException {
+            return new RfcommConnection(ConnectStrategy.valueOf(strategy).createSocket(device),
+                    strategy);
+        }
+    }
+
+    private static class RfcommConnection implements Connection {
+        private final BluetoothSocket socket;
+        private final String strategy;
+
+        RfcommConnection(BluetoothSocket socket, final String strategy) {
+            this.socket = socket;
+            this.strategy = strategy;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            socket.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return socket.isConnected();
+        }
+
+        @Override
+        public String getStrategy() {
+            return strategy;
+        }
+
+        @Override
+        public int getMaxPacketSize() {
+            // Only available from Marshmallow
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+                return 0;
+            }
+            return Math.max(0, socket.getMaxTransmitPacketSize());
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
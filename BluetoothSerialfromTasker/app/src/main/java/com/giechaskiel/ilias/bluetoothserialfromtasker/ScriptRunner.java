@@ -0,0 +1,178 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Class responsible for running a script (see MessageScript) over a single
+ * connection. Each message is scheduled on the executor of the send queue for when its
+ * pause is over, so no thread is held while waiting, and the pause is measured from the
+ * moment the previous message was flushed.
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+class ScriptRunner {
+    // Tag for logging
+    private final static String TAG = "ScriptRunner";
+
+    private final MessageSender sender;
+    private final ScheduledExecutorService executor;
+    private final String mac;
+    private final List<MessageScript.Step> steps;
+    private final long final_delay_ms;
+    private final long deadline;
+    private final long keep_alive_ms;
+    private final FrameReader.Request reply;
+    private final SendQueue.Pending pending;
+    private final Runnable resume;
+
+    private final SendResult result = new SendResult();
+    private Transport.Connection connection = null;
+
+    // Method that prepares to run the script of the pending message to the device. Once the
+    // script is over, the message completes, and resume runs after the final pause of the
+    // script. Replies are read as the request says, until the message's deadline
+    ScriptRunner(MessageSender sender, ScheduledExecutorService executor, final String mac,
+                 final MessageScript script, long deadline, long keep_alive_ms,
+                 final FrameReader.Request reply, SendQueue.Pending pending, Runnable resume) {
+        this.sender = sender;
+        this.executor = executor;
+        this.mac = mac;
+        this.steps = script.getSteps();
+        this.final_delay_ms = script.getFinalDelayMs();
+        this.deadline = deadline;
+        this.keep_alive_ms = keep_alive_ms;
+        this.reply = reply;
+        this.pending = pending;
+        this.resume = resume;
+    }
+
+    // Method that connects and schedules the first message. Runs on a thread of the executor
+    public void start() {
+        try {
+            connection = sender.open(mac, deadline, result);
+            if (connection == null) {
+                finish();
+                return;
+            }
+            schedule(0);
+        } catch (RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    // Method that schedules the message at index for when its pause is over, or fails the
+    // script if that is past the deadline
+    private void schedule(final int index) {
+        long delay_ms = steps.get(index).getDelayMs();
+        if (delay_ms > deadline - System.currentTimeMillis()) {
+            result.fail("Deadline passed before step " + (index + 1),
+                    SendResult.CAUSE_TIMEOUT);
+            close();
+            finish();
+            return;
+        }
+
+        if (delay_ms == 0) {
+            runStep(index);
+            return;
+        }
+
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runStep(index);
+            }
+        }, delay_ms, TimeUnit.MILLISECONDS);
+    }
+
+    // Method that writes the message at index, checks its reply, and moves on to the next
+    private void runStep(int index) {
+        try {
+            MessageScript.Step step = steps.get(index);
+            if (!sender.write(connection, step.getBytes(), step.expectsReply(), result)) {
+                connection = null;
+                // A pooled connection may have gone away while idle, so retry the first
+                // message once on a fresh one. Only a failed write is retried: once the
+                // bytes are out, sending them again would repeat the command
+                if (index > 0 || !result.reused) {
+                    finish();
+                    return;
+                }
+
+                Log.w(TAG, "Pooled connection failed on write, reconnecting");
+                connection = sender.reopen(mac, deadline, result);
+                if (connection == null
+                        || !sender.write(connection, step.getBytes(), step.expectsReply(),
+                        result)) {
+                    connection = null;
+                    finish();
+                    return;
+                }
+            }
+
+            ++result.steps;
+            if (step.expectsReply() && !sender.read(connection, reply, deadline, result)) {
+                connection = null;
+                finish();
+                return;
+            }
+
+            if (step.expectsReply() && !step.matches(result.reply)) {
+                result.fail("Unexpected reply to step " + (index + 1) + ": " + result.reply,
+                        SendResult.CAUSE_UNEXPECTED_REPLY);
+                close();
+                finish();
+                return;
+            }
+
+            if (index + 1 < steps.size()) {
+                schedule(index + 1);
+                return;
+            }
+
+            Log.i(TAG, "Sent script of " + steps.size() + " messages");
+            result.sent = true;
+            result.error = null;
+            result.cause = null;
+            finish();
+        } catch (RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(RuntimeException e) {
+        Log.e(TAG, "Unexpected error while running script", e);
+        result.fail("Unexpected error: " + e.getMessage(), e.getClass().getSimpleName());
+        close();
+        finish();
+    }
+
+    private void close() {
+        if (connection != null) {
+            sender.abort(connection);
+            connection = null;
+        }
+    }
+
+    // Method that completes the message and resumes the queue, after the final pause if
+    // the script was sent
+    private void finish() {
+        try {
+            sender.finish(mac, connection, keep_alive_ms, result);
+        } finally {
+            connection = null;
+            pending.complete(result);
+            if (result.sent && final_delay_ms > 0) {
+                executor.schedule(resume, final_delay_ms, TimeUnit.MILLISECONDS);
+            } else {
+                executor.execute(resume);
+            }
+        }
+    }
+}
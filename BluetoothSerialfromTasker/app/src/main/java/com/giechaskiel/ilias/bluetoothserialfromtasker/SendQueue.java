@@ -0,0 +1,401 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Class responsible for serializing sends to each device, merging messages
+ * that arrive close together into a single write, and dropping state commands that a newer
+ * command for the same state slot makes obsolete before they are written. Scripts hold the
+ * device's queue until their last pause is over (see ScriptRunner)
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+public class SendQueue {
+    // Tag for logging
+    private final static String TAG = "SendQueue";
+
+    // Default number of devices that can be connected and sent to at the same time
+    public final static int DEFAULT_PARALLELISM = 4;
+
+    // Default time to wait for further messages to the same device before writing
+    public final static long DEFAULT_COALESCE_MS = 20;
+
+    // How long a connection opened ahead of writing state commands stays pooled when the
+    // keep-alive is shorter, so that the write right after still finds it
+    private final static long WARM_HOLD_MS = 5 * 1000;
+
+    // A message waiting to be sent, which the caller can wait on
+    public static class Pending {
+        private final byte[] bytes;
+        private final long deadline;
+        private final FrameReader.Request reply;
+        private final String slot;
+        private final MessageScript script;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile SendResult result = null;
+
+        // Older messages for the same slot that this one replaced, which complete with it.
+        // Only changed while this message is queued, under the queue's lock
+        private final List<Pending> superseded = new ArrayList<>();
+
+        Pending(final byte[] bytes, long deadline, final FrameReader.Request reply,
+                final String slot) {
+            this(bytes, deadline, reply, slot, null);
+        }
+
+        Pending(final byte[] bytes, long deadline, final FrameReader.Request reply,
+                final String slot, final MessageScript script) {
+            this.bytes = bytes;
+            this.deadline = deadline;
+            this.reply = reply;
+            this.slot = slot;
+            this.script = script;
+        }
+
+        // Whether the message is written on its own rather than merged with others
+        private boolean isAlone() {
+            return reply != null || script != null;
+        }
+
+        void complete(SendResult result) {
+            this.result = result;
+            done.countDown();
+            for (Pending older : superseded) {
+                older.complete(result.supersede());
+            }
+        }
+
+        // Method that returns the outcome of the write the message was part of, or null if
+        // it has not completed. Messages merged into the same write share the result
+        public SendResult getResult() {
+            return result;
+        }
+
+        private boolean isSent() {
+            SendResult result = this.result;
+            return result != null && result.sent;
+        }
+
+        // Method that waits until the message has been written (possibly together with
+        // others) or has failed. Returns whether it was sent
+        public boolean await() {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return isSent();
+        }
+
+        // Method that waits like await(), but gives up at the deadline the message was queued
+        // with. Returns false if the message was not sent by then, although it may still be
+        public boolean awaitDeadline() {
+            if (deadline == Connector.NO_DEADLINE) {
+                return await();
+            }
+
+            try {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0 || !done.await(remaining, TimeUnit.MILLISECONDS)) {
+                    Log.w(TAG, "Deadline passed before message was sent");
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return isSent();
+        }
+    }
+
+    // Messages for one device. At most one drain task per device is scheduled or running,
+    // which is what serializes the sends
+    private static class DeviceQueue {
+        final String mac;
+        final List<Pending> pending = new ArrayList<>();
+        boolean draining = false;
+
+        DeviceQueue(final String mac) {
+            this.mac = mac;
+        }
+    }
+
+    private final MessageSender sender;
+    private final Map<String, DeviceQueue> queues = new HashMap<>();
+
+    private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+            DEFAULT_PARALLELISM, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private volatile long coalesce_ms = DEFAULT_COALESCE_MS;
+    private volatile long keep_alive_ms = ConnectionPool.DEFAULT_KEEP_ALIVE_MS;
+
+    public SendQueue(MessageSender sender) {
+        this.sender = sender;
+    }
+
+    public MessageSender getSender() {
+        return sender;
+    }
+
+    // Method to set how long to wait for further messages before writing the first one
+    public void setCoalesceMs(long coalesce_ms) {
+        this.coalesce_ms = coalesce_ms;
+    }
+
+    // Method to set how many devices can be connected and sent to at the same time. Sends
+    // to further devices wait for one of them to finish
+    public void setParallelism(int parallelism) {
+        if (parallelism > 0 && parallelism != executor.getCorePoolSize()) {
+            executor.setCorePoolSize(parallelism);
+        }
+    }
+
+    // Method to set how long connections stay open after a write
+    public void setKeepAliveMs(long keep_alive_ms) {
+        this.keep_alive_ms = keep_alive_ms;
+    }
+
+    // Whether messages for the device are queued or being sent
+    public boolean isBusy(final String mac) {
+        synchronized (queues) {
+            DeviceQueue queue = queues.get(BundleManager.normalizeMac(mac));
+            return queue != null && queue.draining;
+        }
+    }
+
+    // Method that sends the bytes to the device and waits for the result
+    public boolean send(final String mac, final byte[] bytes) {
+        return enqueue(mac, bytes).await();
+    }
+
+    // Method that sends the bytes to the device and waits for the result until the deadline
+    // (in System.currentTimeMillis() time), which also bounds connecting to the device
+    public boolean send(final String mac, final byte[] bytes, long deadline) {
+        return enqueue(mac, bytes, deadline).awaitDeadline();
+    }
+
+    // Method that queues the bytes for the device without waiting for them to be sent
+    public Pending enqueue(final String mac, final byte[] bytes) {
+        return enqueue(mac, bytes, Connector.NO_DEADLINE);
+    }
+
+    // Method that queues the bytes for the device, to be sent before the deadline if possible
+    public Pending enqueue(final String mac, final byte[] bytes, long deadline) {
+        return enqueue(mac, bytes, deadline, null);
+    }
+
+    // Method that queues the bytes for the device, and if reply is not null, reads the reply
+    // once they are sent. Messages awaiting a reply are never merged with others, so that the
+    // reply is to this message only
+    public Pending enqueue(final String mac, final byte[] bytes, long deadline,
+                           final FrameReader.Request reply) {
+        return enqueue(mac, bytes, deadline, reply, null);
+    }
+
+    // Method that queues the bytes like enqueue(mac, bytes, deadline, reply). If slot is not
+    // null, the message sets the state of that slot of the device, and replaces any message
+    // for the same slot that has not been written yet, which then completes with this one.
+    // Messages awaiting a reply are never replaced, nor replace others
+    public Pending enqueue(final String mac, final byte[] bytes, long deadline,
+                           final FrameReader.Request reply, final String slot) {
+        return enqueue(mac, new Pending(bytes, deadline, reply, reply == null ? slot : null));
+    }
+
+    // Method that queues the script for the device, to be run over a single connection
+    // once the messages queued before it are written. Replies the script expects are read
+    // as the request says, or with the defaults of FrameReader if it is null. Until the
+    // final pause of the script is over, no further messages are written to the device
+    public Pending enqueueScript(final String mac, final MessageScript script, long deadline,
+                                 final FrameReader.Request reply) {
+        FrameReader.Request request = reply != null ? reply : new FrameReader.Request(
+                FrameReader.DEFAULT_DELIMITERS, FrameReader.DEFAULT_MAX_BYTES,
+                FrameReader.DEFAULT_TIMEOUT_MS);
+        return enqueue(mac, new Pending(null, deadline, request, null, script));
+    }
+
+    private Pending enqueue(final String mac, final Pending pending) {
+        final String key = BundleManager.normalizeMac(mac);
+
+        synchronized (queues) {
+            DeviceQueue queue = queues.get(key);
+            if (queue == null) {
+                queue = new DeviceQueue(mac);
+                queues.put(key, queue);
+            }
+
+            if (pending.slot != null) {
+                supersede(queue.pending, pending);
+            }
+            queue.pending.add(pending);
+            if (!queue.draining) {
+                queue.draining = true;
+                final DeviceQueue to_drain = queue;
+                executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        drain(to_drain);
+                    }
+                }, coalesce_ms, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        return pending;
+    }
+
+    // Method that removes the messages for the slot of the newer message from the queue,
+    // so that they complete with it instead of being written
+    private static void supersede(final List<Pending> pending, Pending newer) {
+        Iterator<Pending> it = pending.iterator();
+        while (it.hasNext()) {
+            Pending older = it.next();
+            if (newer.slot.equals(older.slot)) {
+                it.remove();
+                newer.superseded.add(older);
+                Metrics.getInstance().getCounter(Metrics.SENDS_SUPERSEDED).incrementAndGet();
+            }
+        }
+    }
+
+    // Method that writes everything queued for the device, one merged write at a time. Messages
+    // arriving while a write (or connect) is in progress are merged into the next write.
+    private void drain(final DeviceQueue queue) {
+        while (true) {
+            // Connect before taking state commands off the queue, so that commands arriving
+            // during the connect still replace them
+            boolean has_slot;
+            long slot_deadline;
+            synchronized (queues) {
+                has_slot = hasSlot(queue.pending);
+                slot_deadline = latestDeadline(queue.pending);
+            }
+            SendResult warmed = null;
+            if (has_slot) {
+                warmed = sender.warm(queue.mac, Math.max(keep_alive_ms, WARM_HOLD_MS),
+                        slot_deadline);
+            }
+
+            List<Pending> batch;
+            synchronized (queues) {
+                if (queue.pending.isEmpty()) {
+                    queue.draining = false;
+                    return;
+                }
+                batch = takeBatch(queue.pending);
+            }
+
+            SendResult result;
+            try {
+                if (warmed != null && warmed.error != null) {
+                    // connecting just failed, so do not try again for this batch
+                    result = warmed;
+                    Metrics.getInstance().recordSend(queue.mac, result);
+                } else if (batch.get(0).script != null) {
+                    // The runner completes the script and drains the rest once it is done
+                    runScript(queue, batch.get(0));
+                    return;
+                } else {
+                    result = sender.send(queue.mac, merge(batch), keep_alive_ms,
+                            latestDeadline(batch), batch.get(0).reply, warmed);
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Unexpected error while sending", e);
+                result = new SendResult().fail("Unexpected error: " + e.getMessage(),
+                        e.getClass().getSimpleName());
+            }
+
+            if (batch.size() > 1) {
+                Log.i(TAG, "Coalesced " + batch.size() + " messages into one write");
+            }
+
+            for (Pending pending : batch) {
+                pending.complete(result);
+            }
+        }
+    }
+
+    // Method that starts the script of the message, which goes back to draining the queue
+    // of the device once it is over
+    private void runScript(final DeviceQueue queue, final Pending pending) {
+        new ScriptRunner(sender, executor, queue.mac, pending.script, pending.deadline,
+                keep_alive_ms, pending.reply, pending, new Runnable() {
+                    @Override
+                    public void run() {
+                        drain(queue);
+                    }
+                }).start();
+    }
+
+    // Method that removes the next write from the queue: either a single message awaiting a
+    // reply or running a script, or all messages up to the next such message
+    private static List<Pending> takeBatch(final List<Pending> pending) {
+        int count = 1;
+        if (!pending.get(0).isAlone()) {
+            while (count < pending.size() && !pending.get(count).isAlone()) {
+                ++count;
+            }
+        }
+
+        List<Pending> batch = new ArrayList<>(pending.subList(0, count));
+        pending.subList(0, count).clear();
+        return batch;
+    }
+
+    // Whether any of the messages sets the state of a slot
+    private static boolean hasSlot(final List<Pending> pending) {
+        for (Pending message : pending) {
+            if (message.slot != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Method that returns the deadline by which any message of the batch still wants to be sent
+    private static long latestDeadline(final List<Pending> batch) {
+        long deadline = 0;
+        for (Pending pending : batch) {
+            deadline = Math.max(deadline, pending.deadline);
+        }
+        return deadline;
+    }
+
+    // Method that concatenates the bytes of the messages, in order
+    private static byte[] merge(final List<Pending> batch) {
+        if (batch.size() == 1) {
+            return batch.get(0).bytes;
+        }
+
+        int length = 0;
+        for (Pending pending : batch) {
+            length += pending.bytes.length;
+        }
+
+        byte[] merged = new byte[length];
+        int offset = 0;
+        for (Pending pending : batch) {
+            System.arraycopy(pending.bytes, 0, merged, offset, pending.bytes.length);
+            offset += pending.bytes.length;
+        }
+        return merged;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Outcome of sending a message, with how long each step took, so that it can
+ * be reported back to the host
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+public class SendResult implements Cloneable {
+    // Address of the device the bytes were sent to
+    public String mac = null;
+
+    // Whether the bytes were written and flushed
+    public boolean sent = false;
+
+    // Description of what went wrong, or null if the bytes were sent
+    public String error = null;
+
+    // Short name of the cause of failure: the simple name of the exception class, or one of
+    // the causes below when there was no exception
+    public String cause = null;
+
+    public final static String CAUSE_UNAVAILABLE = "BluetoothUnavailable";
+    public final static String CAUSE_NOT_PAIRED = "DeviceNotPaired";
+    public final static String CAUSE_TIMEOUT = "DeadlineExceeded";
+    public final static String CAUSE_CONNECT_FAILED = "ConnectFailed";
+    public final static String CAUSE_INVALID_MESSAGE = "InvalidMessage";
+    public final static String CAUSE_CIRCUIT_OPEN = "CircuitOpen";
+    public final static String CAUSE_UNEXPECTED_REPLY = "UnexpectedReply";
+    public final static String CAUSE_REPLY_FAILED = "ReplyFailed";
+
+    // Time spent finding the device, connecting, writing and flushing. Lookup and connect
+    // are 0 when a pooled connection was reused
+    public long lookup_ms = 0;
+    public long connect_ms = 0;
+    public long write_ms = 0;
+    public long flush_ms = 0;
+
+    // Number of bytes written, which includes any messages merged into the same write
+    public int bytes = 0;
+
+    // Number of messages of a script written, or 0 if the message was not a script
+    public int steps = 0;
+
+    // Number of chunks the bytes were written in, and the effective rate of the write
+    // (bytes over write and flush time), or 0 if it took under a millisecond
+    public int chunks = 0;
+    public long bytes_per_second = 0;
+
+    // Strategy of the connection written to, or null if there was none
+    public String strategy = null;
+
+    // Whether a pooled connection was written to, rather than a new one
+    public boolean reused = false;
+
+    // State of the device's circuit breaker after the send (see CircuitBreaker), or null if
+    // the send did not get as far as the breaker, and how long until it lets a connect
+    // through again if it is open
+    public String breaker = null;
+    public long retry_in_ms = 0;
+
+    // Whether the message was replaced by a newer one for the same state slot before it was
+    // written, in which case the rest of the result is that of the newer message
+    public boolean superseded = false;
+
+    // Whether the bytes could not be sent and were spooled, to be sent once the device is
+    // reachable again
+    public boolean spooled = false;
+
+    // Reply read after the write, if one was requested: as text, as hex bytes separated by
+    // spaces, and the time spent waiting for it. null if no reply was requested or reading failed
+    public String reply = null;
+    public String reply_hex = null;
+    public long reply_ms = 0;
+
+    // Whether the reply ended at a delimiter or the byte limit, rather than the timeout
+    public boolean reply_complete = false;
+
+    // Description of why the reply could not be read, for instance because the connection
+    // broke while waiting for it, or null. The bytes were still sent when this is set
+    public String reply_error = null;
+
+    // Method that returns the result to report for a message superseded by the message
+    // this is the result of
+    SendResult supersede() {
+        try {
+            SendResult copy = (SendResult) clone();
+            copy.superseded = true;
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // Method that marks the result as failed with the given error and cause, and returns it
+    SendResult fail(final String error, final String cause) {
+        this.sent = false;
+        this.error = error;
+        this.cause = cause;
+        return this;
+    }
+}
@@ -7,168 +7,349 @@
 
 package com.giechaskiel.ilias.bluetoothserialfromtasker;
 
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
 import android.os.Bundle;
 import android.util.Log;
 
-import com.twofortyfouram.locale.sdk.client.receiver.AbstractPluginSettingReceiver;
+import net.dinglisch.android.tasker.TaskerPlugin;
 
-import java.io.IOException;
-import java.io.OutputStream;
-import java.util.UUID;
+import java.util.ArrayList;
+import java.util.List;
 
-public class SettingReceiver extends AbstractPluginSettingReceiver {
+// Extends BroadcastReceiver rather than AbstractPluginSettingReceiver, since the latter does
+// not pass on the fire intent, whose extras hold the host's timeout hint and completion intent
+public class SettingReceiver extends BroadcastReceiver {
     // Tag for logging
     private final static String TAG = "SettingReceiver";
 
-    // UUID necessary for creating socket
-    private final static UUID MY_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    // How long a replay of spooled messages may try to connect to their device
+    private final static long REPLAY_TIMEOUT_MS = 30 * 1000;
 
-    // Method that checks whether bundle is valid
-    @Override
-    protected boolean isBundleValid(Bundle bundle) {
-        return BundleManager.isBundleValid(bundle);
-    }
+    // Names of the variables returned to the host after each fire. Tasker requires lower case
+    public final static String VAR_MAC = "%bt_mac";
+    public final static String VAR_SENT = "%bt_sent";
+    public final static String VAR_LOOKUP_MS = "%bt_lookup_ms";
+    public final static String VAR_CONNECT_MS = "%bt_connect_ms";
+    public final static String VAR_WRITE_MS = "%bt_write_ms";
+    public final static String VAR_FLUSH_MS = "%bt_flush_ms";
+    public final static String VAR_TOTAL_MS = "%bt_total_ms";
+    public final static String VAR_BYTES = "%bt_bytes";
+    public final static String VAR_STEPS = "%bt_steps";
+    public final static String VAR_CHUNKS = "%bt_chunks";
+    public final static String VAR_BYTES_PER_SECOND = "%bt_bytes_per_s";
+    public final static String VAR_STRATEGY = "%bt_strategy";
+    public final static String VAR_REUSED = "%bt_reused";
+    public final static String VAR_SPOOLED = "%bt_spooled";
+    public final static String VAR_SUPERSEDED = "%bt_superseded";
+    public final static String VAR_BREAKER = "%bt_breaker";
+    public final static String VAR_RETRY_MS = "%bt_retry_ms";
+    public final static String VAR_REPLY = "%bt_reply";
+    public final static String VAR_REPLY_HEX = "%bt_reply_hex";
+    public final static String VAR_REPLY_MS = "%bt_reply_ms";
+    public final static String VAR_REPLY_COMPLETE = "%bt_reply_complete";
+    public final static String VAR_REPLY_ERROR = "%bt_reply_error";
 
-    // Method that suggests whether this task should be handled in a background thread
+    // Method that validates the fire intent, compiles its message and hands it to the
+    // ConnectionService, which sends it and reports the outcome if the host waits for it
     @Override
-    protected boolean isAsync() {
-        return true;
-    }
+    public void onReceive(final Context context, final Intent intent) {
+        final long start = System.currentTimeMillis();
 
-    // Method that returns Bluetooth Device with given mac. null if an error occurs
-    private BluetoothDevice getBluetoothDevice(final String mac) {
-        BluetoothAdapter mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-        if (mBluetoothAdapter == null) {
-            Log.e(TAG, "Device does not support Bluetooth");
-            return null;
-        }
-        if (!mBluetoothAdapter.isEnabled()) {
-            Log.e(TAG, "Bluetooth is disabled");
-            return null;
-        }
-        // Can also use the getRemoteDevice() function, but it always return an object for a valid
-        // address, even if it has not previously been seen (IllegalArgumentException otherwise).
-        // This is linear, but in general the number of paired devices is small.
-        for (BluetoothDevice device : mBluetoothAdapter.getBondedDevices()) {
-            if (device.getAddress().equals(mac)) {
-                return device;
-            }
+        if (!com.twofortyfouram.locale.api.Intent.ACTION_FIRE_SETTING.equals(intent.getAction())) {
+            Log.e(TAG, "Unexpected action " + intent.getAction());
+            return;
         }
 
-        Log.e(TAG, "MAC address provided is not in paired list");
-        return null;
-    }
+        final Bundle bundle;
+        try {
+            bundle = intent.getBundleExtra(com.twofortyfouram.locale.api.Intent.EXTRA_BUNDLE);
+        } catch (RuntimeException e) {
+            // a malicious or buggy host can send extras that cannot be unparcelled
+            Log.e(TAG, "Could not read bundle", e);
+            return;
+        }
+
+        final Bundle extras = intent.getExtras();
+        final boolean synchronous = isOrderedBroadcast()
+                && TaskerPlugin.Setting.hostSupportsSynchronousExecution(extras);
 
-    // Method to close socket, and catch any errors
-    private void closeSocket(BluetoothSocket socket) {
-        if (socket != null) {
-            try {
-                socket.close();
-                Log.i(TAG, "Closed socket successfully");
-            } catch (IOException e) {
-                Log.e(TAG, "Exception trying to close socket", e);
+        if (!BundleManager.isBundleValid(bundle)) {
+            Log.e(TAG, "Invalid bundle");
+            if (synchronous) {
+                setResultCode(TaskerPlugin.Setting.RESULT_CODE_FAILED);
             }
-        } else {
-            // Do not log, we sometimes call this method when exceptions have
-            // occured
-            // Log.w(TAG, "Tried to close null socket");
+            return;
         }
-    }
 
-    // Method to get a socket from the given device. The method first tries
-    // a secure connection, then an insecure one, then a legacy one.
-    private BluetoothSocket getConnectedSocket(BluetoothDevice device) {
-        if (device == null) {
-            Log.e(TAG, "Tried to connect socket of null device");
-            return null;
+        // Give up connecting once the host has stopped waiting for the action
+        final int timeout_ms = TaskerPlugin.Setting.getHintTimeoutMS(extras);
+        final long deadline = timeout_ms > 0
+                ? start + timeout_ms
+                : Connector.NO_DEADLINE;
+
+        // Compile the message here, so that the service only has to send it
+        final byte[] bytes = BundleManager.getMsgBytes(bundle);
+        final boolean return_variables = synchronous
+                && TaskerPlugin.Setting.hostSupportsVariableReturn(extras);
+
+        if (synchronous) {
+            // Must be set before returning or calling goAsync(), which takes over the result
+            setResultCode(TaskerPlugin.Setting.RESULT_CODE_PENDING);
         }
 
-        BluetoothSocket socket = null;
+        final Context app_context = context.getApplicationContext();
+        if (ConnectionService.fire(app_context, intent, bundle, bytes, start, deadline,
+                synchronous, return_variables)) {
+            return;
+        }
 
-        try {
-            // Try to connect securely
-            socket = device.createRfcommSocketToServiceRecord(MY_UUID);
-            socket.connect();
-            Log.i(TAG, "Successfully connected securely");
-        } catch (IOException e_sec) {
-            Log.e(TAG, "Error creating secure socket", e_sec);
-            closeSocket(socket);
-            socket = null;
-            try {
-                // Try to connect with an insecure socket
-                socket = device.createInsecureRfcommSocketToServiceRecord(MY_UUID);
-                socket.connect();
-                Log.i(TAG, "Successfully connected insecurely");
-            } catch (IOException e_insec) {
-                Log.e(TAG, "Error creating insecure socket", e_insec);
-                closeSocket(socket);
-                socket = null;
+        // Without the service, send from here, keeping the receiver alive until done
+        final PendingResult pending_result = goAsync();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
                 try {
-                    // Try legacy mode
-                    // Android has changed its behavior
-                    // https://stackoverflow.com/questions/18657427
-                    // so using workaround from
-                    // https://stackoverflow.com/questions/25698585
-                    socket = (BluetoothSocket) device.getClass().getMethod("createRfcommSocket",
-                            new Class[]{int.class}).invoke(device, 1);
-                    socket.connect();
-                    Log.i(TAG, "Successfully connected in legacy mode");
-                } catch (IOException e_leg) {
-                    Log.e(TAG, "Error creating legacy socket", e_leg);
-                    closeSocket(socket);
-                    socket = null;
-                } catch (Exception e_misc) {
-                    Log.e(TAG, "Other socket error (legacy): ", e_misc);
-                    closeSocket(socket);
-                    socket = null;
+                    fire(app_context, intent, bundle, bytes, start, deadline, synchronous,
+                            return_variables);
+                } finally {
+                    pending_result.finish();
                 }
             }
-        } catch (Exception e_overall) {
-            Log.e(TAG, "Other socket error (overall): ", e_overall);
-            closeSocket(socket);
-            socket = null;
+        }, TAG).start();
+    }
+
+    // Method that sends the compiled message of the bundle to its devices and, if the host
+    // waits for the result, reports the outcome to it with signalFinish. Runs in the
+    // ConnectionService, or in the receiver if the service could not be started
+    static void fire(Context context, Intent intent, Bundle bundle, final byte[] bytes,
+                     long start, long deadline, boolean synchronous, boolean return_variables) {
+        List<SendResult> results = firePluginSetting(context, bundle, bytes, deadline);
+        if (synchronous) {
+            signalFinish(context, intent, results, return_variables,
+                    System.currentTimeMillis() - start);
         }
 
-        return socket;
+        // Merges what earlier processes recorded before saving, the first time
+        Metrics.getInstance(context).save(context);
     }
 
-    // Method responsible for the connection and data transmission. Assumes bluetooth is enabled
-    // and the device has been paired with.
-    @Override
-    protected void firePluginSetting(Context context, Bundle bundle) {
-        final String mac = BundleManager.getMac(bundle);
-        BluetoothDevice device = getBluetoothDevice(mac);
-        if (device == null) {
-            return;
+    // Method that sends the messages spooled for the device (or for every device, if mac is
+    // null) in order, merged into as few writes as the queue allows. Messages that still
+    // cannot be sent stay in the spool
+    static void replay(Context context, final String mac) {
+        OfflineSpool spool = ConnectionService.getSpool(context);
+        List<String> macs = mac != null
+                ? BundleManager.getMacList(mac)
+                : spool.getMacs();
+
+        SendQueue queue = ConnectionService.getQueue(context);
+        long deadline = System.currentTimeMillis() + REPLAY_TIMEOUT_MS;
+        List<List<OfflineSpool.Entry>> claims = new ArrayList<>();
+        List<List<SendQueue.Pending>> pendings = new ArrayList<>();
+        for (String single : macs) {
+            List<OfflineSpool.Entry> entries = spool.claim(single);
+            claims.add(entries);
+            pendings.add(enqueueSpooled(queue, single, entries, deadline));
         }
 
-        BluetoothSocket socket = getConnectedSocket(device);
+        for (int i = 0; i < macs.size(); ++i) {
+            settleSpooled(spool, claims.get(i), pendings.get(i));
+        }
 
-        if (socket == null) {
-            return;
+        Metrics.getInstance(context).save(context);
+    }
+
+    // Method that queues spooled messages for the device, so that messages queued after them
+    // go out after (and usually in the same write as) them
+    private static List<SendQueue.Pending> enqueueSpooled(SendQueue queue, final String mac,
+                                                          final List<OfflineSpool.Entry> entries,
+                                                          long deadline) {
+        List<SendQueue.Pending> pendings = new ArrayList<>();
+        for (OfflineSpool.Entry entry : entries) {
+            // a newer message for the same slot replaces it, and the entry is then settled
+            // with that message
+            pendings.add(queue.enqueue(mac, entry.getBytes(), deadline, null, entry.getSlot()));
         }
+        if (!entries.isEmpty()) {
+            Log.i(TAG, "Replaying " + entries.size() + " spooled messages to " + mac);
+        }
+        return pendings;
+    }
 
-        byte[] bytes = BundleManager.getMsgBytes(bundle);
-        if (bytes != null) {
-            try {
-                OutputStream out = socket.getOutputStream();
-                out.write(bytes);
-                out.flush();
-            } catch (IOException e) {
-                Log.e(TAG, "Error writing to output stream", e);
+    // Method that waits for spooled messages to be written, and removes those sent from the
+    // spool. The queue completes every message once its connect gives up, so this does not
+    // wait forever, and a message is never released while it may still be written
+    private static void settleSpooled(OfflineSpool spool, final List<OfflineSpool.Entry> entries,
+                                      final List<SendQueue.Pending> pendings) {
+        List<OfflineSpool.Entry> sent = new ArrayList<>();
+        List<OfflineSpool.Entry> unsent = new ArrayList<>();
+        for (int i = 0; i < entries.size(); ++i) {
+            if (pendings.get(i).await()) {
+                sent.add(entries.get(i));
+            } else {
+                unsent.add(entries.get(i));
             }
+        }
+        spool.acknowledge(sent);
+        spool.release(unsent);
+    }
 
-            Log.i(TAG, "Sent message successfully");
-        } else {
+    // Method responsible for the connection and data transmission. Assumes bluetooth is enabled
+    // and the devices have been paired with. Sends to all the devices of the bundle at once (as
+    // many as the queue allows in parallel), and waits until the message has been written to
+    // each or the deadline has passed. Messages spooled for a device while it was unreachable
+    // are sent first, in the same connection. If the message cannot be sent and spooling is
+    // enabled, it is spooled in turn. Scripts are run on each device instead, and never
+    // spooled, since their timing would be lost. Returns the result for each device, in order.
+    private static List<SendResult> firePluginSetting(Context context, Bundle bundle,
+                                                      final byte[] bytes, long deadline) {
+        List<SendResult> results = new ArrayList<>();
+        MessageScript script = BundleManager.getScript(bundle);
+        if (bytes == null && script == null) {
             // this can happen, for instance, if string replacement of hex is incorrect
             Log.e(TAG, "Got null bytes, so did not send message");
+            SendResult result = new SendResult().fail("Invalid message",
+                    SendResult.CAUSE_INVALID_MESSAGE);
+            result.mac = BundleManager.getMac(bundle);
+            results.add(result);
+            return results;
+        }
+
+        // Queue everything before waiting, so that the devices are connected to concurrently
+        SendQueue queue = ConnectionService.getQueue(context);
+        OfflineSpool spool = ConnectionService.getSpool(context);
+        List<String> macs = BundleManager.getMacList(BundleManager.getMac(bundle));
+        FrameReader.Request reply = BundleManager.getReplyRequest(bundle);
+        String slot = BundleManager.getStateSlot(bundle);
+        List<List<OfflineSpool.Entry>> claims = new ArrayList<>();
+        List<List<SendQueue.Pending>> spooled = new ArrayList<>();
+        List<SendQueue.Pending> pendings = new ArrayList<>();
+        for (String mac : macs) {
+            List<OfflineSpool.Entry> entries = spool.claim(mac);
+            claims.add(entries);
+            spooled.add(enqueueSpooled(queue, mac, entries, deadline));
+            pendings.add(script != null
+                    ? queue.enqueueScript(mac, script, deadline, reply)
+                    : queue.enqueue(mac, bytes, deadline, reply, slot));
+        }
+
+        for (int i = 0; i < macs.size(); ++i) {
+            SendQueue.Pending pending = pendings.get(i);
+            pending.awaitDeadline();
+
+            SendResult result = pending.getResult();
+            if (result == null) {
+                result = new SendResult().fail("Timed out", SendResult.CAUSE_TIMEOUT);
+                result.mac = macs.get(i);
+            } else if (reply == null && script == null && OfflineSpool.isRetryable(result)
+                    && spool.append(macs.get(i), bytes, slot)) {
+                // Only messages the queue gave up on, which it will not write later. A reply
+                // cannot be waited for later, so such messages are not spooled
+                Log.i(TAG, "Spooled message for " + macs.get(i));
+                result.spooled = true;
+            }
+            if (result.sent) {
+                ConnectionService.getWarmer(context).recordUse(macs.get(i));
+            }
+            results.add(result);
+        }
+
+        for (int i = 0; i < macs.size(); ++i) {
+            settleSpooled(spool, claims.get(i), spooled.get(i));
+        }
+        return results;
+    }
+
+    // Method that tells the host the outcome of the fire, with its timings as variables. With
+    // several devices, the variables of each device are returned as arrays (%bt_sent1,
+    // %bt_sent2, ...) in the order of the MAC field
+    private static void signalFinish(Context context, Intent intent, List<SendResult> results,
+                                     boolean return_variables, long total_ms) {
+        int sent = 0;
+        StringBuilder errors = new StringBuilder();
+        for (SendResult result : results) {
+            if (result.sent) {
+                ++sent;
+            } else {
+                if (errors.length() > 0) {
+                    errors.append("; ");
+                }
+                if (results.size() > 1) {
+                    errors.append(result.mac).append(": ");
+                }
+                errors.append(result.error);
+            }
+        }
+
+        Bundle vars = null;
+        if (return_variables) {
+            vars = new Bundle();
+            vars.putString(VAR_TOTAL_MS, Long.toString(total_ms));
+            if (results.size() == 1) {
+                putDeviceVariables(vars, "", results.get(0));
+            } else {
+                for (int i = 0; i < results.size(); ++i) {
+                    putDeviceVariables(vars, Integer.toString(i + 1), results.get(i));
+                }
+            }
+            if (sent < results.size()) {
+                vars.putString(TaskerPlugin.Setting.VARNAME_ERROR_MESSAGE, errors.toString());
+            }
+        }
+
+        final int code;
+        if (sent == results.size()) {
+            code = TaskerPlugin.Setting.RESULT_CODE_OK;
+        } else if (sent > 0) {
+            code = TaskerPlugin.Setting.RESULT_CODE_OK_MINOR_FAILURES;
+        } else {
+            code = TaskerPlugin.Setting.RESULT_CODE_FAILED;
         }
 
-        closeSocket(socket);
+        if (!TaskerPlugin.Setting.signalFinish(context, intent, code, vars)) {
+            Log.w(TAG, "Could not signal the host that the action finished");
+        }
+    }
 
+    // Method that adds the variables describing the send to one device, with the suffix
+    // appended to each name
+    private static void putDeviceVariables(Bundle vars, final String suffix, SendResult result) {
+        if (result.mac != null) {
+            vars.putString(VAR_MAC + suffix, result.mac);
+        }
+        vars.putString(VAR_SENT + suffix, Boolean.toString(result.sent));
+        vars.putString(VAR_LOOKUP_MS + suffix, Long.toString(result.lookup_ms));
+        vars.putString(VAR_CONNECT_MS + suffix, Long.toString(result.connect_ms));
+        vars.putString(VAR_WRITE_MS + suffix, Long.toString(result.write_ms));
+        vars.putString(VAR_FLUSH_MS + suffix, Long.toString(result.flush_ms));
+        vars.putString(VAR_BYTES + suffix, Integer.toString(result.bytes));
+        vars.putString(VAR_STEPS + suffix, Integer.toString(result.steps));
+        vars.putString(VAR_CHUNKS + suffix, Integer.toString(result.chunks));
+        vars.putString(VAR_BYTES_PER_SECOND + suffix, Long.toString(result.bytes_per_second));
+        vars.putString(VAR_REUSED + suffix, Boolean.toString(result.reused));
+        vars.putString(VAR_SPOOLED + suffix, Boolean.toString(result.spooled));
+        vars.putString(VAR_SUPERSEDED + suffix, Boolean.toString(result.superseded));
+        if (result.breaker != null) {
+            vars.putString(VAR_BREAKER + suffix, result.breaker);
+            vars.putString(VAR_RETRY_MS + suffix, Long.toString(result.retry_in_ms));
+        }
+        if (result.strategy != null) {
+            vars.putString(VAR_STRATEGY + suffix, result.strategy);
+        }
+        if (result.reply != null) {
+            vars.putString(VAR_REPLY + suffix, result.reply);
+            vars.putString(VAR_REPLY_HEX + suffix, result.reply_hex);
+            vars.putString(VAR_REPLY_MS + suffix, Long.toString(result.reply_ms));
+            vars.putString(VAR_REPLY_COMPLETE + suffix, Boolean.toString(result.reply_complete));
+        } else if (result.reply_error != null) {
+            // the message was sent, but the connection broke before the reply was read
+            vars.putString(VAR_REPLY_MS + suffix, Long.toString(result.reply_ms));
+            vars.putString(VAR_REPLY_COMPLETE + suffix, Boolean.toString(false));
+        }
+        if (result.reply_error != null) {
+            vars.putString(VAR_REPLY_ERROR + suffix, result.reply_error);
+        }
     }
 }
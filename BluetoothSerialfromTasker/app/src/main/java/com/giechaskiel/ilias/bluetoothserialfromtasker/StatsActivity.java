@@ -0,0 +1,76 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Class responsible for showing and exporting the send-path metrics
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.view.View;
+import android.widget.Button;
+import android.widget.TextView;
+
+public class StatsActivity extends Activity {
+    private Metrics metrics;
+    private StrategyLearner learner;
+    private TextView statsText;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_stats);
+
+        metrics = Metrics.getInstance(getApplicationContext());
+        learner = StrategyLearner.getInstance(getApplicationContext());
+        statsText = (TextView) findViewById(R.id.stats_text);
+
+        final Button csvButton = (Button) findViewById(R.id.export_csv_button);
+        csvButton.setOnClickListener(new View.OnClickListener() {
+            public void onClick(View v) {
+                export("text/csv", metrics.toCsv());
+            }
+        });
+
+        final Button jsonButton = (Button) findViewById(R.id.export_json_button);
+        jsonButton.setOnClickListener(new View.OnClickListener() {
+            public void onClick(View v) {
+                export("application/json", metrics.toJson());
+            }
+        });
+
+        final Button resetButton = (Button) findViewById(R.id.reset_button);
+        resetButton.setOnClickListener(new View.OnClickListener() {
+            public void onClick(View v) {
+                metrics.reset();
+                metrics.save(getApplicationContext());
+                refresh();
+            }
+        });
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        refresh();
+    }
+
+    // Method that shows the current contents of the registry, followed by the connect
+    // strategies learned for each device
+    private void refresh() {
+        String text = metrics.toText() + learner.toText();
+        statsText.setText(text.isEmpty() ? getString(R.string.stats_empty) : text);
+    }
+
+    // Method that lets the user send the export to another app, for instance email or a drive
+    private void export(final String type, final String contents) {
+        Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType(type);
+        intent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.stats_name));
+        intent.putExtra(Intent.EXTRA_TEXT, contents);
+        startActivity(Intent.createChooser(intent, getString(R.string.stats_name)));
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Class responsible for remembering which connect strategy works for each device
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+public class StrategyLearner {
+    // Tag for logging
+    private final static String TAG = "StrategyLearner";
+
+    // Name of the preferences file holding the learned orders
+    private final static String PREFS_NAME = BundleManager.PACKAGE_NAME + ".strategies";
+
+    // Number of consecutive connects won by a strategy other than the learned first
+    // choice before the order is learned again
+    public final static int RELEARN_THRESHOLD = 3;
+
+    // Weight of the newest sample in the moving average of failed attempt durations
+    private final static float FAIL_MS_WEIGHT = 0.25f;
+
+    // Suffixes of the per-device preference keys
+    private final static String KEY_ORDER    = ".order";
+    private final static String KEY_MISSES   = ".misses";
+    private final static String KEY_HITS     = ".hits";
+    private final static String KEY_CONNECTS = ".connects";
+    private final static String KEY_FAIL_MS  = ".fail_ms";
+    private final static String KEY_SAVED_MS = ".saved_ms";
+
+    private static StrategyLearner instance;
+
+    private final SharedPreferences prefs;
+
+    // Method that creates a learner backed by the given preferences. Most callers should use
+    // the process-wide getInstance() instead
+    public StrategyLearner(SharedPreferences prefs) {
+        this.prefs = prefs;
+    }
+
+    public static synchronized StrategyLearner getInstance(Context context) {
+        if (instance == null) {
+            instance = new StrategyLearner(context.getApplicationContext()
+                    .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
+        }
+        return instance;
+    }
+
+    private static String key(final String mac, final String suffix) {
+        return BundleManager.normalizeMac(mac) + suffix;
+    }
+
+    // Method that returns the order in which to try strategies for the device: the learned
+    // order first, followed by any default strategies it does not mention
+    public synchronized List<String> getOrder(final String mac, final String[] default_order) {
+        List<String> order = new ArrayList<>();
+        String learned = prefs.getString(key(mac, KEY_ORDER), null);
+        if (learned != null) {
+            List<String> known = Arrays.asList(default_order);
+            for (String strategy : learned.split(",")) {
+                if (known.contains(strategy) && !order.contains(strategy)) {
+                    order.add(strategy);
+                }
+            }
+        }
+
+        for (String strategy : default_order) {
+            if (!order.contains(strategy)) {
+                order.add(strategy);
+            }
+        }
+
+        return order;
+    }
+
+    // Method that records that the given strategy connected, after the given number of
+    // earlier strategies in the order failed, taking failed_ms in total
+    public synchronized void recordSuccess(final String mac, final String[] default_order,
+                                           final String winner, int failures, long failed_ms) {
+        List<String> order = getOrder(mac, default_order);
+        SharedPreferences.Editor editor = prefs.edit();
+
+        int connects = prefs.getInt(key(mac, KEY_CONNECTS), 0) + 1;
+        editor.putInt(key(mac, KEY_CONNECTS), connects);
+
+        float fail_ms = prefs.getFloat(key(mac, KEY_FAIL_MS), 0f);
+        if (failures > 0) {
+            float sample = (float) failed_ms / failures;
+            fail_ms = fail_ms == 0f ? sample : fail_ms + FAIL_MS_WEIGHT * (sample - fail_ms);
+            editor.putFloat(key(mac, KEY_FAIL_MS), fail_ms);
+        }
+
+        // The first strategy tried is a hit whether it was learned or the default one
+        if (failures == 0) {
+            editor.putInt(key(mac, KEY_HITS), prefs.getInt(key(mac, KEY_HITS), 0) + 1);
+        }
+
+        boolean learned = prefs.contains(key(mac, KEY_ORDER));
+        if (learned && failures == 0) {
+            editor.putInt(key(mac, KEY_MISSES), 0);
+
+            // Estimate the time the default order would have spent on failing strategies
+            int skipped = Arrays.asList(default_order).indexOf(winner);
+            if (skipped > 0) {
+                long saved_ms = prefs.getLong(key(mac, KEY_SAVED_MS), 0L);
+                editor.putLong(key(mac, KEY_SAVED_MS), saved_ms + (long) (skipped * fail_ms));
+            }
+        } else {
+            int misses = learned ? prefs.getInt(key(mac, KEY_MISSES), 0) + 1 : RELEARN_THRESHOLD;
+            if (misses >= RELEARN_THRESHOLD) {
+                order.remove(winner);
+                order.add(0, winner);
+                editor.putString(key(mac, KEY_ORDER), join(order));
+                misses = 0;
+                Log.i(TAG, "Learned strategy order " + order);
+            }
+            editor.putInt(key(mac, KEY_MISSES), misses);
+        }
+
+        editor.apply();
+    }
+
+    // Method that forgets everything learned about the device
+    public synchronized void forget(final String mac) {
+        SharedPreferences.Editor editor = prefs.edit();
+        for (String suffix : new String[]{KEY_ORDER, KEY_MISSES, KEY_HITS, KEY_CONNECTS,
+                KEY_FAIL_MS, KEY_SAVED_MS}) {
+            editor.remove(key(mac, suffix));
+        }
+        editor.apply();
+    }
+
+    // Fraction of connects where the first strategy tried succeeded, or -1 if there are none
+    public synchronized float getHitRate(final String mac) {
+        int connects = prefs.getInt(key(mac, KEY_CONNECTS), 0);
+        if (connects == 0) {
+            return -1f;
+        }
+        return (float) prefs.getInt(key(mac, KEY_HITS), 0) / connects;
+    }
+
+    // Estimated milliseconds saved by not trying strategies known to fail
+    public synchronized long getSavedMs(final String mac) {
+        return prefs.getLong(key(mac, KEY_SAVED_MS), 0L);
+    }
+
+    // Method for getting short String description of what was learned about the device
+    public synchronized String describe(final String mac, final String[] default_order) {
+        return describe(mac, join(getOrder(mac, default_order)));
+    }
+
+    private String describe(final String mac, final String order) {
+        StringBuilder builder = new StringBuilder(order);
+        float hit_rate = getHitRate(mac);
+        if (hit_rate >= 0) {
+            builder.append(String.format(Locale.US, ", hit rate %.0f%% (%d/%d)", 100 * hit_rate,
+                    prefs.getInt(key(mac, KEY_HITS), 0), prefs.getInt(key(mac, KEY_CONNECTS), 0)));
+        }
+        builder.append(", ~").append(getSavedMs(mac)).append(" ms saved");
+
+        return builder.toString();
+    }
+
+    // Method that returns what was learned about each device, one device per line, for the
+    // statistics screen. Devices without a learned order yet show the default order
+    public synchronized String toText() {
+        Set<String> macs = new TreeSet<>();
+        for (String key : prefs.getAll().keySet()) {
+            if (key.endsWith(KEY_CONNECTS)) {
+                macs.add(key.substring(0, key.length() - KEY_CONNECTS.length()));
+            }
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (String mac : macs) {
+            String order = prefs.getString(key(mac, KEY_ORDER), "default order");
+            builder.append("strategies ").append(mac).append('\n')
+                    .append("  ").append(describe(mac, order)).append('\n');
+        }
+        return builder.toString();
+    }
+
+    private static String join(final List<String> strategies) {
+        StringBuilder builder = new StringBuilder();
+        for (String strategy : strategies) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(strategy);
+        }
+        return builder.toString();
+    }
+}
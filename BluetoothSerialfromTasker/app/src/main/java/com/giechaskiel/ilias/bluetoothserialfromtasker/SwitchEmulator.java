@@ -0,0 +1,391 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Model of arduino_bluetooth_switch.ino behind its Bluetooth module, to be used
+ * as a LoopbackTransport peer. Bytes from the plugin enter the module's buffer, cross the
+ * 38400 baud serial line into SoftwareSerial's 64-byte buffer, and are read by loop() one at
+ * a time, all on a virtual clock. Bytes that find a buffer full are dropped, as on the
+ * board. Commands are framed and carried out like in the sketch: text up to CR/LF with the
+ * AR_LEN wraparound, binary frames, on/off, and the millis()-based auto-shutoff and resets.
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+
+public class SwitchEmulator implements LoopbackTransport.Peer {
+    // Constants of the sketch
+    public final static int BAUD = 38400;
+    public final static int AR_LEN = 150;
+    public final static long DELAY_MS = 600;
+    public final static long MAX_CONTINUOUS_MS = 60 * 60 * 1000;
+    public final static int FRAME_MAX_PAYLOAD = 8;
+
+    // Size of SoftwareSerial's receive buffer (_SS_MAX_RX_BUFF)
+    public final static int RX_BUFFER = 64;
+
+    // Defaults for what the sketch does not define: the Bluetooth module's own buffer, and
+    // how long loop() takes per byte and per command on an 8 MHz ATtiny
+    public final static int DEFAULT_MODULE_BUFFER = 256;
+    public final static long DEFAULT_BYTE_US = 40;
+    public final static long DEFAULT_COMMAND_US = 200;
+
+    // reset_bluetooth() delays once, sends six AT commands with a delay each, then delays twice
+    private final static long RESET_MS = 9 * DELAY_MS;
+    private final static String[] RESET_COMMANDS = {
+            "AT+ORGL", "AT+NAME=\"YOUR-NAME\"", "AT+PSWD=\"YOUR_PASS\"",
+            "AT+INIT", "AT+INQ", "AT+INQC"};
+
+    private final static Charset ASCII = Charset.forName("US-ASCII");
+
+    // Source of virtual time
+    public interface Clock {
+        long nanoTime();
+    }
+
+    // Clock that follows the system clock, for driving the emulator from real writes
+    public final static Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    // Clock that only moves when told to, for deterministic tests of the timers
+    public static class ManualClock implements Clock {
+        private long nanos = 0;
+
+        @Override
+        public synchronized long nanoTime() {
+            return nanos;
+        }
+
+        public synchronized void advanceMs(long ms) {
+            nanos += ms * 1000000L;
+        }
+    }
+
+    private final Clock clock;
+    private final long start_nanos;
+    private final long byte_us;
+    private final long command_us;
+    private final int module_buffer;
+
+    // Times (in virtual microseconds) at which the bytes in each buffer leave it: when the
+    // serial line starts sending them, and when loop() reads them
+    private final ArrayDeque<Long> in_module = new ArrayDeque<>();
+    private final ArrayDeque<Long> in_rx = new ArrayDeque<>();
+    private long line_free_us = 0;
+    private long cpu_free_us = 0;
+
+    // State of the sketch
+    private final byte[] input = new byte[AR_LEN + 1];
+    private int index = 0;
+    private long last_reset_us = 0;
+    private long shutoff_start_us = 0;
+    // Delay of the shutoff in milliseconds, 0 if none
+    private long shutoff_ms = 0;
+    private boolean is_on = true;
+    private final BinaryProtocol.Decoder decoder = new BinaryProtocol.Decoder(FRAME_MAX_PAYLOAD);
+
+    private OutputStream to_plugin = null;
+
+    // Counters
+    private long received = 0;
+    private long dropped_module = 0;
+    private long dropped_rx = 0;
+    private long commands = 0;
+    private long frames = 0;
+    private long resets = 0;
+
+    public SwitchEmulator() {
+        this(SYSTEM_CLOCK, DEFAULT_MODULE_BUFFER, DEFAULT_BYTE_US, DEFAULT_COMMAND_US);
+    }
+
+    public SwitchEmulator(Clock clock) {
+        this(clock, DEFAULT_MODULE_BUFFER, DEFAULT_BYTE_US, DEFAULT_COMMAND_US);
+    }
+
+    // The module buffer is how many bytes the Bluetooth module holds before dropping, and
+    // byte_us and command_us how long loop() takes to read a byte and to carry out a command
+    public SwitchEmulator(Clock clock, int module_buffer, long byte_us, long command_us) {
+        this.clock = clock;
+        this.start_nanos = clock.nanoTime();
+        this.module_buffer = module_buffer;
+        this.byte_us = byte_us;
+        this.command_us = command_us;
+    }
+
+    // Time to send one byte over the serial line: a start bit, 8 data bits and a stop bit
+    private static long lineByteUs() {
+        return 10L * 1000000L / BAUD;
+    }
+
+    private long nowUs() {
+        return (clock.nanoTime() - start_nanos) / 1000;
+    }
+
+    // Value of millis() at the given virtual time, which wraps like an unsigned 32-bit long
+    private static int millis(long us) {
+        return (int) (us / 1000);
+    }
+
+    // Method that hands the connection's streams to a thread that feeds the emulator, like
+    // bytes arriving at the module over the air
+    @Override
+    public void onConnect(final InputStream from_plugin, final OutputStream to_plugin) {
+        synchronized (this) {
+            this.to_plugin = to_plugin;
+        }
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[1024];
+                try {
+                    int n;
+                    while ((n = from_plugin.read(buffer, 0, buffer.length)) >= 0) {
+                        receive(buffer, 0, n);
+                    }
+                } catch (IOException e) {
+                    // connection closed
+                }
+            }
+        }, "SwitchEmulator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Method that delivers bytes to the module at the current virtual time, as one packet
+    public synchronized void receive(final byte[] bytes, int offset, int length) {
+        long now = nowUs();
+        for (int i = offset; i < offset + length; ++i) {
+            receiveByte(bytes[i], now);
+        }
+    }
+
+    private void receiveByte(byte b, long now) {
+        ++received;
+
+        // The module holds the byte until the serial line is free
+        while (!in_module.isEmpty() && in_module.peekFirst() <= now) {
+            in_module.pollFirst();
+        }
+        if (in_module.size() >= module_buffer) {
+            ++dropped_module;
+            return;
+        }
+
+        long line_start = Math.max(now, line_free_us);
+        line_free_us = line_start + lineByteUs();
+        in_module.addLast(line_start);
+        long arrival = line_free_us;
+
+        // SoftwareSerial drops bytes that arrive while its buffer is full
+        while (!in_rx.isEmpty() && in_rx.peekFirst() <= arrival) {
+            in_rx.pollFirst();
+        }
+        if (in_rx.size() >= RX_BUFFER) {
+            ++dropped_rx;
+            return;
+        }
+
+        long read = Math.max(arrival, cpu_free_us);
+        read = runTimers(read);
+        in_rx.addLast(read);
+        cpu_free_us = read + byte_us;
+        readByte(b, cpu_free_us);
+    }
+
+    // Method that runs the checks at the top of loop() before a byte is read at the given
+    // time, and returns when loop() actually gets to read it. Resets that fell due while the
+    // sketch was idle have already finished by then
+    private long runTimers(long us) {
+        while (us - last_reset_us > MAX_CONTINUOUS_MS * 1000) {
+            // reset_bluetooth() blocks loop(), and the module forwards the AT commands to the
+            // phone, since it is connected
+            long reset_start = Math.max(last_reset_us + MAX_CONTINUOUS_MS * 1000, cpu_free_us);
+            last_reset_us = reset_start + RESET_MS * 1000;
+            us = Math.max(us, last_reset_us);
+            ++resets;
+            writeResetCommands();
+        }
+
+        checkShutoff(us);
+        return us;
+    }
+
+    // Method that switches off once the shutoff delay has passed, measuring it like the
+    // sketch does: millis() - shutoff_start in unsigned 32-bit, which survives wraparound
+    private void checkShutoff(long us) {
+        if (shutoff_ms > 0
+                && ((millis(us) - millis(shutoff_start_us)) & 0xFFFFFFFFL) >= shutoff_ms) {
+            shutoff_ms = 0;
+            is_on = false;
+        }
+    }
+
+    private void writeResetCommands() {
+        if (to_plugin == null) {
+            return;
+        }
+
+        try {
+            for (String command : RESET_COMMANDS) {
+                to_plugin.write((command + "\r\n").getBytes(ASCII));
+            }
+        } catch (IOException e) {
+            // connection closed
+        }
+    }
+
+    // Method that processes a byte like read_incoming() and loop(), at the given time
+    private void readByte(byte c, long us) {
+        // Binary frames, which are complete without CR or LF
+        if (decoder.inFrame() || c == BinaryProtocol.SYNC) {
+            if (decoder.feed(c)) {
+                ++frames;
+                handleFrame(us);
+                cpu_free_us += command_us;
+            }
+            return;
+        }
+
+        // Do not overflow
+        if (index == AR_LEN) {
+            index = 0;
+        }
+
+        if (c != '\r' && c != '\n') {
+            input[index] = c;
+            ++index;
+            return;
+        }
+
+        // Consecutive CR/LF end at most one command: the sketch either consumes them, or
+        // reads them as an empty command, which does nothing
+        if (index == 0) {
+            return;
+        }
+
+        String command = new String(input, 0, index, ASCII);
+        index = 0;
+        ++commands;
+        handleCommand(command, us);
+        cpu_free_us += command_us;
+    }
+
+    private void handleCommand(final String command, long us) {
+        if (command.equalsIgnoreCase("off")) {
+            is_on = false;
+            shutoff_ms = 0;
+        } else if (command.equalsIgnoreCase("on")) {
+            is_on = true;
+            shutoff_ms = 0;
+        } else {
+            setShutoff(parseLong(command), us);
+        }
+    }
+
+    private void handleFrame(long us) {
+        switch (decoder.getOpcode()) {
+            case BinaryProtocol.OP_ON:
+                is_on = true;
+                shutoff_ms = 0;
+                break;
+            case BinaryProtocol.OP_OFF:
+                is_on = false;
+                shutoff_ms = 0;
+                break;
+            case BinaryProtocol.OP_SHUTOFF:
+                if (decoder.getLength() == 2) {
+                    byte[] payload = decoder.getPayload();
+                    setShutoff(((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF), us);
+                }
+                break;
+        }
+    }
+
+    // set_shutoff() of the sketch, in unsigned 32-bit arithmetic like on the ATtiny
+    private void setShutoff(int minutes, long us) {
+        if (minutes == 0) {
+            shutoff_ms = 0;
+        } else if (minutes > 0) {
+            minutes = Math.min(minutes, BinaryProtocol.MAX_MINUTES);
+            shutoff_start_us = us;
+            shutoff_ms = minutes * 60000L;
+        }
+    }
+
+    // parse_long() of the sketch: the number if the string is all digits, else -1
+    private static int parseLong(final String s) {
+        int l = 0;
+        boolean ok = false;
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                ok = false;
+                break;
+            }
+            l = 10 * l + (c - '0');
+            ok = true;
+        }
+        return ok ? l : -1;
+    }
+
+    // Whether the output is on once the bytes received so far have been read, or at the
+    // current virtual time if that is later
+    public synchronized boolean isOn() {
+        checkShutoff(Math.max(nowUs(), cpu_free_us));
+        return is_on;
+    }
+
+    // Virtual time at which the output switches off by itself, in milliseconds since the
+    // emulator started, or -1 if no shutoff is set
+    public synchronized long getShutoffMs() {
+        return shutoff_ms > 0 ? shutoff_start_us / 1000 + shutoff_ms : -1;
+    }
+
+    // Virtual time (in milliseconds since the emulator started) by which every byte
+    // received so far has crossed the serial line and been read
+    public synchronized long getBusyUntilMs() {
+        return Math.max(line_free_us, cpu_free_us) / 1000;
+    }
+
+    public synchronized long getReceived() {
+        return received;
+    }
+
+    // Bytes dropped because the module's buffer was full
+    public synchronized long getDroppedByModule() {
+        return dropped_module;
+    }
+
+    // Bytes dropped because SoftwareSerial's buffer was full
+    public synchronized long getDroppedBySerial() {
+        return dropped_rx;
+    }
+
+    // Text commands carried out, not counting empty ones
+    public synchronized long getCommands() {
+        return commands;
+    }
+
+    // Binary frames carried out, and those dropped for a bad CRC or length
+    public synchronized long getFrames() {
+        return frames;
+    }
+
+    public synchronized long getFrameErrors() {
+        return decoder.getErrors();
+    }
+
+    public synchronized long getResets() {
+        return resets;
+    }
+}
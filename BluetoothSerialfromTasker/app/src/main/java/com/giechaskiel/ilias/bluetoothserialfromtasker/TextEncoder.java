@@ -0,0 +1,104 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Encoder of text messages in the charset chosen for the action. The
+ * fixed-width charsets are written character by character straight into the array that is
+ * sent, with room left for CRLF, and UTF-8 goes through the platform's String encoder
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+public final class TextEncoder {
+    // Charsets of text messages. Values are positions in R.array.charsets. UTF-8 comes first
+    // as it is what Android used for messages saved before the setting existed
+    public final static int CHARSET_UTF8 = 0;
+    public final static int CHARSET_ASCII = 1;
+    public final static int CHARSET_LATIN1 = 2;
+    public final static int CHARSET_UTF16LE = 3;
+
+    private final static String[] NAMES = {"UTF-8", "US-ASCII", "ISO-8859-1", "UTF-16LE"};
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private TextEncoder() {
+    }
+
+    public static boolean isCharsetValid(int charset) {
+        return charset >= 0 && charset < NAMES.length;
+    }
+
+    // Method that returns the name of the charset, as in "ISO-8859-1"
+    public static String getName(int charset) {
+        return NAMES[charset];
+    }
+
+    // Whether the charset writes ASCII characters, such as digits and CRLF, as single bytes,
+    // which templates need for their numbers and checksums
+    public static boolean isSingleByte(int charset) {
+        return charset != CHARSET_UTF16LE;
+    }
+
+    // Whether every character of the text can be written in the charset
+    public static boolean canEncode(final String text, int charset) {
+        if (text == null || !isCharsetValid(charset)) {
+            return false;
+        }
+
+        int max = getMaxChar(charset);
+        for (int i = 0; i < text.length(); ++i) {
+            if (text.charAt(i) > max) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Largest character the charset can write
+    private static int getMaxChar(int charset) {
+        switch (charset) {
+            case CHARSET_ASCII:
+                return 0x7F;
+            case CHARSET_LATIN1:
+                return 0xFF;
+            default:
+                return Character.MAX_VALUE;
+        }
+    }
+
+    // Method that encodes the text into a new array with room for extra bytes at the end,
+    // such as CRLF. Returns null if a character cannot be written in the charset
+    public static byte[] encode(final String text, int charset, int extra) {
+        if (text == null || !isCharsetValid(charset)) {
+            return null;
+        }
+
+        final int length = text.length();
+        if (charset == CHARSET_UTF8) {
+            byte[] bytes = text.getBytes(UTF_8);
+            return extra > 0 ? Arrays.copyOf(bytes, bytes.length + extra) : bytes;
+        } else if (charset == CHARSET_UTF16LE) {
+            byte[] bytes = new byte[2 * length + extra];
+            for (int i = 0; i < length; ++i) {
+                char c = text.charAt(i);
+                bytes[2 * i] = (byte) c;
+                bytes[2 * i + 1] = (byte) (c >> 8);
+            }
+            return bytes;
+        }
+
+        int max = getMaxChar(charset);
+        byte[] bytes = new byte[length + extra];
+        for (int i = 0; i < length; ++i) {
+            char c = text.charAt(i);
+            if (c > max) {
+                return null;
+            }
+            bytes[i] = (byte) c;
+        }
+        return bytes;
+    }
+}
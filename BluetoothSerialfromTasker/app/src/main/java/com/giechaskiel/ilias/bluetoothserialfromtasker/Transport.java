@@ -0,0 +1,54 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Abstraction over the link used to reach a device, so that the send path
+ * does not depend on Bluetooth (see RfcommTransport and LoopbackTransport)
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public interface Transport {
+    // Whether the transport can currently be used (for instance, Bluetooth is switched on)
+    boolean isAvailable();
+
+    // Method that returns the device with the given address, or null if it is not known
+    Device getDevice(String mac);
+
+    // A device that can be connected to
+    interface Device {
+        String getAddress();
+
+        // Names of the ways of connecting to this device, in the order to try them by default
+        String[] getStrategies();
+
+        // Method that creates a connection using the named strategy. The connection is not
+        // usable until connect() has returned
+        Connection createConnection(String strategy) throws IOException;
+    }
+
+    // A connection to a device
+    interface Connection extends Closeable {
+        // Method that blocks until the connection is established. Closing the connection from
+        // another thread aborts the connect with an IOException
+        void connect() throws IOException;
+
+        InputStream getInputStream() throws IOException;
+
+        OutputStream getOutputStream() throws IOException;
+
+        // Whether the connection is still believed to be open
+        boolean isConnected();
+
+        // Name of the strategy the connection was created with
+        String getStrategy();
+
+        // Largest number of bytes the link carries in one packet, or 0 if unknown
+        int getMaxPacketSize();
+    }
+}
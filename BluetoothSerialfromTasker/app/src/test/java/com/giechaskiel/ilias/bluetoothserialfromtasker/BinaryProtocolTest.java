@@ -0,0 +1,132 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Tests of the binary protocol: compiling messages into frames, and decoding
+ * them again, including after corrupt or oversized frames
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryProtocolTest {
+    private final static byte SYNC = BinaryProtocol.SYNC;
+
+    @Test
+    public void crcMatchesSmbusCheckValue() {
+        byte[] bytes = "123456789".getBytes(Charset.forName("US-ASCII"));
+
+        assertEquals(0xF4, BinaryProtocol.crc8(bytes, 0, bytes.length));
+    }
+
+    @Test
+    public void compilesCommandsIntoFrames() {
+        byte[] on = frame(BinaryProtocol.OP_ON);
+        byte[] off = frame(BinaryProtocol.OP_OFF);
+        byte[] shutoff = frame(BinaryProtocol.OP_SHUTOFF, (byte) 0x01, (byte) 0x2C);
+
+        assertArrayEquals(on, BinaryProtocol.compile("on", 0));
+        assertArrayEquals(concat(on, shutoff, off), BinaryProtocol.compile(" ON; 300,off ", 0));
+
+        byte[] extra = BinaryProtocol.compile("off", 2);
+        assertEquals(off.length + 2, extra.length);
+        assertArrayEquals(off, Arrays.copyOf(extra, off.length));
+    }
+
+    @Test
+    public void rejectsInvalidMessages() {
+        String[] invalid = {null, "", " ;, ", "toggle", "on; toggle", "-1", "65536", "123456"};
+        for (String msg : invalid) {
+            assertNull(msg, BinaryProtocol.compile(msg, 0));
+            assertFalse(msg, BinaryProtocol.isValid(msg));
+        }
+        assertTrue(BinaryProtocol.isValid(String.valueOf(BinaryProtocol.MAX_MINUTES)));
+    }
+
+    @Test
+    public void decodesCompiledFrames() {
+        byte[] bytes = BinaryProtocol.compile("on 30 off", 0);
+        BinaryProtocol.Decoder decoder = new BinaryProtocol.Decoder();
+
+        assertEquals(Arrays.asList("1:", "3:001E", "2:"), decodeAll(decoder, bytes));
+        assertFalse(decoder.inFrame());
+        assertEquals(0, decoder.getErrors());
+    }
+
+    @Test
+    public void resynchronizesAfterCorruptFrame() {
+        byte[] corrupt = frame(BinaryProtocol.OP_SHUTOFF, (byte) 0, (byte) 10);
+        corrupt[4] ^= 0x01;
+        byte[] bytes = concat("on\r\n".getBytes(Charset.forName("US-ASCII")), corrupt,
+                frame(BinaryProtocol.OP_OFF));
+        BinaryProtocol.Decoder decoder = new BinaryProtocol.Decoder();
+
+        assertEquals(Arrays.asList("2:"), decodeAll(decoder, bytes));
+        assertEquals(1, decoder.getErrors());
+    }
+
+    @Test
+    public void dropsPayloadsLargerThanBuffer() {
+        byte[] bytes = concat(frame(BinaryProtocol.OP_SHUTOFF, (byte) 0, (byte) 10),
+                frame(BinaryProtocol.OP_ON));
+        BinaryProtocol.Decoder decoder = new BinaryProtocol.Decoder(1);
+
+        assertEquals(Arrays.asList("1:"), decodeAll(decoder, bytes));
+        assertEquals(1, decoder.getErrors());
+    }
+
+    // Method that builds a frame by hand, independently of BinaryProtocol.encode
+    private static byte[] frame(int opcode, byte... payload) {
+        byte[] frame = new byte[payload.length + BinaryProtocol.FRAME_OVERHEAD];
+        frame[0] = SYNC;
+        frame[1] = (byte) opcode;
+        frame[2] = (byte) payload.length;
+        System.arraycopy(payload, 0, frame, 3, payload.length);
+        frame[frame.length - 1] = (byte) BinaryProtocol.crc8(frame, 1, payload.length + 2);
+        return frame;
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        int length = 0;
+        for (byte[] array : arrays) {
+            length += array.length;
+        }
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        for (byte[] array : arrays) {
+            System.arraycopy(array, 0, bytes, offset, array.length);
+            offset += array.length;
+        }
+        return bytes;
+    }
+
+    // Method that feeds all bytes to the decoder and returns the frames it completed, as
+    // "opcode:payload" with the payload in hex
+    private static List<String> decodeAll(BinaryProtocol.Decoder decoder, byte[] bytes) {
+        List<String> frames = new ArrayList<>();
+        for (byte b : bytes) {
+            if (decoder.feed(b)) {
+                StringBuilder sb = new StringBuilder();
+                sb.append(decoder.getOpcode()).append(':');
+                for (int i = 0; i < decoder.getLength(); ++i) {
+                    sb.append(String.format(Locale.US, "%02X", decoder.getPayload()[i]));
+                }
+                frames.add(sb.toString());
+            }
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Tests of BundleManager compiling messages with C-style escapes, as in the
+ * escape mode
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BundleManagerTest {
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void compilesEscapes() {
+        assertArrayEquals(new byte[]{'o', 'n', '\r', '\n', '\t', 0, '\\', 0x0B, (byte) 0xAD},
+                BundleManager.compileEscapes("on\\r\\n\\t\\0\\\\\\x0b\\xAD", 0));
+        assertArrayEquals(new byte[0], BundleManager.compileEscapes("", 0));
+    }
+
+    @Test
+    public void writesOtherCharactersAsUtf8() {
+        // e acute, euro sign, a G clef (a surrogate pair) and an unpaired surrogate
+        String[] texts = {"caf\u00e9", "\u20ac 5", "\ud834\udd1e", "a\ud834b", "z\udd1e"};
+        for (String text : texts) {
+            assertArrayEquals(text, text.getBytes(UTF_8), BundleManager.compileEscapes(text, 0));
+        }
+    }
+
+    @Test
+    public void leavesRoomForExtraBytes() {
+        byte[] bytes = BundleManager.compileEscapes("\\x01\u00e9", 2);
+
+        assertEquals(5, bytes.length);
+        assertArrayEquals(new byte[]{1, (byte) 0xC3, (byte) 0xA9, 0, 0}, bytes);
+        assertArrayEquals(new byte[2], BundleManager.compileEscapes("", 2));
+    }
+
+    @Test
+    public void rejectsBadEscapes() {
+        for (String msg : Arrays.asList(null, "\\", "on\\", "\\q", "\\x", "\\x1", "\\xG0",
+                "\\x0G")) {
+            assertNull(msg, BundleManager.compileEscapes(msg, 0));
+        }
+    }
+}
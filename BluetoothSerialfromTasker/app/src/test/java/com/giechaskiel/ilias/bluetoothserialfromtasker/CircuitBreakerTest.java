@@ -0,0 +1,122 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Tests of the CircuitBreaker transitions between closed, open and half open
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+    private final static String MAC = "00:11:22:AA:BB:CC";
+    private final static long BASE_BACKOFF_MS = 100;
+
+    private CircuitBreaker breaker;
+
+    @Before
+    public void setUp() {
+        breaker = new CircuitBreaker();
+        breaker.setFailureThreshold(2);
+        breaker.setBackoffMs(BASE_BACKOFF_MS, 10 * BASE_BACKOFF_MS);
+    }
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        breaker.onFailure(MAC);
+        assertEquals(CircuitBreaker.STATE_CLOSED, breaker.getState(MAC));
+        assertTrue(breaker.allowConnect(MAC));
+
+        breaker.onFailure(MAC);
+        assertEquals(CircuitBreaker.STATE_OPEN, breaker.getState(MAC));
+        assertFalse(breaker.allowConnect(MAC));
+
+        // jittered between half the backoff and all of it
+        long retry_in_ms = breaker.getRetryInMs(MAC);
+        assertTrue(retry_in_ms > 0 && retry_in_ms <= BASE_BACKOFF_MS);
+    }
+
+    @Test
+    public void successResetsFailureCount() {
+        breaker.onFailure(MAC);
+        breaker.onSuccess(MAC);
+        breaker.onFailure(MAC);
+
+        assertEquals(CircuitBreaker.STATE_CLOSED, breaker.getState(MAC));
+    }
+
+    @Test
+    public void probesOnceAfterBackoff() throws Exception {
+        breaker.onFailure(MAC);
+        breaker.onFailure(MAC);
+        Thread.sleep(BASE_BACKOFF_MS + 20);
+
+        assertTrue(breaker.allowConnect(MAC));
+        assertEquals(CircuitBreaker.STATE_HALF_OPEN, breaker.getState(MAC));
+        // only one probe at a time
+        assertFalse(breaker.allowConnect(MAC));
+        assertEquals(0, breaker.getRetryInMs(MAC));
+    }
+
+    @Test
+    public void successfulProbeCloses() throws Exception {
+        breaker.onFailure(MAC);
+        breaker.onFailure(MAC);
+        Thread.sleep(BASE_BACKOFF_MS + 20);
+        assertTrue(breaker.allowConnect(MAC));
+
+        breaker.onSuccess(MAC);
+        assertEquals(CircuitBreaker.STATE_CLOSED, breaker.getState(MAC));
+        assertTrue(breaker.allowConnect(MAC));
+    }
+
+    @Test
+    public void failedProbeReopensForLonger() throws Exception {
+        breaker.onFailure(MAC);
+        breaker.onFailure(MAC);
+        Thread.sleep(BASE_BACKOFF_MS + 20);
+        assertTrue(breaker.allowConnect(MAC));
+
+        breaker.onFailure(MAC);
+        assertEquals(CircuitBreaker.STATE_OPEN, breaker.getState(MAC));
+        // the doubled backoff is jittered between its half and all of it
+        long retry_in_ms = breaker.getRetryInMs(MAC);
+        assertTrue(retry_in_ms > BASE_BACKOFF_MS - 20 && retry_in_ms <= 2 * BASE_BACKOFF_MS);
+    }
+
+    @Test
+    public void resetCloses() {
+        breaker.onFailure(MAC);
+        breaker.onFailure(MAC);
+        breaker.reset("00-11-22-aa-bb-cc");
+
+        assertEquals(CircuitBreaker.STATE_CLOSED, breaker.getState(MAC));
+        assertTrue(breaker.allowConnect(MAC));
+    }
+
+    @Test
+    public void devicesAreIndependent() {
+        breaker.onFailure(MAC);
+        breaker.onFailure(MAC);
+
+        assertTrue(breaker.allowConnect("00:11:22:33:44:55"));
+        assertEquals(CircuitBreaker.STATE_CLOSED, breaker.getState("00:11:22:33:44:55"));
+    }
+
+    @Test
+    public void zeroThresholdDisables() {
+        breaker.setFailureThreshold(0);
+        for (int i = 0; i < 10; ++i) {
+            breaker.onFailure(MAC);
+        }
+
+        assertTrue(breaker.allowConnect(MAC));
+        assertEquals(CircuitBreaker.STATE_CLOSED, breaker.getState(MAC));
+    }
+}
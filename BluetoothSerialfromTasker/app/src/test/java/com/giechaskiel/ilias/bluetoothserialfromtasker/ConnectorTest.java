@@ -0,0 +1,107 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Tests of the Connector race over the loopback transport: trying strategies
+ * in order, hedging slow ones, and giving up at the deadline
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectorTest {
+    private final static String MAC = "00:11:22:AA:BB:CC";
+    private final static long CONNECT_DELAY_MS = 300;
+
+    private LoopbackTransport.LoopbackDevice device;
+    private Connector connector;
+
+    @Before
+    public void setUp() {
+        LoopbackTransport transport = new LoopbackTransport();
+        device = transport.addDevice(MAC, new RecordingPeer())
+                .setStrategies("SECURE", "INSECURE")
+                .setConnectDelayMs(CONNECT_DELAY_MS);
+        connector = new Connector(null);
+    }
+
+    private static long deadline(long ms) {
+        return System.currentTimeMillis() + ms;
+    }
+
+    @Test
+    public void firstStrategyWins() throws Exception {
+        connector.setHedgeDelayMs(0);
+        Transport.Connection connection = connector.connect(MAC, device, deadline(5000));
+
+        assertNotNull(connection);
+        assertEquals("SECURE", connection.getStrategy());
+        assertTrue(connection.isConnected());
+        connection.close();
+    }
+
+    @Test
+    public void failedStrategyFallsBackToNext() throws Exception {
+        device.setFailingStrategies("SECURE");
+        connector.setHedgeDelayMs(0);
+        long start = System.currentTimeMillis();
+        Transport.Connection connection = connector.connect(MAC, device, deadline(5000));
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertNotNull(connection);
+        assertEquals("INSECURE", connection.getStrategy());
+        // without hedging, the strategies are tried one after the other
+        assertTrue(elapsed >= 2 * CONNECT_DELAY_MS - 20);
+        connection.close();
+    }
+
+    @Test
+    public void slowStrategyIsHedged() throws Exception {
+        device.setFailingStrategies("SECURE");
+        connector.setHedgeDelayMs(50);
+        long start = System.currentTimeMillis();
+        Transport.Connection connection = connector.connect(MAC, device, deadline(5000));
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertNotNull(connection);
+        assertEquals("INSECURE", connection.getStrategy());
+        assertTrue("took " + elapsed + " ms", elapsed < 2 * CONNECT_DELAY_MS - 100);
+        connection.close();
+    }
+
+    @Test
+    public void firstConnectedAttemptWinsTheRace() throws Exception {
+        connector.setHedgeDelayMs(50);
+        Transport.Connection connection = connector.connect(MAC, device, deadline(5000));
+
+        // both attempts connect, but the one started first finishes first
+        assertNotNull(connection);
+        assertEquals("SECURE", connection.getStrategy());
+        connection.close();
+    }
+
+    @Test
+    public void allStrategiesFailing() {
+        device.setFailingStrategies("SECURE", "INSECURE");
+        connector.setHedgeDelayMs(50);
+
+        assertNull(connector.connect(MAC, device, deadline(5000)));
+    }
+
+    @Test
+    public void connectGivesUpAtDeadline() {
+        device.setConnectDelayMs(2000);
+        long start = System.currentTimeMillis();
+
+        assertNull(connector.connect(MAC, device, deadline(200)));
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("took " + elapsed + " ms", elapsed < 1000);
+    }
+}
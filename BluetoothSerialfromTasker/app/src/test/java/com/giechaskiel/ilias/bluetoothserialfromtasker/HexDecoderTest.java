@@ -0,0 +1,76 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Tests of decoding hex strings with HexDecoder, and of encoding bytes back
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HexDecoderTest {
+    @Test
+    public void decodesEitherCaseWithSpaces() {
+        byte[] expected = {0x0B, (byte) 0xAD, (byte) 0xF0, 0x0D};
+
+        assertArrayEquals(expected, HexDecoder.decode("0BADF00D"));
+        assertArrayEquals(expected, HexDecoder.decode("0b ad f0 0d"));
+        assertArrayEquals(expected, HexDecoder.decode(" 0B\tAD\nF00D \r"));
+        assertEquals(4, HexDecoder.decodedLength("0b ad f0 0d"));
+    }
+
+    @Test
+    public void digitsPairUpAcrossSpaces() {
+        // like the regex parser, which removed spaces before reading pairs of digits
+        assertArrayEquals(new byte[]{0x0B, (byte) 0xAD}, HexDecoder.decode("0 BA D"));
+    }
+
+    @Test
+    public void rejectsMalformedStrings() {
+        String[] invalid = {"", "   ", "0", "ABC", "0G", "0x0B", "0B,AD", "\u00e9\u00e9"};
+        for (String s : invalid) {
+            assertNull(s, HexDecoder.decode(s));
+            assertFalse(s, HexDecoder.isValid(s));
+            assertEquals(s, -1, HexDecoder.decodedLength(s));
+        }
+        assertNull(HexDecoder.decode(null));
+        assertFalse(HexDecoder.isValid(null));
+    }
+
+    @Test
+    public void decodesIntoArrayAtOffset() {
+        byte[] out = new byte[4];
+
+        assertEquals(2, HexDecoder.decode("CA FE", out, 1));
+        assertArrayEquals(new byte[]{0, (byte) 0xCA, (byte) 0xFE, 0}, out);
+        // does not fit
+        assertEquals(-1, HexDecoder.decode("01 02 03 04", out, 1));
+    }
+
+    @Test
+    public void encodedBytesDecodeAgain() {
+        byte[] bytes = {0x00, 0x0B, (byte) 0xAD, 0x7F, (byte) 0x80, (byte) 0xFF};
+
+        assertEquals("0B AD 7F", HexDecoder.encode(bytes, 1, 3));
+        assertArrayEquals(bytes, HexDecoder.decode(HexDecoder.encode(bytes, 0, bytes.length)));
+        assertEquals("", HexDecoder.encode(bytes, 2, 0));
+    }
+
+    @Test
+    public void singleDigits() {
+        assertEquals(0, HexDecoder.digit('0'));
+        assertEquals(10, HexDecoder.digit('a'));
+        assertEquals(15, HexDecoder.digit('F'));
+        assertEquals(-1, HexDecoder.digit('g'));
+        assertEquals(-1, HexDecoder.digit(' '));
+        assertEquals(-1, HexDecoder.digit('\u0660'));
+        assertTrue(HexDecoder.isValid("00"));
+    }
+}
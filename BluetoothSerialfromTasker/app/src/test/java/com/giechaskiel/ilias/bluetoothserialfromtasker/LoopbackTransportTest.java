@@ -0,0 +1,78 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Tests of MessageSender over the loopback transport: messages reaching the
+ * peer, and the ways a device can be unreachable
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LoopbackTransportTest {
+    private final static String MAC = "00:11:22:AA:BB:CC";
+    private final static long TIMEOUT_MS = 5000;
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private LoopbackTransport transport;
+    private LoopbackTransport.LoopbackDevice device;
+    private RecordingPeer peer;
+    private MessageSender sender;
+
+    @Before
+    public void setUp() {
+        transport = new LoopbackTransport();
+        peer = new RecordingPeer();
+        device = transport.addDevice(MAC, peer);
+        sender = new MessageSender(transport, new ConnectionPool(), null);
+    }
+
+    @Test
+    public void messageReachesPeer() throws Exception {
+        assertTrue(sender.send(MAC, "on\r\n".getBytes(UTF_8), 0));
+        assertTrue(sender.send("00-11-22-aa-bb-cc", "off\r\n".getBytes(UTF_8), 0));
+
+        assertTrue(peer.awaitLines(2, TIMEOUT_MS));
+        assertEquals(Arrays.asList("on", "off"), peer.getLines());
+        assertEquals(2, peer.getConnections());
+    }
+
+    @Test
+    public void pooledConnectionIsReused() throws Exception {
+        assertTrue(sender.send(MAC, "on\r\n".getBytes(UTF_8), TIMEOUT_MS));
+        assertTrue(sender.send(MAC, "off\r\n".getBytes(UTF_8), TIMEOUT_MS));
+
+        assertTrue(peer.awaitLines(2, TIMEOUT_MS));
+        assertEquals(1, peer.getConnections());
+    }
+
+    @Test
+    public void unknownDeviceIsNotSentTo() {
+        assertFalse(sender.send("00:11:22:33:44:55", "on\r\n".getBytes(UTF_8), 0));
+    }
+
+    @Test
+    public void unavailableTransportIsNotSentTo() {
+        transport.setAvailable(false);
+
+        assertFalse(sender.send(MAC, "on\r\n".getBytes(UTF_8), 0));
+        assertEquals(0, peer.getConnections());
+    }
+
+    @Test
+    public void failingStrategiesAreNotSentTo() {
+        device.setFailingStrategies(LoopbackTransport.STRATEGY_LOOPBACK);
+
+        assertFalse(sender.send(MAC, "on\r\n".getBytes(UTF_8), 0));
+        assertEquals(0, peer.getConnections());
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Tests of parsing scripts with MessageScript.compile
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageScriptTest {
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static byte[] bytes(final String s) {
+        return s.getBytes(UTF_8);
+    }
+
+    @Test
+    public void stepsWithPausesAndReplies() {
+        MessageScript script = MessageScript.compile(
+                "on\nwait 600\n30\nexpect OK\n\n  status  \r\nexpect\nwait 100\nwait 50", true);
+        assertNotNull(script);
+
+        List<MessageScript.Step> steps = script.getSteps();
+        assertEquals(3, steps.size());
+
+        assertArrayEquals(bytes("on\r\n"), steps.get(0).getBytes());
+        assertEquals(0, steps.get(0).getDelayMs());
+        assertFalse(steps.get(0).expectsReply());
+
+        assertArrayEquals(bytes("30\r\n"), steps.get(1).getBytes());
+        assertEquals(600, steps.get(1).getDelayMs());
+        assertTrue(steps.get(1).expectsReply());
+        assertTrue(steps.get(1).matches("OK 30"));
+        assertFalse(steps.get(1).matches("ERR"));
+
+        assertArrayEquals(bytes("status\r\n"), steps.get(2).getBytes());
+        assertTrue(steps.get(2).expectsReply());
+        assertTrue(steps.get(2).matches("anything"));
+        assertFalse(steps.get(2).matches(""));
+
+        // trailing waits add up to the final pause
+        assertEquals(150, script.getFinalDelayMs());
+    }
+
+    @Test
+    public void escapesAndSend() {
+        MessageScript script = MessageScript.compile("send wait 5\n\\x01\\x02\nsend expect", false);
+        assertNotNull(script);
+
+        List<MessageScript.Step> steps = script.getSteps();
+        assertEquals(3, steps.size());
+        assertArrayEquals(bytes("wait 5"), steps.get(0).getBytes());
+        assertArrayEquals(new byte[]{1, 2}, steps.get(1).getBytes());
+        assertArrayEquals(bytes("expect"), steps.get(2).getBytes());
+        assertEquals(0, script.getFinalDelayMs());
+    }
+
+    @Test
+    public void invalidScripts() {
+        String[] invalid = {
+                "",
+                "\n\n",
+                "wait 100",
+                "expect OK",
+                "on\nwait 5\nexpect",
+                "on\nexpect\nexpect",
+                "on\nwait x",
+                "on\nwait -5",
+                "\\q",
+                "on\nwait " + (MessageScript.MAX_WAIT_MS + 1),
+                "on\nwait " + MessageScript.MAX_WAIT_MS + "\nwait 1",
+        };
+        for (String script : invalid) {
+            assertNull(script, MessageScript.compile(script, true));
+            assertFalse(script, MessageScript.isValid(script));
+        }
+        assertNull(MessageScript.compile(null, true));
+    }
+
+    @Test
+    public void stepLimit() {
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < MessageScript.MAX_STEPS; ++i) {
+            script.append("on\n");
+        }
+        assertTrue(MessageScript.isValid(script.toString()));
+
+        script.append("off");
+        assertFalse(MessageScript.isValid(script.toString()));
+    }
+
+    @Test
+    public void longestPause() {
+        MessageScript script = MessageScript.compile(
+                "on\nwait " + MessageScript.MAX_WAIT_MS + "\noff", true);
+        assertNotNull(script);
+        assertEquals(MessageScript.MAX_WAIT_MS, script.getSteps().get(1).getDelayMs());
+    }
+}
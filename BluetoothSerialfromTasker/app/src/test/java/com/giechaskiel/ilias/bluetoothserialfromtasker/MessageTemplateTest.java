@@ -0,0 +1,103 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Tests of MessageTemplate: compiling placeholders and their formats, and
+ * rendering numbers and checksums
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageTemplateTest {
+    private final static Charset US_ASCII = Charset.forName("US-ASCII");
+    private final static byte[] CRLF = {'\r', '\n'};
+
+    private static String render(final String template, long count) {
+        MessageTemplate compiled = MessageTemplate.compile(template, CRLF);
+        assertNotNull(template, compiled);
+        return new String(compiled.render(count), US_ASCII);
+    }
+
+    @Test
+    public void formatsCounter() {
+        assertEquals("n=7\r\n", render("n={counter}", 7));
+        assertEquals("n=0007\r\n", render("n={counter:4}", 7));
+        assertEquals("n=12345\r\n", render("n={counter:4}", 12345));
+        assertEquals("n=FF\r\n", render("n={counter:x}", 255));
+        assertEquals("n=00FF\r\n", render("n={counter:x4}", 255));
+        assertEquals("n=0\r\n", render("n={counter:x}", 0));
+        assertEquals("{counter}=1\r\n", render("{{counter}={counter}", 1));
+    }
+
+    @Test
+    public void rendersCurrentTime() {
+        long before = System.currentTimeMillis();
+        String rendered = render("{unix_ms} {unix}", 0).trim();
+        long after = System.currentTimeMillis();
+
+        String[] parts = rendered.split(" ");
+        long unix_ms = Long.parseLong(parts[0]);
+        long unix = Long.parseLong(parts[1]);
+        assertTrue(unix_ms >= before && unix_ms <= after);
+        assertTrue(unix >= before / 1000 && unix <= after / 1000);
+    }
+
+    @Test
+    public void xorCoversBeginToEnd() {
+        String rendered = render("${begin}GPXXX,{counter}{end}*{xor}", 42);
+
+        assertEquals("$GPXXX,42*" + hex(xor("GPXXX,42")) + "\r\n", rendered);
+    }
+
+    @Test
+    public void crcCoversWholeMessageByDefault() {
+        byte[] body = "on;30".getBytes(US_ASCII);
+        String crc = hex(BinaryProtocol.crc8(body, 0, body.length));
+
+        assertEquals("on;30" + crc + "\r\n", render("on;30{crc8}", 0));
+    }
+
+    @Test
+    public void rejectsInvalidTemplates() {
+        String[] invalid = {null, "{", "a{counter", "{foo}", "{counter:}", "{counter:123}",
+                "{counter:21}", "{counter:xy}", "{crc8:2}", "{begin:x}"};
+        for (String template : invalid) {
+            assertNull(template, MessageTemplate.compile(template, CRLF));
+            assertFalse(template, MessageTemplate.isValid(template));
+        }
+        assertTrue(MessageTemplate.isValid("{counter:20} {unix:x8} }"));
+    }
+
+    @Test
+    public void countsPerKey() {
+        long key = System.nanoTime();
+
+        assertEquals(0, MessageTemplate.nextCount(key));
+        assertEquals(1, MessageTemplate.nextCount(key));
+        assertEquals(0, MessageTemplate.nextCount(key + 1));
+        assertEquals(2, MessageTemplate.nextCount(key));
+    }
+
+    private static int xor(final String s) {
+        int xor = 0;
+        for (char c : s.toCharArray()) {
+            xor ^= c;
+        }
+        return xor;
+    }
+
+    private static String hex(int value) {
+        return String.format(Locale.US, "%02X", value);
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Tests of OfflineSpool: reloading the journal after a restart, discarding a
+ * torn record, replacing messages for the same slot, compacting, and spooling in memory only
+ * once the journal cannot be replaced
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OfflineSpoolTest {
+    private final static String MAC = "00:11:22:AA:BB:CC";
+    private final static String OTHER_MAC = "00:11:22:33:44:55";
+    private final static long TTL_MS = 60 * 1000;
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "spool.log");
+    }
+
+    // Method that opens the journal like a freshly started process would
+    private OfflineSpool open() {
+        OfflineSpool spool = new OfflineSpool(file);
+        spool.setTtlMs(TTL_MS);
+        return spool;
+    }
+
+    private static List<String> texts(final List<OfflineSpool.Entry> entries) {
+        List<String> texts = new ArrayList<>();
+        for (OfflineSpool.Entry entry : entries) {
+            texts.add(new String(entry.getBytes(), UTF_8));
+        }
+        return texts;
+    }
+
+    @Test
+    public void disabledSpoolKeepsNothing() {
+        OfflineSpool spool = new OfflineSpool(file);
+
+        assertFalse(spool.append(MAC, "on".getBytes(UTF_8), null));
+        assertFalse(spool.hasEntries(MAC));
+    }
+
+    @Test
+    public void unacknowledgedMessagesSurviveRestart() {
+        OfflineSpool spool = open();
+        for (String text : new String[]{"on", "30", "off"}) {
+            assertTrue(spool.append(MAC, text.getBytes(UTF_8), null));
+        }
+        assertTrue(spool.append(OTHER_MAC, "other".getBytes(UTF_8), null));
+
+        List<OfflineSpool.Entry> claimed = spool.claim(MAC);
+        assertEquals(Arrays.asList("on", "30", "off"), texts(claimed));
+        spool.acknowledge(claimed.subList(0, 1));
+        spool.release(claimed.subList(1, 3));
+
+        OfflineSpool reloaded = open();
+        assertEquals(Arrays.asList(MAC, OTHER_MAC), reloaded.getMacs());
+        assertEquals(Arrays.asList("30", "off"), texts(reloaded.claim(MAC)));
+        assertEquals(Arrays.asList("other"), texts(reloaded.claim(OTHER_MAC)));
+    }
+
+    @Test
+    public void claimedMessagesAreNotHandedOutTwice() {
+        OfflineSpool spool = open();
+        spool.append(MAC, "on".getBytes(UTF_8), null);
+
+        List<OfflineSpool.Entry> claimed = spool.claim(MAC);
+        assertEquals(1, claimed.size());
+        assertTrue(spool.claim(MAC).isEmpty());
+
+        spool.release(claimed);
+        assertEquals(1, spool.claim(MAC).size());
+    }
+
+    @Test
+    public void newerStateReplacesSpooledOne() {
+        OfflineSpool spool = open();
+        spool.append(MAC, "30".getBytes(UTF_8), "timer");
+        spool.append(MAC, "on".getBytes(UTF_8), "power");
+        spool.append(MAC, "hello".getBytes(UTF_8), null);
+        spool.append(MAC, "45".getBytes(UTF_8), "timer");
+        spool.append(OTHER_MAC, "10".getBytes(UTF_8), "timer");
+
+        assertEquals(Arrays.asList("on", "hello", "45"), texts(spool.claim(MAC)));
+
+        List<OfflineSpool.Entry> reloaded = open().claim(MAC);
+        assertEquals(Arrays.asList("on", "hello", "45"), texts(reloaded));
+        assertEquals("power", reloaded.get(0).getSlot());
+        assertNull(reloaded.get(1).getSlot());
+        assertEquals("timer", reloaded.get(2).getSlot());
+    }
+
+    @Test
+    public void tornRecordIsDiscarded() throws Exception {
+        OfflineSpool spool = open();
+        spool.append(MAC, "on".getBytes(UTF_8), null);
+        spool.append(MAC, "off".getBytes(UTF_8), null);
+        long length = file.length();
+
+        // a record cut short by the process dying while appending
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(new byte[]{0, 0, 0, 40, 1, 2, 3});
+        } finally {
+            out.close();
+        }
+
+        OfflineSpool reloaded = open();
+        assertEquals(Arrays.asList("on", "off"), texts(reloaded.claim(MAC)));
+        assertEquals(length, file.length());
+    }
+
+    @Test
+    public void acknowledgementsAreCompactedAway() {
+        OfflineSpool spool = open();
+        for (int i = 0; i < 100; ++i) {
+            assertTrue(spool.append(MAC, ("message " + i).getBytes(UTF_8), null));
+        }
+        long full_length = file.length();
+
+        List<OfflineSpool.Entry> claimed = spool.claim(MAC);
+        spool.acknowledge(claimed.subList(0, 95));
+        assertTrue(file.length() < full_length / 4);
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        OfflineSpool reloaded = open();
+        assertEquals(Arrays.asList("message 95", "message 96", "message 97", "message 98",
+                "message 99"), texts(reloaded.claim(MAC)));
+    }
+
+    @Test
+    public void oldestMessagesAreDroppedWhenFull() {
+        OfflineSpool spool = open();
+        spool.setMaxBytes(1024);
+        for (int i = 0; i < 100; ++i) {
+            assertTrue(spool.append(MAC, ("message " + i).getBytes(UTF_8), null));
+        }
+        assertTrue(file.length() <= 1024);
+
+        List<String> texts = texts(open().claim(MAC));
+        assertFalse(texts.isEmpty());
+        assertTrue(texts.size() < 100);
+        assertEquals("message 99", texts.get(texts.size() - 1));
+    }
+
+    @Test
+    public void expiredMessagesAreDropped() throws Exception {
+        OfflineSpool spool = open();
+        spool.setTtlMs(50);
+        spool.append(MAC, "on".getBytes(UTF_8), null);
+        Thread.sleep(100);
+
+        assertTrue(spool.claim(MAC).isEmpty());
+        assertFalse(spool.hasEntries(MAC));
+        assertFalse(open().hasEntries(MAC));
+    }
+
+    @Test
+    public void failedCompactionKeepsSpoolingInMemory() {
+        OfflineSpool spool = new OfflineSpool(file) {
+            @Override
+            boolean replaceJournal(final File temp) {
+                return false;
+            }
+        };
+        spool.setTtlMs(TTL_MS);
+        for (int i = 0; i < 100; ++i) {
+            assertTrue(spool.append(MAC, ("message " + i).getBytes(UTF_8), null));
+        }
+        List<OfflineSpool.Entry> claimed = spool.claim(MAC);
+        spool.acknowledge(claimed.subList(0, 95));
+        spool.release(claimed.subList(95, 100));
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        long length = file.length();
+
+        assertTrue(spool.append(OTHER_MAC, "other".getBytes(UTF_8), null));
+        assertEquals(Arrays.asList(MAC, OTHER_MAC), spool.getMacs());
+        assertTrue(spool.hasEntries(OTHER_MAC));
+        assertEquals(Arrays.asList("message 95", "message 96", "message 97", "message 98",
+                "message 99"), texts(spool.claim(MAC)));
+        assertEquals(Arrays.asList("other"), texts(spool.claim(OTHER_MAC)));
+        assertEquals(length, file.length());
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: LoopbackTransport peer for tests that records the lines it receives with the
+ * time each arrived, and optionally answers them or hangs up
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+class RecordingPeer implements LoopbackTransport.Peer {
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    private final List<String> lines = new ArrayList<>();
+    private final List<Long> times = new ArrayList<>();
+    private int connections = 0;
+
+    // Reply written after each line, or null for none
+    private volatile String reply = null;
+    // Whether to close the connection instead of replying to a line
+    private volatile boolean hang_up = false;
+
+    public RecordingPeer setReply(final String reply) {
+        this.reply = reply;
+        return this;
+    }
+
+    public RecordingPeer setHangUp(boolean hang_up) {
+        this.hang_up = hang_up;
+        return this;
+    }
+
+    @Override
+    public void onConnect(final InputStream from_plugin, final OutputStream to_plugin) {
+        synchronized (this) {
+            ++connections;
+        }
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                StringBuilder line = new StringBuilder();
+                try {
+                    int c;
+                    while ((c = from_plugin.read()) >= 0) {
+                        synchronized (RecordingPeer.this) {
+                            received.write(c);
+                        }
+                        if (c == '\r') {
+                            continue;
+                        } else if (c != '\n') {
+                            line.append((char) c);
+                            continue;
+                        }
+
+                        synchronized (RecordingPeer.this) {
+                            lines.add(line.toString());
+                            times.add(System.currentTimeMillis());
+                            RecordingPeer.this.notifyAll();
+                        }
+                        line.setLength(0);
+
+                        if (hang_up) {
+                            to_plugin.close();
+                            return;
+                        } else if (reply != null) {
+                            to_plugin.write(reply.getBytes(UTF_8));
+                            to_plugin.flush();
+                        }
+                    }
+                } catch (IOException e) {
+                    // connection closed
+                }
+            }
+        }, "RecordingPeer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Method that waits until the given number of lines have been received, or the timeout
+    // has passed. Returns whether they were
+    public synchronized boolean awaitLines(int count, long timeout_ms)
+            throws InterruptedException {
+        long until = System.currentTimeMillis() + timeout_ms;
+        long remaining;
+        while (lines.size() < count && (remaining = until - System.currentTimeMillis()) > 0) {
+            wait(remaining);
+        }
+        return lines.size() >= count;
+    }
+
+    public synchronized String getReceived() {
+        return new String(received.toByteArray(), UTF_8);
+    }
+
+    public synchronized List<String> getLines() {
+        return new ArrayList<>(lines);
+    }
+
+    public synchronized List<Long> getTimes() {
+        return new ArrayList<>(times);
+    }
+
+    public synchronized int getConnections() {
+        return connections;
+    }
+}
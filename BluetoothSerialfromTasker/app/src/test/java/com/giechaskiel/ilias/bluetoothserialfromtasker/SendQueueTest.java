@@ -0,0 +1,212 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Tests of SendQueue over the loopback transport: merging bursts into one
+ * write, keeping messages that wait for a reply apart, replacing unsent state commands,
+ * completing messages whose send failed, of which only the newest state command is retried,
+ * and running scripts
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SendQueueTest {
+    private final static String MAC = "00:11:22:AA:BB:CC";
+    private final static long TIMEOUT_MS = 5000;
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private LoopbackTransport transport;
+    private RecordingPeer peer;
+    private SendQueue queue;
+
+    @Before
+    public void setUp() {
+        transport = new LoopbackTransport();
+        peer = new RecordingPeer();
+        transport.addDevice(MAC, peer);
+        queue = new SendQueue(new MessageSender(transport, new ConnectionPool(), null));
+        queue.setKeepAliveMs(TIMEOUT_MS);
+    }
+
+    private static byte[] bytes(final String s) {
+        return s.getBytes(UTF_8);
+    }
+
+    private static long deadline() {
+        return System.currentTimeMillis() + TIMEOUT_MS;
+    }
+
+    @Test
+    public void burstIsMergedIntoOneWrite() throws Exception {
+        queue.setCoalesceMs(100);
+        SendQueue.Pending first = queue.enqueue(MAC, bytes("on\r\n"), deadline());
+        SendQueue.Pending second = queue.enqueue(MAC, bytes("30\r\n"), deadline());
+        SendQueue.Pending third = queue.enqueue(MAC, bytes("off\r\n"), deadline());
+
+        assertTrue(first.await());
+        assertTrue(second.await());
+        assertTrue(third.await());
+        assertSame(first.getResult(), second.getResult());
+        assertSame(first.getResult(), third.getResult());
+        assertEquals(13, first.getResult().bytes);
+
+        assertTrue(peer.awaitLines(3, TIMEOUT_MS));
+        assertEquals(Arrays.asList("on", "30", "off"), peer.getLines());
+        assertEquals(1, peer.getConnections());
+    }
+
+    @Test
+    public void messageAwaitingReplyIsNotMerged() throws Exception {
+        peer.setReply("OK\r\n");
+        queue.setCoalesceMs(100);
+        FrameReader.Request request = new FrameReader.Request(
+                FrameReader.DEFAULT_DELIMITERS, FrameReader.DEFAULT_MAX_BYTES, 1000);
+        SendQueue.Pending plain = queue.enqueue(MAC, bytes("on\r\n"), deadline());
+        SendQueue.Pending asking = queue.enqueue(MAC, bytes("status\r\n"), deadline(), request);
+
+        assertTrue(plain.await());
+        assertTrue(asking.await());
+        assertFalse(plain.getResult() == asking.getResult());
+        assertEquals("OK", asking.getResult().reply);
+        assertTrue(asking.getResult().reply_complete);
+    }
+
+    @Test
+    public void newerStateCommandReplacesUnsentOne() throws Exception {
+        queue.setCoalesceMs(100);
+        SendQueue.Pending older = queue.enqueue(MAC, bytes("30\r\n"), deadline(), null, "timer");
+        SendQueue.Pending other = queue.enqueue(MAC, bytes("on\r\n"), deadline(), null, "power");
+        SendQueue.Pending newer = queue.enqueue(MAC, bytes("45\r\n"), deadline(), null, "timer");
+
+        assertTrue(newer.await());
+        assertTrue(older.await());
+        assertTrue(other.await());
+        assertTrue(older.getResult().superseded);
+        assertFalse(newer.getResult().superseded);
+
+        assertTrue(peer.awaitLines(2, TIMEOUT_MS));
+        Thread.sleep(100);
+        assertEquals(Arrays.asList("on", "45"), peer.getLines());
+    }
+
+    @Test
+    public void messagesWithoutSlotAreNotReplaced() throws Exception {
+        queue.setCoalesceMs(100);
+        SendQueue.Pending first = queue.enqueue(MAC, bytes("30\r\n"), deadline());
+        SendQueue.Pending second = queue.enqueue(MAC, bytes("45\r\n"), deadline());
+
+        assertTrue(first.await());
+        assertTrue(second.await());
+        assertFalse(first.getResult().superseded);
+        assertTrue(peer.awaitLines(2, TIMEOUT_MS));
+        assertEquals(Arrays.asList("30", "45"), peer.getLines());
+    }
+
+    @Test
+    public void onlyNewestFailedStateCommandIsRetried() throws Exception {
+        String failing_mac = "00:11:22:33:44:66";
+        transport.addDevice(failing_mac, new RecordingPeer())
+                .setFailingStrategies(LoopbackTransport.STRATEGY_LOOPBACK);
+        queue.setCoalesceMs(100);
+        SendQueue.Pending older = queue.enqueue(failing_mac, bytes("30\r\n"), deadline(), null,
+                "timer");
+        SendQueue.Pending newer = queue.enqueue(failing_mac, bytes("45\r\n"), deadline(), null,
+                "timer");
+
+        assertFalse(newer.await());
+        assertFalse(older.await());
+        assertTrue(older.getResult().superseded);
+        assertFalse(OfflineSpool.isRetryable(older.getResult()));
+        assertTrue(OfflineSpool.isRetryable(newer.getResult()));
+    }
+
+    @Test
+    public void failedSendCompletesWithError() {
+        SendQueue.Pending pending = queue.enqueue("00:11:22:33:44:55", bytes("on\r\n"),
+                deadline());
+
+        assertFalse(pending.await());
+        assertEquals(SendResult.CAUSE_NOT_PAIRED, pending.getResult().cause);
+        assertNotNull(pending.getResult().error);
+    }
+
+    @Test
+    public void scriptPausesBetweenStepsOnOneConnection() throws Exception {
+        MessageScript script = MessageScript.compile("on\nwait 200\n30\nwait 300", true);
+        long start = System.currentTimeMillis();
+        SendQueue.Pending pending = queue.enqueueScript(MAC, script, deadline(), null);
+        SendQueue.Pending after = queue.enqueue(MAC, bytes("off\r\n"), deadline());
+
+        assertTrue(pending.await());
+        assertEquals(2, pending.getResult().steps);
+        assertTrue(after.await());
+
+        assertTrue(peer.awaitLines(3, TIMEOUT_MS));
+        assertEquals(Arrays.asList("on", "30", "off"), peer.getLines());
+        assertEquals(1, peer.getConnections());
+
+        List<Long> times = peer.getTimes();
+        assertTrue(times.get(1) - times.get(0) >= 190);
+        // the final pause holds off the next message
+        assertTrue(times.get(2) - times.get(1) >= 290);
+        assertTrue(times.get(2) - start < TIMEOUT_MS);
+    }
+
+    @Test
+    public void scriptFailsOnUnexpectedReply() throws Exception {
+        peer.setReply("ERR\r\n");
+        MessageScript script = MessageScript.compile("status\nexpect OK\non", true);
+        SendQueue.Pending pending = queue.enqueueScript(MAC, script, deadline(), null);
+
+        assertFalse(pending.await());
+        assertEquals(SendResult.CAUSE_UNEXPECTED_REPLY, pending.getResult().cause);
+        assertEquals(1, pending.getResult().steps);
+        Thread.sleep(100);
+        assertEquals(Arrays.asList("status"), peer.getLines());
+    }
+
+    @Test
+    public void scriptStepIsNotResentWhenReplyFails() throws Exception {
+        // pool a connection, so that the script starts on a reused one
+        assertTrue(queue.send(MAC, bytes("hello\r\n"), deadline()));
+        assertTrue(peer.awaitLines(1, TIMEOUT_MS));
+
+        peer.setHangUp(true);
+        MessageScript script = MessageScript.compile("on\nexpect", true);
+        SendQueue.Pending pending = queue.enqueueScript(MAC, script, deadline(), null);
+
+        assertFalse(pending.await());
+        SendResult result = pending.getResult();
+        assertEquals(SendResult.CAUSE_REPLY_FAILED, result.cause);
+        assertNotNull(result.error);
+        assertTrue(result.reused);
+
+        Thread.sleep(200);
+        assertEquals(Arrays.asList("hello", "on"), peer.getLines());
+        assertEquals(1, peer.getConnections());
+    }
+
+    @Test
+    public void scriptFailsWhenDeadlineIsShorterThanPause() {
+        MessageScript script = MessageScript.compile("on\nwait 3000\noff", true);
+        SendQueue.Pending pending = queue.enqueueScript(MAC, script,
+                System.currentTimeMillis() + 1000, null);
+
+        assertFalse(pending.await());
+        assertEquals(SendResult.CAUSE_TIMEOUT, pending.getResult().cause);
+        assertEquals(1, pending.getResult().steps);
+    }
+}
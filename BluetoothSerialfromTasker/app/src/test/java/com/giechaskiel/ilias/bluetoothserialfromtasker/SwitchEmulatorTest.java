@@ -0,0 +1,72 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Tests of the delayed shutoff of SwitchEmulator, which follows the sketch,
+ * including when millis() wraps around
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SwitchEmulatorTest {
+    // Milliseconds until millis() wraps around on the ATtiny
+    private final static long WRAP_MS = 1L << 32;
+
+    private SwitchEmulator.ManualClock clock;
+    private SwitchEmulator emulator;
+
+    @Before
+    public void setUp() {
+        clock = new SwitchEmulator.ManualClock();
+        emulator = new SwitchEmulator(clock);
+    }
+
+    @Test
+    public void switchesOffAfterDelay() {
+        send(BinaryProtocol.compile("on; 2", 0));
+
+        clock.advanceMs(119000);
+        assertTrue(emulator.isOn());
+        clock.advanceMs(2000);
+        assertFalse(emulator.isOn());
+    }
+
+    @Test
+    public void delaySurvivesMillisWraparound() {
+        clock.advanceMs(WRAP_MS - 60000);
+        send(BinaryProtocol.compile("on; 2", 0));
+
+        // Checked on both sides of millis() wrapping, like loop() does
+        clock.advanceMs(30000);
+        assertTrue(emulator.isOn());
+        clock.advanceMs(31000);
+        assertTrue(emulator.isOn());
+        clock.advanceMs(60000);
+        assertFalse(emulator.isOn());
+    }
+
+    @Test
+    public void longestDelayDoesNotExpireEarly() {
+        clock.advanceMs(WRAP_MS / 2);
+        send(BinaryProtocol.compile("on; " + BinaryProtocol.MAX_MINUTES, 0));
+
+        for (int hour = 0; hour < BinaryProtocol.MAX_MINUTES / 60; ++hour) {
+            clock.advanceMs(3600000);
+            assertTrue(emulator.isOn());
+        }
+        clock.advanceMs((BinaryProtocol.MAX_MINUTES % 60) * 60000L - 1000);
+        assertTrue(emulator.isOn());
+        clock.advanceMs(2000);
+        assertFalse(emulator.isOn());
+    }
+
+    private void send(final byte[] bytes) {
+        emulator.receive(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Tests of TextEncoder against the platform's encoders, and of the characters
+ * each charset rejects
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TextEncoderTest {
+    private final static String ASCII_TEXT = "on;30\r\n";
+    // "cafe" with an e acute, and a y with diaeresis
+    private final static String LATIN1_TEXT = "caf\u00e9 \u00ff";
+    // A euro sign, and a G clef, which is a surrogate pair
+    private final static String UNICODE_TEXT = "on \u20ac \ud834\udd1e";
+
+    private final static int[] CHARSETS = {TextEncoder.CHARSET_UTF8, TextEncoder.CHARSET_ASCII,
+            TextEncoder.CHARSET_LATIN1, TextEncoder.CHARSET_UTF16LE};
+
+    @Test
+    public void matchesPlatformEncoders() {
+        for (int charset : CHARSETS) {
+            Charset platform = Charset.forName(TextEncoder.getName(charset));
+            for (String text : new String[]{"", ASCII_TEXT, LATIN1_TEXT, UNICODE_TEXT}) {
+                if (TextEncoder.canEncode(text, charset)) {
+                    assertArrayEquals(platform + " " + text, text.getBytes(platform),
+                            TextEncoder.encode(text, charset, 0));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void leavesRoomForExtraBytes() {
+        for (int charset : CHARSETS) {
+            byte[] plain = TextEncoder.encode(ASCII_TEXT, charset, 0);
+            byte[] extra = TextEncoder.encode(ASCII_TEXT, charset, 2);
+
+            assertEquals(plain.length + 2, extra.length);
+            assertArrayEquals(plain, Arrays.copyOf(extra, plain.length));
+            assertEquals(0, extra[extra.length - 1]);
+        }
+    }
+
+    @Test
+    public void rejectsCharactersOutsideCharset() {
+        assertFalse(TextEncoder.canEncode(LATIN1_TEXT, TextEncoder.CHARSET_ASCII));
+        assertNull(TextEncoder.encode(LATIN1_TEXT, TextEncoder.CHARSET_ASCII, 0));
+        assertTrue(TextEncoder.canEncode(LATIN1_TEXT, TextEncoder.CHARSET_LATIN1));
+        assertFalse(TextEncoder.canEncode(UNICODE_TEXT, TextEncoder.CHARSET_LATIN1));
+        assertNull(TextEncoder.encode(UNICODE_TEXT, TextEncoder.CHARSET_LATIN1, 0));
+        assertTrue(TextEncoder.canEncode(UNICODE_TEXT, TextEncoder.CHARSET_UTF16LE));
+    }
+
+    @Test
+    public void rejectsUnknownCharsets() {
+        assertFalse(TextEncoder.isCharsetValid(-1));
+        assertFalse(TextEncoder.isCharsetValid(CHARSETS.length));
+        assertNull(TextEncoder.encode(ASCII_TEXT, CHARSETS.length, 0));
+        assertNull(TextEncoder.encode(null, TextEncoder.CHARSET_UTF8, 0));
+        assertFalse(TextEncoder.canEncode(null, TextEncoder.CHARSET_UTF8));
+    }
+
+    @Test
+    public void templatesUseCharset() {
+        MessageTemplate template = MessageTemplate.compile("caf\u00e9 {counter}",
+                TextEncoder.CHARSET_LATIN1, null);
+
+        assertArrayEquals(new byte[]{'c', 'a', 'f', (byte) 0xE9, ' ', '7'}, template.render(7));
+        assertNull(MessageTemplate.compile("{counter}", TextEncoder.CHARSET_UTF16LE, null));
+        assertNull(MessageTemplate.compile("\u20ac", TextEncoder.CHARSET_LATIN1, null));
+    }
+}
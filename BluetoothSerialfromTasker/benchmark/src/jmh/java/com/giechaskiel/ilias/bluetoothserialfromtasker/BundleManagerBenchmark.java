@@ -0,0 +1,141 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Benchmarks of the BundleManager methods on the fire and edit paths
+ * (see MacBenchmark for MAC validation on its own)
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import android.os.Bundle;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BundleManagerBenchmark {
+    private final static String MAC = "00:11:22:AA:BB:CC";
+
+    // Number of payload bytes, before CRLF
+    @Param({"1", "64", "1024", "65536"})
+    public int size;
+
+    // text and hex are saved without variables, so they carry a fingerprint and hit the
+    // payload cache on fire. The variable kinds model a message saved as %var, which Tasker
+    // replaces with the given contents before every fire, so they are compiled every time.
+    // template is text between a counter and an NMEA-style checksum, rendered on every fire.
+    // escape is text with a \xNN escape every eight bytes, compiled when it is saved.
+    @Param({"text", "hex", "variable-text", "variable-hex", "template", "escape",
+            "variable-escape"})
+    public String kind;
+
+    @Param({"true", "false"})
+    public boolean crlf;
+
+    private String msg;
+    private int mode;
+    private boolean template;
+
+    // The bundle as the receiver sees it on fire
+    private Bundle fired;
+
+    @Setup
+    public void setup() {
+        if (kind.endsWith("hex")) {
+            mode = BundleManager.MODE_HEX;
+            msg = hexMessage(size);
+        } else if (kind.endsWith("escape")) {
+            mode = BundleManager.MODE_ESCAPE;
+            msg = escapeMessage(size);
+        } else {
+            mode = BundleManager.MODE_TEXT;
+            msg = textMessage(size);
+        }
+        template = kind.equals("template");
+        if (template) {
+            msg = "{begin}{counter:8}," + msg + "{end}*{xor}";
+        }
+
+        if (kind.startsWith("variable")) {
+            fired = BundleManager.generateBundle(MAC, "%payload", crlf, mode, false,
+                    TextEncoder.CHARSET_UTF8);
+            fired.putString(BundleManager.BUNDLE_STRING_MSG, msg);
+        } else {
+            fired = BundleManager.generateBundle(MAC, msg, crlf, mode, template,
+                    TextEncoder.CHARSET_UTF8);
+        }
+
+        // The action has fired before, as it would have in steady state
+        BundleManager.getMsgBytes(fired);
+    }
+
+    // Printable ASCII, like a typical command
+    private static String textMessage(int size) {
+        Random random = new Random(42);
+        StringBuilder builder = new StringBuilder(size);
+        for (int i = 0; i < size; ++i) {
+            builder.append((char) ('a' + random.nextInt(26)));
+        }
+        return builder.toString();
+    }
+
+    // Printable ASCII with an escaped control byte every eight bytes, as in "abcdefg\x1B"
+    private static String escapeMessage(int size) {
+        Random random = new Random(42);
+        StringBuilder builder = new StringBuilder(2 * size);
+        for (int i = 0; i < size; ++i) {
+            if (i % 8 == 7) {
+                builder.append(String.format("\\x%02X", random.nextInt(32)));
+            } else {
+                builder.append((char) ('a' + random.nextInt(26)));
+            }
+        }
+        return builder.toString();
+    }
+
+    // Bytes separated by spaces, as in "0B AD F0 0D"
+    private static String hexMessage(int size) {
+        Random random = new Random(42);
+        StringBuilder builder = new StringBuilder(3 * size);
+        for (int i = 0; i < size; ++i) {
+            if (i > 0) {
+                builder.append(' ');
+            }
+            builder.append(String.format("%02X", random.nextInt(256)));
+        }
+        return builder.toString();
+    }
+
+    @Benchmark
+    public boolean isBundleValid() {
+        return BundleManager.isBundleValid(fired);
+    }
+
+    @Benchmark
+    public byte[] getMsgBytes() {
+        return BundleManager.getMsgBytes(fired);
+    }
+
+    @Benchmark
+    public Bundle generateBundle() {
+        return BundleManager.generateBundle(MAC, msg, crlf, mode, template,
+                TextEncoder.CHARSET_UTF8);
+    }
+
+    @Benchmark
+    public String getBundleBlurb() {
+        return BundleManager.getBundleBlurb(fired);
+    }
+}
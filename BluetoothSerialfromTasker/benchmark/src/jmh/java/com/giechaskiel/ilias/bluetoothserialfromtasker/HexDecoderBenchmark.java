@@ -0,0 +1,99 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Compares HexDecoder with the regex-based decoder it replaced
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HexDecoderBenchmark {
+    // Number of decoded bytes
+    @Param({"8", "1024", "65536"})
+    public int size;
+
+    // Whether bytes are separated by spaces, as in "0B AD F0 0D"
+    @Param({"false", "true"})
+    public boolean spaced;
+
+    private String hex;
+    private byte[] buffer;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < size; ++i) {
+            if (spaced && i > 0) {
+                builder.append(' ');
+            }
+            builder.append(String.format("%02x", random.nextInt(256)));
+        }
+        hex = builder.toString();
+        buffer = new byte[size];
+    }
+
+    @Benchmark
+    public byte[] legacy() {
+        return legacyDecode(hex);
+    }
+
+    @Benchmark
+    public byte[] decode() {
+        return HexDecoder.decode(hex);
+    }
+
+    @Benchmark
+    public int decodeIntoBuffer() {
+        return HexDecoder.decode(hex, buffer, 0);
+    }
+
+    @Benchmark
+    public boolean validate() {
+        return HexDecoder.isValid(hex);
+    }
+
+    // The implementation of BundleManager.getByteArrayFromHexString before HexDecoder
+    private static byte[] legacyDecode(String s) {
+        if (s == null) {
+            return null;
+        }
+        // remove spaces and convert to uppercase
+        s = s.replaceAll("\\s+","").toUpperCase();
+
+        final int length = s.length();
+
+        // need even length
+        if (length % 2 != 0) {
+            return null;
+        }
+
+        // we want at least one character, and make sure it's hex value
+        if (!s.matches("^[0-9A-F]+$")) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length/2];
+
+        for (int i = 0; i < bytes.length; ++i) {
+            int cur_index = 2*i;
+            bytes[i] = (byte) Short.parseShort(s.substring(cur_index, cur_index + 2), 16);
+        }
+        return bytes;
+    }
+}
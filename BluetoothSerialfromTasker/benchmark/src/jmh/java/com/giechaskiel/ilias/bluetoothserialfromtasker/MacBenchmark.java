@@ -0,0 +1,32 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Benchmark of MAC validation, for each accepted and rejected form, and a list
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MacBenchmark {
+    @Param({"00:11:22:AA:BB:CC", "00-11-22-aa-bb-cc", "%mac", "00:11:22:AA:BB",
+            "00:11:22:AA:BB:C1, 00:11:22:AA:BB:C2, 00:11:22:AA:BB:C3"})
+    public String mac;
+
+    @Benchmark
+    public boolean isMacValid() {
+        return BundleManager.isMacValid(mac);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: End-to-end burst benchmark of the write path against the emulated switch:
+ * how fast bursts of commands can be written, and how many bytes the emulated module and
+ * SoftwareSerial drop, for each way of chunking and pacing the writes
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SwitchEmulatorBenchmark {
+    private final static String MAC = "00:11:22:AA:BB:CC";
+
+    // Packet size of a typical RFCOMM link
+    private final static int MAX_PACKET_SIZE = 990;
+
+    // Commands per burst, alternating on and off
+    @Param({"64"})
+    public int burst;
+
+    @Param({"text", "binary"})
+    public String mode;
+
+    // 0 uses the link's packet size
+    @Param({"0", "64"})
+    public int chunk_bytes;
+
+    // 0 does not pace; 3840 is the 38400 baud serial line between module and ATtiny
+    @Param({"0", "3840"})
+    public int bytes_per_second;
+
+    // Bytes the emulated board lost, per burst
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Drops {
+        public long dropped_by_module;
+        public long dropped_by_serial;
+    }
+
+    private SwitchEmulator emulator;
+    private Transport.Connection connection;
+    private OutputStream out;
+    private final ChunkedWriter writer = new ChunkedWriter();
+    private byte[] bytes;
+
+    // Drop counts already reported. The emulator counts drops on its own thread, so they are
+    // reported by the first burst to see them
+    private long reported_module;
+    private long reported_serial;
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < burst; ++i) {
+            builder.append(i % 2 == 0 ? "on" : "off").append(mode.equals("text") ? "\r\n" : " ");
+        }
+        bytes = mode.equals("text")
+                ? builder.toString().getBytes("US-ASCII")
+                : BinaryProtocol.compile(builder.toString(), 0);
+
+        writer.setChunkBytes(chunk_bytes);
+        writer.setBytesPerSecond(bytes_per_second);
+
+        LoopbackTransport transport = new LoopbackTransport();
+        emulator = new SwitchEmulator();
+        transport.addDevice(MAC, emulator).setMaxPacketSize(MAX_PACKET_SIZE);
+        connection = transport.getDevice(MAC).createConnection(LoopbackTransport.STRATEGY_LOOPBACK);
+        connection.connect();
+        out = connection.getOutputStream();
+        reported_module = 0;
+        reported_serial = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        connection.close();
+    }
+
+    @Benchmark
+    public int writeBurst(Drops drops) throws IOException {
+        SendResult result = new SendResult();
+        writer.write(out, bytes, connection.getMaxPacketSize(), result);
+
+        long module = emulator.getDroppedByModule();
+        long serial = emulator.getDroppedBySerial();
+        drops.dropped_by_module += module - reported_module;
+        drops.dropped_by_serial += serial - reported_serial;
+        reported_module = module;
+        reported_serial = serial;
+        return result.chunks;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Compares TextEncoder with String.getBytes followed by a copy to append CRLF,
+ * which is how text messages were encoded before there were charsets
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TextEncoderBenchmark {
+    // Number of characters, before CRLF
+    @Param({"8", "1024", "65536"})
+    public int size;
+
+    // Position in R.array.charsets
+    @Param({"0", "1", "2", "3"})
+    public int charset;
+
+    private String text;
+    private Charset java_charset;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        StringBuilder builder = new StringBuilder(size);
+        for (int i = 0; i < size; ++i) {
+            builder.append((char) ('a' + random.nextInt(26)));
+        }
+        text = builder.toString();
+        java_charset = Charset.forName(TextEncoder.getName(charset));
+    }
+
+    @Benchmark
+    public byte[] legacy() {
+        byte[] bytes = text.getBytes(java_charset);
+        return Arrays.copyOf(bytes, bytes.length + 2);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return TextEncoder.encode(text, charset, 2);
+    }
+}
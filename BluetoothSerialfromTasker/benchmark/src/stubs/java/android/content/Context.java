@@ -0,0 +1,15 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Plain JVM stand-in for android.content.Context, only so that classes taking
+ * a Context compile. Benchmarks never call those methods.
+ *
+ */
+
+package android.content;
+
+import android.content.res.Resources;
+
+public abstract class Context {
+    public abstract Resources getResources();
+}
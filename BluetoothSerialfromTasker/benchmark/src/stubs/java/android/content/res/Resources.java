@@ -0,0 +1,14 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Plain JVM stand-in for android.content.res.Resources
+ *
+ */
+
+package android.content.res;
+
+public class Resources {
+    public String getString(int id) {
+        return "string/" + id;
+    }
+}
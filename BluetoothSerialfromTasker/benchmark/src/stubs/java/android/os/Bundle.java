@@ -0,0 +1,130 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Plain JVM stand-in for android.os.Bundle, backed by a HashMap like the
+ * real (unparcelled) Bundle. Only the methods used by the plugin are provided.
+ *
+ */
+
+package android.os;
+
+import java.util.HashMap;
+import java.util.Set;
+
+public final class Bundle {
+    private final HashMap<String, Object> map = new HashMap<>();
+
+    public Bundle() {
+    }
+
+    public Bundle(Bundle b) {
+        map.putAll(b.map);
+    }
+
+    public boolean containsKey(String key) {
+        return map.containsKey(key);
+    }
+
+    public Object get(String key) {
+        return map.get(key);
+    }
+
+    public void remove(String key) {
+        map.remove(key);
+    }
+
+    public Set<String> keySet() {
+        return map.keySet();
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    public void putAll(Bundle bundle) {
+        map.putAll(bundle.map);
+    }
+
+    public void putString(String key, String value) {
+        map.put(key, value);
+    }
+
+    public String getString(String key) {
+        return getString(key, null);
+    }
+
+    public String getString(String key, String defaultValue) {
+        Object o = map.get(key);
+        return o instanceof String ? (String) o : defaultValue;
+    }
+
+    public void putBoolean(String key, boolean value) {
+        map.put(key, value);
+    }
+
+    public boolean getBoolean(String key) {
+        return getBoolean(key, false);
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        Object o = map.get(key);
+        return o instanceof Boolean ? (Boolean) o : defaultValue;
+    }
+
+    public void putInt(String key, int value) {
+        map.put(key, value);
+    }
+
+    public int getInt(String key) {
+        return getInt(key, 0);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        Object o = map.get(key);
+        return o instanceof Integer ? (Integer) o : defaultValue;
+    }
+
+    public void putLong(String key, long value) {
+        map.put(key, value);
+    }
+
+    public long getLong(String key) {
+        return getLong(key, 0L);
+    }
+
+    public long getLong(String key, long defaultValue) {
+        Object o = map.get(key);
+        return o instanceof Long ? (Long) o : defaultValue;
+    }
+
+    public void putByteArray(String key, byte[] value) {
+        map.put(key, value);
+    }
+
+    public byte[] getByteArray(String key) {
+        Object o = map.get(key);
+        return o instanceof byte[] ? (byte[]) o : null;
+    }
+
+    public void putStringArray(String key, String[] value) {
+        map.put(key, value);
+    }
+
+    public String[] getStringArray(String key) {
+        Object o = map.get(key);
+        return o instanceof String[] ? (String[]) o : null;
+    }
+
+    public void putBundle(String key, Bundle value) {
+        map.put(key, value);
+    }
+
+    public Bundle getBundle(String key) {
+        Object o = map.get(key);
+        return o instanceof Bundle ? (Bundle) o : null;
+    }
+}
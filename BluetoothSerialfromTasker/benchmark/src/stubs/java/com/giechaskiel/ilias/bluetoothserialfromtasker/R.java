@@ -0,0 +1,23 @@
+/*
+ * Author: Ilias Giechaskiel
+ * Website: https://ilias.giechaskiel.com
+ * Description: Plain JVM stand-in for the generated resource class, with the ids used by
+ * the classes compiled into the benchmarks
+ *
+ */
+
+package com.giechaskiel.ilias.bluetoothserialfromtasker;
+
+public final class R {
+    public static final class string {
+        public static final int invalid_mac = 1;
+        public static final int invalid_msg = 2;
+        public static final int invalid_hex = 3;
+        public static final int invalid_binary = 4;
+        public static final int invalid_template = 5;
+        public static final int invalid_template_charset = 6;
+        public static final int invalid_charset = 7;
+        public static final int invalid_escape = 8;
+        public static final int invalid_script = 9;
+    }
+}
@@ -7,6 +7,12 @@
  * off: turn off
  * [positive integer n]: turn off after n minutes
  * 0: cancel delayed shutoff  
+ * Text commands end with CR or LF. The same commands can also be sent as binary frames
+ * (see BinaryProtocol.java in the plugin), which need no line ending:
+ * 0xA5, opcode, payload length, payload, CRC-8 (polynomial 0x07) of opcode, length and payload
+ * opcode 0x01: turn on
+ * opcode 0x02: turn off
+ * opcode 0x03 with 2-byte big endian n: turn off after n minutes (0 cancels)
  *
  */
 
@@ -31,6 +37,22 @@
 // Maximum delay between bluetooth AP resets
 #define MAX_CONTINUOUS 60*60*1000
 
+// Longest delayed shutoff in minutes, which is also the most a binary frame can carry.
+// Longer delays are shortened to it, so that the delay in milliseconds fits in an unsigned
+// long and millis() - shutoff_start can measure it even when millis() wraps around
+#define MAX_SHUTOFF_MINUTES 65535
+
+// Start of a binary frame. Text commands are ASCII, so they never contain it
+#define FRAME_SYNC 0xA5
+
+// Opcodes of binary frames
+#define OP_ON 0x01
+#define OP_OFF 0x02
+#define OP_SHUTOFF 0x03
+
+// Max payload length of binary frames. Longer frames are dropped
+#define FRAME_MAX_PAYLOAD 8
+
 // Bluetooth device name and pairing code
 #define BT_NAME "YOUR-NAME"
 #define BT_PASS "YOUR_PASS"
@@ -40,9 +62,22 @@ SoftwareSerial bluetooth(RX_PIN, TX_PIN);
 char input[AR_LEN + 1];
 int index = 0;
 long last_reset = 0;
-long auto_shutoff = 0;
+unsigned long shutoff_start = 0; // millis() when the shutoff was set
+unsigned long shutoff_ms = 0; // Delay of the shutoff, 0 if none
 bool isOn; // Initialize in setup
 
+// State of the binary frame parser
+enum frame_state { FRAME_IDLE, FRAME_OPCODE, FRAME_LENGTH, FRAME_PAYLOAD, FRAME_CRC };
+frame_state state = FRAME_IDLE;
+uint8_t frame_opcode = 0;
+uint8_t frame_length = 0;
+uint8_t frame_index = 0;
+uint8_t frame_crc = 0;
+uint8_t frame_payload[FRAME_MAX_PAYLOAD];
+
+// Whether the last command read was a binary frame rather than text in input
+bool is_frame = false;
+
 // Function that sets AT commands
 bool send_command(const char* cmd, const char* param = NULL) {
   bluetooth.print("AT+");
@@ -121,10 +156,71 @@ inline bool is_crlf(char c) {
   return c == '\r' || c == '\n';
 }
 
+// Function that adds a byte to a running CRC-8 (polynomial 0x07)
+uint8_t crc8_update(uint8_t crc, uint8_t b) {
+  crc ^= b;
+  for (uint8_t i = 0; i < 8; ++i) {
+    crc = (crc & 0x80) ? (crc << 1) ^ 0x07 : crc << 1;
+  }
+  return crc;
+}
+
+// Function that feeds one byte to the binary frame parser. Returns true when it completes
+// a frame with a valid CRC. Corrupt or oversized frames are dropped, and parsing resumes at
+// the next FRAME_SYNC
+bool parse_frame_byte(uint8_t b) {
+  switch (state) {
+    case FRAME_IDLE:
+      if (b == FRAME_SYNC) {
+        state = FRAME_OPCODE;
+      }
+      return false;
+
+    case FRAME_OPCODE:
+      frame_opcode = b;
+      frame_crc = crc8_update(0, b);
+      state = FRAME_LENGTH;
+      return false;
+
+    case FRAME_LENGTH:
+      frame_length = b;
+      frame_crc = crc8_update(frame_crc, b);
+      frame_index = 0;
+      if (frame_length > FRAME_MAX_PAYLOAD) {
+        state = FRAME_IDLE;
+      } else {
+        state = frame_length == 0 ? FRAME_CRC : FRAME_PAYLOAD;
+      }
+      return false;
+
+    case FRAME_PAYLOAD:
+      frame_payload[frame_index] = b;
+      ++frame_index;
+      frame_crc = crc8_update(frame_crc, b);
+      if (frame_index == frame_length) {
+        state = FRAME_CRC;
+      }
+      return false;
+
+    default:
+      state = FRAME_IDLE;
+      return b == frame_crc;
+  }
+}
+
 // Function to read incoming message from Bluetooth
 bool read_incoming() {
   while (bluetooth.available()) {
     char c = bluetooth.read();
+
+    // Binary frames, which are complete without CR or LF
+    if (state != FRAME_IDLE || (uint8_t) c == FRAME_SYNC) {
+      if (parse_frame_byte(c)) {
+        is_frame = true;
+        return true;
+      }
+      continue;
+    }
     
     // Do not overflow
     if (index == AR_LEN) {
@@ -140,6 +236,7 @@ bool read_incoming() {
       
       input[index] = '\0';
       index = 0;
+      is_frame = false;
       return true;
     } else {
       input[index] = c;
@@ -150,7 +247,39 @@ bool read_incoming() {
 }
 
 inline void cancel_shutoff() {
-  auto_shutoff = 0;
+  shutoff_ms = 0;
+}
+
+// Function that sets the shutoff, like the text commands: 0 cancels it
+void set_shutoff(long minutes) {
+  if (minutes == 0) {
+    cancel_shutoff();
+  } else if (minutes > 0) {
+    if (minutes > MAX_SHUTOFF_MINUTES) {
+      minutes = MAX_SHUTOFF_MINUTES;
+    }
+    shutoff_start = millis();
+    shutoff_ms = minutes*60000UL;
+  }
+}
+
+// Function that carries out the binary frame just read. Unknown opcodes are ignored
+void handle_frame() {
+  switch (frame_opcode) {
+    case OP_ON:
+      isOn = true;
+      cancel_shutoff();
+      break;
+    case OP_OFF:
+      isOn = false;
+      cancel_shutoff();
+      break;
+    case OP_SHUTOFF:
+      if (frame_length == 2) {
+        set_shutoff(((long) frame_payload[0] << 8) | frame_payload[1]);
+      }
+      break;
+  }
 }
 
 
@@ -185,7 +314,7 @@ void loop() {
     reset_bluetooth();
   }
 
-  if (auto_shutoff > 0 && millis() > auto_shutoff) {
+  if (shutoff_ms > 0 && millis() - shutoff_start >= shutoff_ms) {
     cancel_shutoff();
     isOn = false;
     write_pins(isOn);
@@ -196,7 +325,9 @@ void loop() {
     return;
   }
 
-  if (are_equal_ic(input, "off")) {
+  if (is_frame) {
+    handle_frame();
+  } else if (are_equal_ic(input, "off")) {
     isOn = false;
     cancel_shutoff();
   } else if (are_equal_ic(input, "on")) {
@@ -206,11 +337,7 @@ void loop() {
     long shutoff = parse_long(input);//atol(input);
 
     // 0 cancels shutoff
-    if (shutoff == 0) {
-      cancel_shutoff();
-    } else if (shutoff > 0) {
-      auto_shutoff = millis() + shutoff*60*1000;
-    }
+    set_shutoff(shutoff);
   }
 
   // Update output